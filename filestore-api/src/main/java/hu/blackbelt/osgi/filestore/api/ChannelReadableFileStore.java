@@ -0,0 +1,42 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+
+/**
+ * Optional capability of a {@link FileStoreService} which keeps file content in local files. Consumers can use the
+ * returned {@link FileChannel} to transfer content without copying it through the heap (e.g.
+ * {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)}).
+ */
+public interface ChannelReadableFileStore {
+
+    /**
+     * Opens a read-only file channel on the content of the given <code>fileId</code>. The content starts at position 0
+     * of the channel. The caller has to close the channel.
+     *
+     * @param fileId
+     * @return the channel or <code>null</code> if the content of the file is not stored in a file of its own
+     * @throws IOException
+     */
+    FileChannel openFileChannel(String fileId) throws IOException;
+}
@@ -0,0 +1,74 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * Generators of new file ids, each returns a UUID in its canonical string form.
+ */
+public enum FileIdGenerator implements Supplier<String> {
+
+    /**
+     * Random (version 4) UUID.
+     */
+    RANDOM {
+        @Override
+        public String get() {
+            return UUID.randomUUID().toString();
+        }
+    },
+
+    /**
+     * Time-ordered (version 7) UUID: the leading 48 bits are the Unix time in milliseconds, so ids generated later
+     * sort after the earlier ones and new index entries are appended. The random bits come from
+     * {@link ThreadLocalRandom} which does not contend on a shared <code>SecureRandom</code>, the ids are unique but
+     * not unpredictable.
+     */
+    TIME_ORDERED {
+        @Override
+        public String get() {
+            return timeOrdered(System.currentTimeMillis()).toString();
+        }
+    };
+
+    /**
+     * Returns the generator with the given (case insensitive) name, {@link #RANDOM} if it is empty.
+     *
+     * @param name
+     * @return
+     */
+    public static FileIdGenerator of(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return RANDOM;
+        }
+        return valueOf(name.trim().toUpperCase().replace('-', '_'));
+    }
+
+    static UUID timeOrdered(long timestamp) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long mostSigBits = (timestamp << 16) | 0x7000L | (random.nextInt() & 0x0FFFL);
+        long leastSigBits = (random.nextLong() & 0x3FFFFFFFFFFFFFFFL) | 0x8000000000000000L;
+        return new UUID(mostSigBits, leastSigBits);
+    }
+}
@@ -0,0 +1,53 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Date;
+
+/**
+ * Metadata of a stored file, returned by a single lookup.
+ */
+@Getter
+@Builder
+@EqualsAndHashCode
+@ToString
+public class FileMetadata {
+
+    private final String fileId;
+
+    private final String fileName;
+
+    private final String mimeType;
+
+    private final long size;
+
+    private final Date createTime;
+
+    /**
+     * Checksum of the content, <code>null</code> if the backend does not provide it.
+     */
+    private final String checksum;
+}
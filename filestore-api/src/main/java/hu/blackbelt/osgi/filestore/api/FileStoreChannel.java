@@ -0,0 +1,133 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only {@link SeekableByteChannel} built on {@link FileStoreService#get(String, long, long)}. Changing the
+ * position reopens the range stream lazily at the next read.
+ */
+final class FileStoreChannel implements SeekableByteChannel {
+
+    private final FileStoreService fileStoreService;
+    private final String fileId;
+    private long size = -1;
+    private long position;
+    private InputStream current;
+    private ReadableByteChannel currentChannel;
+    private boolean open = true;
+
+    FileStoreChannel(FileStoreService fileStoreService, String fileId) {
+        this.fileStoreService = fileStoreService;
+        this.fileId = fileId;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        ensureOpen();
+        if (position >= size()) {
+            return -1;
+        }
+        if (currentChannel == null) {
+            current = fileStoreService.get(fileId, position, -1);
+            currentChannel = Channels.newChannel(current);
+        }
+        int n = currentChannel.read(dst);
+        if (n > 0) {
+            position += n;
+        }
+        return n;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        ensureOpen();
+        return position;
+    }
+
+    @Override
+    public SeekableByteChannel position(long newPosition) throws IOException {
+        ensureOpen();
+        if (newPosition < 0) {
+            throw new IllegalArgumentException("Position cannot be negative");
+        }
+        if (newPosition != position) {
+            closeCurrent();
+            position = newPosition;
+        }
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        ensureOpen();
+        if (size < 0) {
+            size = fileStoreService.getSize(fileId);
+        }
+        return size;
+    }
+
+    @Override
+    public SeekableByteChannel truncate(long newSize) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() throws IOException {
+        open = false;
+        closeCurrent();
+    }
+
+    private void closeCurrent() throws IOException {
+        if (current != null) {
+            try {
+                current.close();
+            } finally {
+                current = null;
+                currentChannel = null;
+            }
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+    }
+}
@@ -23,7 +23,15 @@ package hu.blackbelt.osgi.filestore.api;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URL;
+import java.nio.channels.SeekableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 /**
  * Represents a file store service.
@@ -40,6 +48,45 @@ public interface FileStoreService {
      */
     String put(InputStream data, String fileName, String mimeType) throws IOException;
 
+    /**
+     * Saves a file like {@link #put(InputStream, String, String)} when the exact length of <code>data</code> is known
+     * by the caller, so the store does not have to measure it. A negative <code>sizeHint</code> means unknown length.
+     *
+     * @param data
+     * @param fileName
+     * @param mimeType
+     * @param sizeHint
+     */
+    default String put(InputStream data, String fileName, String mimeType, long sizeHint) throws IOException {
+        return put(data, fileName, mimeType);
+    }
+
+    /**
+     * Saves all the given files and returns their IDs in the order of <code>requests</code>. Implementations should
+     * override it to store them in a single round trip (or transaction), the default one calls
+     * {@link #put(InputStream, String, String, long)} for each request.
+     *
+     * @param requests
+     * @return
+     * @throws IOException
+     */
+    default List<String> putAll(List<PutRequest> requests) throws IOException {
+        List<String> fileIds = new ArrayList<>(requests.size());
+        for (PutRequest request : requests) {
+            fileIds.add(put(request.getData(), request.getFileName(), request.getMimeType(), request.getSizeHint()));
+        }
+        return fileIds;
+    }
+
+    /**
+     * Deletes the file with the given <code>fileId</code>, deleting a file which does not exist is not an error. It is
+     * used to roll back files stored by a failed operation.
+     *
+     * @param fileId
+     * @throws IOException
+     */
+    void delete(String fileId) throws IOException;
+
     /**
      * Checks the existence of a file <code>fileId</code> (If any representation exists return true).
      *
@@ -48,6 +95,18 @@ public interface FileStoreService {
      */
     boolean exists(String fileId);
 
+    /**
+     * Returns the subset of the given <code>fileIds</code> which exist in the store. Implementations should override
+     * it to check all of them with a single (or a few) lookups, the default one calls {@link #exists(String)} for
+     * each id.
+     *
+     * @param fileIds
+     * @return
+     */
+    default Set<String> existing(Collection<String> fileIds) {
+        return fileIds.stream().filter(fileId -> fileId != null && exists(fileId)).collect(Collectors.toSet());
+    }
+
     /**
      * Fetches the file with the given <code>fileId</code>.
      *
@@ -56,6 +115,36 @@ public interface FileStoreService {
      */
     InputStream get(String fileId) throws IOException;
 
+    /**
+     * Fetches <code>length</code> bytes of the file with the given <code>fileId</code> starting at <code>offset</code>.
+     * A negative <code>length</code> reads until the end of the file. Implementations should override it to position
+     * natively, the default one skips the leading bytes of {@link #get(String)}.
+     *
+     * @param fileId
+     * @param offset
+     * @param length
+     * @return
+     * @throws IOException
+     */
+    default InputStream get(String fileId, long offset, long length) throws IOException {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
+        return new RangeInputStream(get(fileId), offset, length);
+    }
+
+    /**
+     * Opens a read-only seekable channel on the file with the given <code>fileId</code>. The default implementation
+     * reopens {@link #get(String, long, long)} at the new position after each seek.
+     *
+     * @param fileId
+     * @return
+     * @throws IOException
+     */
+    default SeekableByteChannel openChannel(String fileId) throws IOException {
+        return new FileStoreChannel(this, fileId);
+    }
+
     /**
      * Gets the mime type of the given fileId.
      *
@@ -93,6 +182,41 @@ public interface FileStoreService {
      */
     Date getCreateTime(String fileId) throws IOException;
 
+    /**
+     * Get all metadata (name, mime type, size, create time) of the given fileId with a single lookup. Implementations
+     * should override it, the default one calls the separate getters.
+     *
+     * @param fileId
+     * @return
+     * @throws IOException
+     */
+    default FileMetadata getMetadata(String fileId) throws IOException {
+        return FileMetadata.builder()
+                .fileId(fileId)
+                .fileName(getFileName(fileId))
+                .mimeType(getMimeType(fileId))
+                .size(getSize(fileId))
+                .createTime(getCreateTime(fileId))
+                .build();
+    }
+
+    /**
+     * Get metadata of all the given <code>fileIds</code>. The returned map is keyed by the given ids, ids which do not
+     * exist are missing from it. Implementations should override it to fetch metadata in bulk, the default one calls
+     * {@link #getMetadata(String)} for each existing id.
+     *
+     * @param fileIds
+     * @return
+     * @throws IOException
+     */
+    default Map<String, FileMetadata> getMetadata(Collection<String> fileIds) throws IOException {
+        Map<String, FileMetadata> metadata = new LinkedHashMap<>();
+        for (String fileId : existing(fileIds)) {
+            metadata.put(fileId, getMetadata(fileId));
+        }
+        return metadata;
+    }
+
     /**
      * Get absolute URL of file.
      *
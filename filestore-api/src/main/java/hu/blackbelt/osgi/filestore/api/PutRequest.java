@@ -0,0 +1,48 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.io.InputStream;
+
+/**
+ * A file to store with {@link FileStoreService#putAll(java.util.List)}.
+ */
+@Getter
+@Builder
+@ToString(exclude = "data")
+public class PutRequest {
+
+    private final InputStream data;
+
+    private final String fileName;
+
+    private final String mimeType;
+
+    /**
+     * Exact length of <code>data</code>, negative if it is unknown.
+     */
+    @Builder.Default
+    private final long sizeHint = -1;
+}
@@ -0,0 +1,64 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Date;
+
+/**
+ * Snapshot of the progress of an upload, stored in an {@link UploadProgressRegistry}.
+ */
+@Getter
+@Builder(toBuilder = true)
+@EqualsAndHashCode
+@ToString
+public class UploadProgress {
+
+    public enum Status {
+        RUNNING, FINISHED, CANCELED, TIMEOUT, FAILED
+    }
+
+    private final String uploadId;
+
+    private final long bytesRead;
+
+    private final long contentLength;
+
+    private final Status status;
+
+    /**
+     * Response of a finished upload or error message of a failed one.
+     */
+    private final String message;
+
+    /**
+     * Time of the last update.
+     */
+    private final Date updated;
+
+    public boolean isRunning() {
+        return status == null || status == Status.RUNNING;
+    }
+}
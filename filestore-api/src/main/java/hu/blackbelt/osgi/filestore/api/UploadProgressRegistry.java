@@ -0,0 +1,60 @@
+package hu.blackbelt.osgi.filestore.api;
+
+/*-
+ * #%L
+ * Filestore API
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+/**
+ * Stores progress of running uploads keyed by upload id, so progress can be polled without HTTP session
+ * attributes (and from any node of a cluster when the registry is shared).
+ */
+public interface UploadProgressRegistry {
+
+    /**
+     * Stores the given progress, replacing the previous one of the same upload.
+     *
+     * @param progress
+     */
+    void save(UploadProgress progress);
+
+    /**
+     * Updates the transferred bytes of an upload without changing its status. Nothing happens if the upload is
+     * unknown.
+     *
+     * @param uploadId
+     * @param bytesRead
+     * @param contentLength
+     */
+    void update(String uploadId, long bytesRead, long contentLength);
+
+    /**
+     * Gets progress of the given upload.
+     *
+     * @param uploadId
+     * @return progress or <code>null</code> if the upload is unknown
+     */
+    UploadProgress get(String uploadId);
+
+    /**
+     * Removes progress of the given upload.
+     *
+     * @param uploadId
+     */
+    void remove(String uploadId);
+}
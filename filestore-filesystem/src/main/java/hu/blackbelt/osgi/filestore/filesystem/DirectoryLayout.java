@@ -0,0 +1,101 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.File;
+
+/**
+ * Maps file ids to the directories of the files relative to the store root.
+ *
+ * <p>The legacy layout has a directory level for each 2 characters of the id, the directory of the file is the last
+ * level. The sharded layout has <code>levels</code> directory levels named by <code>width</code> characters from the
+ * end of the id (which are random for time ordered ids too), the directory of the file is named by the whole id
+ * below them.</p>
+ */
+final class DirectoryLayout {
+
+    static final int LEGACY_WIDTH = 2;
+
+    static final DirectoryLayout LEGACY = new DirectoryLayout(0, LEGACY_WIDTH);
+
+    private final int levels;
+
+    private final int width;
+
+    private DirectoryLayout(int levels, int width) {
+        this.levels = levels;
+        this.width = width;
+    }
+
+    /**
+     * Returns the sharded layout with the given number of levels, 0 levels means the legacy layout.
+     */
+    static DirectoryLayout of(int levels, int width) {
+        if (levels <= 0) {
+            return LEGACY;
+        }
+        if (width <= 0) {
+            throw new IllegalArgumentException("Directory level width has to be positive: " + width);
+        }
+        return new DirectoryLayout(levels, width);
+    }
+
+    boolean isLegacy() {
+        return levels == 0;
+    }
+
+    int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the directory of the file, ids which are too short to shard are stored in the legacy layout.
+     */
+    String path(String fileId) {
+        int shardLength = levels * width;
+        if (isLegacy() || fileId.length() <= shardLength) {
+            return legacyPath(fileId);
+        }
+        char[] path = new char[shardLength + levels + fileId.length()];
+        int shardStart = fileId.length() - shardLength;
+        int position = 0;
+        for (int level = 0; level < levels; level++) {
+            fileId.getChars(shardStart + level * width, shardStart + (level + 1) * width, path, position);
+            position += width;
+            path[position++] = File.separatorChar;
+        }
+        fileId.getChars(0, fileId.length(), path, position);
+        return new String(path);
+    }
+
+    static String legacyPath(String fileId) {
+        int length = fileId.length();
+        char[] path = new char[length + Math.max(0, (length - 1) / LEGACY_WIDTH)];
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            if (i > 0 && i % LEGACY_WIDTH == 0) {
+                path[position++] = File.separatorChar;
+            }
+            path[position++] = fileId.charAt(i);
+        }
+        return new String(path);
+    }
+}
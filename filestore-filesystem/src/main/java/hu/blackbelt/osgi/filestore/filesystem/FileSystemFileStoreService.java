@@ -20,11 +20,19 @@ package hu.blackbelt.osgi.filestore.filesystem;
  * #L%
  */
 
+import com.google.common.base.Throwables;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import hu.blackbelt.osgi.filestore.api.ChannelReadableFileStore;
+import hu.blackbelt.osgi.filestore.api.FileIdGenerator;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
 import hu.blackbelt.osgi.filestore.api.FileStoreService;
 import hu.blackbelt.osgi.filestore.urlhandler.FileStoreUrlStreamHandler;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.osgi.framework.BundleContext;
@@ -35,22 +43,44 @@ import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.osgi.service.url.URLStreamHandlerService;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32C;
 
 @Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Designate(ocd=FileSystemFileStoreService.Config.class)
 @Slf4j
-public class FileSystemFileStoreService implements FileStoreService {
+public class FileSystemFileStoreService implements FileStoreService, ChannelReadableFileStore {
 
     @ObjectClassDefinition()
     public @interface Config {
@@ -58,8 +88,41 @@ public class FileSystemFileStoreService implements FileStoreService {
         @AttributeDefinition(name="Protocol", description = "Protocol of URL stream handler")
         String protocol();
 
-        @AttributeDefinition(required = false, name = "Filesystem store directory")
+        @AttributeDefinition(required = false, name = "Filesystem store directory", description = "Root directory of the store, or a comma separated list of root directories on different disks which the files are spread over (the first one keeps the metadata)")
         String fileSystemStoreDirectory();
+
+        @AttributeDefinition(required = false, name = "Id generator", description = "Generator of new file ids: random or time_ordered (UUIDv7, in the legacy directory layout files stored close in time share leading directories)")
+        String idGenerator() default "random";
+
+        @AttributeDefinition(required = false, name = "Directory levels", description = "Number of shard directory levels above the directories of the files, 0 keeps the legacy layout (a directory level for each 2 characters of the id)")
+        int directoryLevels() default 0;
+
+        @AttributeDefinition(required = false, name = "Directory level width", description = "Number of id characters naming a shard directory (2 gives 256 directories per level)")
+        int directoryLevelWidth() default DEFAULT_DIRECTORY_LEVEL_WIDTH;
+
+        @AttributeDefinition(required = false, name = "Migrate legacy layout", description = "Move the files of the legacy layout to the sharded one in the background, files are read from both layouts meanwhile")
+        boolean migrateLegacyLayout() default false;
+
+        @AttributeDefinition(required = false, name = "Rebalance roots", description = "Move the files which are placed on another root directory (after a root was added or removed) in the background, files are looked up on all roots meanwhile")
+        boolean rebalanceRoots() default false;
+
+        @AttributeDefinition(required = false, name = "Durability", description = "Durability of puts: none (files are written back by the operating system), file (each put syncs its file before it returns) or group (concurrent puts are synced together, each put waits for the sync of its group)")
+        String durability() default DURABILITY_NONE;
+
+        @AttributeDefinition(required = false, name = "Group commit interval", description = "Time to collect concurrent puts into a group before syncing them in group durability mode (milliseconds)")
+        int groupCommitInterval() default DEFAULT_GROUP_COMMIT_INTERVAL;
+
+        @AttributeDefinition(required = false, name = "Pack threshold", description = "Files up to this size are appended to shared segment files instead of files of their own (bytes), 0 disables packing")
+        int packThreshold() default 0;
+
+        @AttributeDefinition(required = false, name = "Segment size", description = "Size of the segment files packed files are appended to, a new segment is started when it is full (bytes)")
+        long segmentSize() default DEFAULT_SEGMENT_SIZE;
+
+        @AttributeDefinition(required = false, name = "Compact metadata", description = "Remove the metadata of files whose directories were deleted from the metadata log and reclaim the space of unreferenced records of the segment files in the background")
+        boolean compactMetadata() default false;
+
+        @AttributeDefinition(required = false, name = "Lookup threads", description = "Number of threads of the store checking the files of bulk existence and metadata lookups")
+        int lookupThreads() default DEFAULT_LOOKUP_THREADS;
     }
 
     public static final String DEFAULT_ROOT = System.getProperty("user.home") + "/file-store";
@@ -75,16 +138,37 @@ public class FileSystemFileStoreService implements FileStoreService {
             .maximumSize(CACHE_SIZE)
             .expireAfterWrite(10, TimeUnit.MINUTES);
     public static final String MINUS = "-";
+    public static final int DEFAULT_DIRECTORY_LEVEL_WIDTH = 2;
+    public static final String DURABILITY_NONE = "none";
+    public static final String DURABILITY_FILE = "file";
+    public static final String DURABILITY_GROUP = "group";
+    public static final int DEFAULT_GROUP_COMMIT_INTERVAL = 5;
+    public static final String TEMP_FILE_SUFFIX = ".tmp";
+    public static final long TEMP_FILE_TIMESTAMP_MARGIN = 2000;
+    public static final long DEFAULT_SEGMENT_SIZE = 1024L * 1024 * 1024;
+    public static final int DEFAULT_LOOKUP_THREADS = 8;
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
 
     private String dataStorePath = DEFAULT_ROOT;
     private String protocol;
     private File targetDir = new File(DEFAULT_ROOT);
-
-    LoadingCache<String, java.util.Properties> propertiesLoadingCache = CACHE_EXPIRE
+    private StoreRoots roots = StoreRoots.of(Collections.singletonList(targetDir));
+    private FileIdGenerator idGenerator = FileIdGenerator.RANDOM;
+    private DirectoryLayout layout = DirectoryLayout.LEGACY;
+    private ExecutorService maintenanceExecutor;
+    private ExecutorService lookupExecutor;
+    private MetadataIndex metadataIndex;
+    private boolean sync;
+    private GroupCommitter<PendingFile> groupCommitter;
+    private SegmentStore segmentStore;
+    private int packThreshold;
+    private final ReadWriteLock packLock = new ReentrantReadWriteLock();
+
+    LoadingCache<String, StoredFile> metadataLoadingCache = CACHE_EXPIRE
             .build(
-                    new CacheLoader<String, java.util.Properties>() {
-                        public java.util.Properties load(String key) throws IOException {
-                            return idToProperties(key);
+                    new CacheLoader<String, StoredFile>() {
+                        public StoredFile load(String key) throws IOException {
+                            return loadMetadata(key);
                         }
                     });
 
@@ -94,11 +178,82 @@ public class FileSystemFileStoreService implements FileStoreService {
     private ServiceRegistration<URLStreamHandlerService> urlStreamHandlerServiceServiceRegistration;
 
     @Activate
-    void activate(BundleContext context, Config config) {
+    void activate(BundleContext context, Config config) throws IOException {
         dataStorePath = config.fileSystemStoreDirectory() != null && !config.fileSystemStoreDirectory().trim().isEmpty() ? config.fileSystemStoreDirectory() : DEFAULT_ROOT;
         protocol = config.protocol() != null ? config.protocol().toLowerCase() : null;
-        targetDir = new File(dataStorePath);
-        targetDir.mkdirs();
+        List<File> rootDirectories = StoreRoots.parse(dataStorePath);
+        rootDirectories.forEach(File::mkdirs);
+        roots = StoreRoots.of(rootDirectories);
+        targetDir = roots.getPrimary();
+        idGenerator = FileIdGenerator.of(config.idGenerator());
+        layout = DirectoryLayout.of(config.directoryLevels(),
+                config.directoryLevelWidth() > 0 ? config.directoryLevelWidth() : DEFAULT_DIRECTORY_LEVEL_WIDTH);
+        if (metadataIndex != null) {
+            metadataIndex.close();
+        }
+        metadataIndex = MetadataIndex.open(targetDir);
+        metadataLoadingCache.invalidateAll();
+        if (segmentStore != null) {
+            segmentStore.close();
+        }
+        packThreshold = Math.max(0, config.packThreshold());
+        // Segments of a store which packed files earlier are opened to read them after packing was disabled
+        File segmentDir = new File(targetDir, SegmentStore.SEGMENT_DIRECTORY);
+        segmentStore = packThreshold > 0 || segmentDir.isDirectory()
+                ? SegmentStore.open(segmentDir, config.segmentSize() > 0 ? config.segmentSize() : DEFAULT_SEGMENT_SIZE)
+                : null;
+        String durability = config.durability() != null ? config.durability().toLowerCase() : DURABILITY_NONE;
+        sync = DURABILITY_FILE.equals(durability) || DURABILITY_GROUP.equals(durability);
+        if (DURABILITY_GROUP.equals(durability)) {
+            int interval = config.groupCommitInterval() > 0 ? config.groupCommitInterval() : DEFAULT_GROUP_COMMIT_INTERVAL;
+            groupCommitter = new GroupCommitter<>("FileSystemFileStoreGroupCommit", interval, this::commit, this::sync);
+        }
+        maintenanceExecutor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "FileSystemFileStoreMaintenance");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Bulk lookups block on file I/O, they do not run on the shared common pool
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdownNow();
+        }
+        lookupExecutor = Executors.newFixedThreadPool(config.lookupThreads() > 0 ? config.lookupThreads() : DEFAULT_LOOKUP_THREADS, runnable -> {
+            Thread thread = new Thread(runnable, "FileSystemFileStoreLookup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Temporary files of puts which started after the activation are kept (with a margin of the timestamp
+        // resolution of the filesystem)
+        long staleBefore = System.currentTimeMillis() - TEMP_FILE_TIMESTAMP_MARGIN;
+        maintenanceExecutor.execute(() -> {
+            try {
+                int deleted = deleteStaleTempFiles(staleBefore);
+                if (deleted > 0) {
+                    log.info("Deleted " + deleted + " temporary files of incomplete puts in " + roots.getRoots());
+                }
+            } catch (IOException e) {
+                log.warn("Could not delete temporary files of incomplete puts in " + roots.getRoots(), e);
+            }
+        });
+        if (config.migrateLegacyLayout() && !layout.isLegacy() || config.rebalanceRoots() && roots.isStriped()) {
+            maintenanceExecutor.execute(() -> {
+                try {
+                    log.info("Moved " + migrateLegacyLayout() + " files to their directories in " + roots.getRoots());
+                } catch (IOException e) {
+                    log.error("Could not migrate the files of " + roots.getRoots() + ", files are read from all directories", e);
+                }
+            });
+        }
+        if (config.compactMetadata()) {
+            maintenanceExecutor.execute(() -> {
+                try {
+                    compactMetadata();
+                    compactSegments();
+                } catch (IOException e) {
+                    log.error("Could not compact metadata of " + targetDir, e);
+                }
+            });
+        }
 
         Dictionary props = new Hashtable();
         props.put("url.handler.protocol", protocol);
@@ -111,15 +266,192 @@ public class FileSystemFileStoreService implements FileStoreService {
             urlStreamHandlerServiceServiceRegistration.unregister();
         }
         urlStreamHandlerServiceServiceRegistration = null;
+        if (maintenanceExecutor != null) {
+            maintenanceExecutor.shutdownNow();
+            try {
+                maintenanceExecutor.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        maintenanceExecutor = null;
+        if (lookupExecutor != null) {
+            lookupExecutor.shutdownNow();
+        }
+        lookupExecutor = null;
+        if (groupCommitter != null) {
+            groupCommitter.close();
+        }
+        groupCommitter = null;
+        if (metadataIndex != null) {
+            try {
+                metadataIndex.close();
+            } catch (IOException e) {
+                log.error("Could not close metadata index of " + targetDir + ", it is rebuilt at the next activation", e);
+            }
+        }
+        metadataIndex = null;
+        if (segmentStore != null) {
+            try {
+                segmentStore.close();
+            } catch (IOException e) {
+                log.error("Could not close segments of " + targetDir, e);
+            }
+        }
+        segmentStore = null;
+    }
+
+    /**
+     * Moves the files of the legacy directory layout to the configured one and the files placed on another root to
+     * their own root.
+     *
+     * @return number of moved files
+     */
+    int migrateLegacyLayout() throws IOException {
+        int moved = 0;
+        for (File root : roots.getRoots()) {
+            moved += new LayoutMigrator(root.toPath(), layout, roots).migrate();
+        }
+        return moved;
+    }
+
+    /**
+     * Deletes the temporary files of puts (and the temporary directories of moves between roots) which were not
+     * completed, left by a crash before they were renamed. Only the ones modified before the given time are deleted,
+     * the others may belong to running puts.
+     *
+     * @return number of deleted temporary files and directories
+     */
+    int deleteStaleTempFiles(long before) throws IOException {
+        int[] deleted = new int[1];
+        for (File root : roots.getRoots()) {
+            Path segments = root.toPath().resolve(SegmentStore.SEGMENT_DIRECTORY);
+            Files.walkFileTree(root.toPath(), new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) throws IOException {
+                    if (Thread.currentThread().isInterrupted()) {
+                        return FileVisitResult.TERMINATE;
+                    }
+                    if (isStaleTempFile(dir, attrs, before)) {
+                        LayoutMigrator.deleteDirectory(dir);
+                        deleted[0]++;
+                        return FileVisitResult.SKIP_SUBTREE;
+                    }
+                    return dir.equals(segments) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    if (isStaleTempFile(file, attrs, before) && Files.deleteIfExists(file)) {
+                        deleted[0]++;
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path file, IOException exc) {
+                    // Temporary files of running puts are renamed meanwhile
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+        return deleted[0];
+    }
+
+    private static boolean isStaleTempFile(Path file, BasicFileAttributes attrs, long before) {
+        String name = file.getFileName().toString();
+        return name.startsWith(".") && name.endsWith(TEMP_FILE_SUFFIX) && attrs.lastModifiedTime().toMillis() < before;
+    }
+
+    /**
+     * Removes the metadata of the files whose directories (or segments) do not exist anymore.
+     */
+    void compactMetadata() throws IOException {
+        metadataIndex.compact(file -> !file.isDeleted() && (file.isPacked()
+                ? segmentStore != null && segmentStore.contains(file.getSegment())
+                : directoryExists(file.getMetadata().getFileId())));
+        metadataLoadingCache.invalidateAll();
+    }
+
+    /**
+     * Moves the live records of the sealed segments which are mostly unreferenced (records of failed puts or of
+     * files which are not in the index anymore) to the active segment and deletes them.
+     *
+     * @return number of deleted segments
+     */
+    int compactSegments() throws IOException {
+        if (segmentStore == null) {
+            return 0;
+        }
+        Map<Integer, Long> sizes = segmentStore.getSealedSegmentSizes();
+        if (sizes.isEmpty()) {
+            return 0;
+        }
+        Map<Integer, Long> liveBytes = new HashMap<>();
+        Map<Integer, List<String>> liveFiles = new HashMap<>();
+        // Puts which appended to the sealed segments have published their records when the lock is acquired
+        packLock.writeLock().lock();
+        try {
+            metadataIndex.forEach(file -> {
+                if (sizes.containsKey(file.getSegment())) {
+                    liveBytes.merge(file.getSegment(), SegmentStore.RECORD_HEADER_SIZE + file.getMetadata().getSize(), Long::sum);
+                    liveFiles.computeIfAbsent(file.getSegment(), segment -> new ArrayList<>()).add(file.getMetadata().getFileId());
+                }
+            });
+        } finally {
+            packLock.writeLock().unlock();
+        }
+        int deleted = 0;
+        for (Map.Entry<Integer, Long> segment : sizes.entrySet()) {
+            if (Thread.currentThread().isInterrupted()) {
+                break;
+            }
+            if (liveBytes.getOrDefault(segment.getKey(), 0L) * 2 > segment.getValue()) {
+                continue;
+            }
+            // Packed puts and deletes wait until the records are moved, so the index entries cannot change meanwhile
+            packLock.writeLock().lock();
+            try {
+                List<StoredFile> moved = new ArrayList<>();
+                for (String fileId : liveFiles.getOrDefault(segment.getKey(), Collections.emptyList())) {
+                    // Files deleted since the scan are not moved
+                    StoredFile file = metadataIndex.get(fileId);
+                    if (file == null || file.getSegment() != segment.getKey()) {
+                        continue;
+                    }
+                    int length = (int) file.getMetadata().getSize();
+                    byte[] content = segmentStore.read(file.getSegment(), file.getOffset(), length);
+                    SegmentStore.Location location = segmentStore.append(fileId, content, length);
+                    moved.add(file.toBuilder().segment(location.getSegment()).offset(location.getOffset()).build());
+                }
+                // The moved records are durable before the index refers them and the old segment is deleted
+                segmentStore.forceActive();
+                for (StoredFile file : moved) {
+                    metadataIndex.put(file);
+                    metadataLoadingCache.invalidate(file.getMetadata().getFileId());
+                }
+                metadataIndex.force();
+                segmentStore.delete(segment.getKey());
+            } finally {
+                packLock.writeLock().unlock();
+            }
+            deleted++;
+        }
+        if (deleted > 0) {
+            log.info("Reclaimed " + deleted + " segments in " + targetDir);
+        }
+        return deleted;
     }
 
     @Override
     public String put(InputStream data, String fileName, String mimeType) throws IOException {
+        return put(data, fileName, mimeType, -1);
+    }
 
-        String fileId = UUID.randomUUID().toString().replaceAll(MINUS, "");
+    @Override
+    public String put(InputStream data, String fileName, String mimeType, long sizeHint) throws IOException {
 
-        File fileDir = idToDirectory(fileId);
-        fileDir.mkdirs();
+        String fileId = idGenerator.get().replaceAll(MINUS, "");
 
         String fn = fileName;
         String mt = mimeType;
@@ -138,79 +470,405 @@ public class FileSystemFileStoreService implements FileStoreService {
             mt = "application/octet-stream";
         }
 
+        InputStream content = data;
+        if (packThreshold > 0 && sizeHint <= packThreshold && MetadataIndex.isIndexable(fileId)) {
+            // One byte more than the threshold is read to decide whether the file is small enough to pack. The buffer
+            // grows with the content read, so a large threshold is not allocated for each put.
+            byte[] head = new byte[(int) Math.min(packThreshold + 1L, sizeHint >= 0 ? sizeHint + 1 : COPY_BUFFER_SIZE)];
+            int length = ByteStreams.read(data, head, 0, head.length);
+            while (length == head.length && length <= packThreshold) {
+                head = Arrays.copyOf(head, (int) Math.min(packThreshold + 1L, head.length * 2L));
+                length += ByteStreams.read(data, head, length, head.length - length);
+            }
+            if (length <= packThreshold) {
+                putPacked(fileId, fn, mt, head, length);
+                return fileId;
+            }
+            content = new SequenceInputStream(new ByteArrayInputStream(head, 0, length), data);
+        }
+
+        File fileDir = idToDirectory(fileId);
+        fileDir.mkdirs();
         File dataFile = new File(fileDir, fn);
 
-        java.util.Properties properties = new java.util.Properties();
-        properties.put(FILE_NAME, fn);
-        properties.put(MIME_TYPE, mt);
-        properties.put(CREATE_DATE, String.valueOf(System.currentTimeMillis()));
-        properties.put(SIZE, Long.toString(Files.copy(data, Paths.get(dataFile.getAbsolutePath()))).toString());
-        properties.store(new FileOutputStream(idToPropertyFile(fileId)), "This is generated file metainfo, do not edit");
+        // The content is written to a temporary file, it is renamed to the data file when it is complete
+        Path tempFile = new File(fileDir, "." + fileId + TEMP_FILE_SUFFIX).toPath();
+        FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        try {
+            CRC32C checksum = new CRC32C();
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            long size = 0;
+            int count;
+            while ((count = content.read(buffer)) >= 0) {
+                checksum.update(buffer, 0, count);
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, count);
+                while (chunk.hasRemaining()) {
+                    channel.write(chunk);
+                }
+                size += count;
+            }
+            StoredFile storedFile = StoredFile.builder()
+                    .metadata(FileMetadata.builder()
+                            .fileId(fileId)
+                            .fileName(fn)
+                            .mimeType(mt)
+                            .createTime(new Date())
+                            .size(size)
+                            .checksum(String.format("%08x", checksum.getValue()))
+                            .build())
+                    .build();
+            publish(new PendingFile(channel, tempFile, dataFile.toPath(), storedFile));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            Files.deleteIfExists(tempFile);
+            throw e;
+        }
 
         return fileId;
     }
 
+    /**
+     * Appends a small file to the active segment. A record of a failed put is not referred by the index, its space is
+     * reclaimed by the segment compaction.
+     */
+    private void putPacked(String fileId, String fileName, String mimeType, byte[] data, int length) throws IOException {
+        CRC32C checksum = new CRC32C();
+        checksum.update(data, 0, length);
+        packLock.readLock().lock();
+        try {
+            SegmentStore.Location location = segmentStore.append(fileId, data, length);
+            StoredFile storedFile = StoredFile.builder()
+                    .metadata(FileMetadata.builder()
+                            .fileId(fileId)
+                            .fileName(fileName)
+                            .mimeType(mimeType)
+                            .createTime(new Date())
+                            .size(length)
+                            .checksum(String.format("%08x", checksum.getValue()))
+                            .build())
+                    .segment(location.getSegment())
+                    .offset(location.getOffset())
+                    .build();
+            publish(new PendingFile(null, null, null, storedFile));
+        } finally {
+            packLock.readLock().unlock();
+        }
+    }
+
+    private void publish(PendingFile pendingFile) throws IOException {
+        if (groupCommitter != null) {
+            groupCommitter.commit(pendingFile);
+        } else {
+            commit(pendingFile);
+            sync(Collections.singletonList(pendingFile));
+        }
+        metadataLoadingCache.put(pendingFile.getStoredFile().getMetadata().getFileId(), pendingFile.getStoredFile());
+    }
+
+    /**
+     * Publishes a written file: syncs its content (when durability is configured), renames it to its data file and
+     * appends its metadata, which makes it visible. The channel of the file is closed even if it fails.
+     */
+    private void commit(PendingFile file) throws IOException {
+        if (!file.getStoredFile().isPacked()) {
+            try {
+                if (sync) {
+                    file.getChannel().force(false);
+                }
+            } finally {
+                file.getChannel().close();
+            }
+            Files.move(file.getTempFile(), file.getDataFile(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        try {
+            metadataIndex.put(file.getStoredFile());
+        } catch (IOException | RuntimeException e) {
+            if (!file.getStoredFile().isPacked()) {
+                Files.deleteIfExists(file.getDataFile());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Syncs the directory entries, the segments of packed files and the metadata log of the committed files once for
+     * all of them. The files are deleted when it fails, their writers get the failure.
+     */
+    private void sync(List<PendingFile> files) throws IOException {
+        if (!sync) {
+            return;
+        }
+        Set<Path> directories = new LinkedHashSet<>();
+        Set<Integer> segments = new LinkedHashSet<>();
+        for (PendingFile file : files) {
+            if (file.getStoredFile().isPacked()) {
+                segments.add(file.getStoredFile().getSegment());
+            } else {
+                // The directory of the file and its entry in the parent directory are new
+                directories.add(file.getDataFile().getParent());
+                directories.add(file.getDataFile().getParent().getParent());
+            }
+        }
+        try {
+            for (Integer segment : segments) {
+                segmentStore.force(segment);
+            }
+            directories.forEach(FileSystemFileStoreService::syncDirectory);
+            metadataIndex.force();
+        } catch (IOException | RuntimeException e) {
+            for (PendingFile file : files) {
+                try {
+                    metadataIndex.put(file.getStoredFile().toBuilder().segment(StoredFile.DELETED_SEGMENT).offset(0).build());
+                    if (!file.getStoredFile().isPacked()) {
+                        Files.deleteIfExists(file.getDataFile());
+                    }
+                } catch (IOException | RuntimeException rollback) {
+                    log.error("Could not delete file " + file.getStoredFile().getMetadata().getFileId() + " of a failed commit", rollback);
+                }
+            }
+            throw e;
+        }
+    }
+
+    private static void syncDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // Directories cannot be opened on some platforms
+            log.debug("Could not sync directory " + directory, e);
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static final class PendingFile {
+
+        private final FileChannel channel;
+
+        private final Path tempFile;
+
+        private final Path dataFile;
+
+        private final StoredFile storedFile;
+    }
+
+    /**
+     * Deletes a file: a deleted marker supersedes its metadata in the index, then its directory is deleted from all
+     * roots. The record of a packed file is not referred anymore, its space is reclaimed by the segment compaction.
+     */
+    @Override
+    public void delete(String id) throws IOException {
+        Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
+        String fileId = getStrippedId(id);
+        if (MetadataIndex.isIndexable(fileId)) {
+            StoredFile storedFile;
+            try {
+                storedFile = getStoredFile(fileId);
+            } catch (IOException e) {
+                storedFile = null;
+            }
+            if (storedFile != null) {
+                packLock.readLock().lock();
+                try {
+                    metadataIndex.put(storedFile.toBuilder().segment(StoredFile.DELETED_SEGMENT).offset(0).build());
+                    if (sync) {
+                        metadataIndex.force();
+                    }
+                } finally {
+                    packLock.readLock().unlock();
+                }
+            }
+        }
+        metadataLoadingCache.invalidate(fileId);
+        for (File root : roots.getRoots()) {
+            LayoutMigrator.deleteDirectory(new File(root, layout.path(fileId)).toPath());
+            LayoutMigrator.deleteDirectory(new File(root, DirectoryLayout.legacyPath(fileId)).toPath());
+        }
+    }
+
     @Override
     public boolean exists(String id) {
         Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
         String fileId = getStrippedId(id);
         try {
-            return idToDataFile(fileId).exists();
+            StoredFile storedFile = getStoredFile(fileId);
+            if (storedFile.isPacked()) {
+                return true;
+            }
+            String fileName = storedFile.getMetadata().getFileName();
+            return readFile(fileId, directory -> {
+                File dataFile = new File(directory, fileName);
+                if (!dataFile.exists()) {
+                    throw new NoSuchFileException(dataFile.getPath());
+                }
+                return true;
+            });
         } catch (IOException e) {
             return false;
         }
     }
 
+    @Override
+    public Set<String> existing(Collection<String> ids) {
+        Objects.requireNonNull(ids, FILE_ID_CANNOT_BE_NULL);
+        return lookupAll(ids, id -> exists(id) ? Boolean.TRUE : null).keySet();
+    }
+
     @Override
     public InputStream get(String id) throws IOException {
         Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
         String fileId = getStrippedId(id);
-        return Files.newInputStream(idToDataFile(fileId).toPath());
+        StoredFile storedFile = getStoredFile(fileId);
+        if (storedFile.isPacked()) {
+            return new ByteArrayInputStream(readPacked(storedFile));
+        }
+        String fileName = storedFile.getMetadata().getFileName();
+        return readFile(fileId, directory -> Files.newInputStream(new File(directory, fileName).toPath()));
     }
 
     @Override
-    public String getMimeType(String id) throws IOException {
+    public InputStream get(String id, long offset, long length) throws IOException {
         Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
         String fileId = getStrippedId(id);
+        StoredFile storedFile = getStoredFile(fileId);
+        if (storedFile.isPacked()) {
+            byte[] content = readPacked(storedFile);
+            int start = (int) Math.min(offset, content.length);
+            int count = length >= 0 && length < content.length - start ? (int) length : content.length - start;
+            return new ByteArrayInputStream(content, start, count);
+        }
+        String fileName = storedFile.getMetadata().getFileName();
+        FileChannel channel = readFile(fileId, directory -> FileChannel.open(new File(directory, fileName).toPath(), StandardOpenOption.READ));
         try {
-            return (String) propertiesLoadingCache.get(fileId).get(MIME_TYPE);
-        } catch (ExecutionException e) {
-            throw new IOException(COULD_NOT_GET_PROPERTIES_FOR + fileId);
+            channel.position(offset);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
         }
+        InputStream in = Channels.newInputStream(channel);
+        return length >= 0 ? ByteStreams.limit(in, length) : in;
     }
 
     @Override
-    public String getFileName(String id) throws IOException {
+    public SeekableByteChannel openChannel(String id) throws IOException {
+        FileChannel channel = openFileChannel(id);
+        return channel != null ? channel : FileStoreService.super.openChannel(id);
+    }
+
+    @Override
+    public FileChannel openFileChannel(String id) throws IOException {
         Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
         String fileId = getStrippedId(id);
-        try {
-            return (String) propertiesLoadingCache.get(fileId).get(FILE_NAME);
-        } catch (ExecutionException e) {
-            throw new IOException(COULD_NOT_GET_PROPERTIES_FOR + fileId);
+        StoredFile storedFile = getStoredFile(fileId);
+        if (storedFile.isPacked()) {
+            return null;
         }
+        String fileName = storedFile.getMetadata().getFileName();
+        return readFile(fileId, directory -> FileChannel.open(new File(directory, fileName).toPath(), StandardOpenOption.READ));
+    }
+
+    @Override
+    public String getMimeType(String id) throws IOException {
+        return getMetadata(id).getMimeType();
+    }
+
+    @Override
+    public String getFileName(String id) throws IOException {
+        return getMetadata(id).getFileName();
     }
 
     @Override
     public long getSize(String id) throws IOException {
+        return getMetadata(id).getSize();
+    }
+
+    @Override
+    public Date getCreateTime(String id) throws IOException {
+        return getMetadata(id).getCreateTime();
+    }
+
+    @Override
+    public FileMetadata getMetadata(String id) throws IOException {
         Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
-        String fileId = getStrippedId(id);
+        return getStoredFile(getStrippedId(id)).getMetadata();
+    }
+
+    private StoredFile getStoredFile(String fileId) throws IOException {
+        StoredFile storedFile;
         try {
-            return Long.parseLong((String) propertiesLoadingCache.get(fileId).get(SIZE));
-        } catch (ExecutionException | NumberFormatException e) {
+            storedFile = metadataLoadingCache.get(fileId);
+        } catch (ExecutionException | UncheckedExecutionException e) {
             throw new IOException(COULD_NOT_GET_PROPERTIES_FOR + fileId);
         }
+        if (storedFile.isDeleted()) {
+            throw new NoSuchFileException(fileId);
+        }
+        return storedFile;
+    }
+
+    /**
+     * Reads the content of a packed file, the location is looked up again when the segment was compacted meanwhile.
+     */
+    private byte[] readPacked(StoredFile storedFile) throws IOException {
+        if (segmentStore == null) {
+            throw new NoSuchFileException(storedFile.getMetadata().getFileId());
+        }
+        try {
+            return segmentStore.read(storedFile.getSegment(), storedFile.getOffset(), (int) storedFile.getMetadata().getSize());
+        } catch (NoSuchFileException | ClosedChannelException e) {
+            String fileId = storedFile.getMetadata().getFileId();
+            metadataLoadingCache.invalidate(fileId);
+            StoredFile moved = getStoredFile(fileId);
+            return segmentStore.read(moved.getSegment(), moved.getOffset(), (int) moved.getMetadata().getSize());
+        }
     }
 
     @Override
-    public Date getCreateTime(String id) throws IOException {
-        Objects.requireNonNull(id, FILE_ID_CANNOT_BE_NULL);
-        String fileId = getStrippedId(id);
+    public Map<String, FileMetadata> getMetadata(Collection<String> ids) {
+        Objects.requireNonNull(ids, FILE_ID_CANNOT_BE_NULL);
+        return lookupAll(ids, id -> {
+            try {
+                return getMetadata(id);
+            } catch (IOException e) {
+                log.debug(COULD_NOT_GET_PROPERTIES_FOR + id, e);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs the lookup of each id on the lookup executor and waits for all of them. Ids whose lookup returns
+     * <code>null</code> are missing from the result.
+     */
+    private <T> Map<String, T> lookupAll(Collection<String> ids, Function<String, T> lookup) {
+        Map<String, T> results = new ConcurrentHashMap<>();
+        List<Future<?>> lookups = ids.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .map(id -> lookupExecutor.submit(() -> {
+                    T result = lookup.apply(id);
+                    if (result != null) {
+                        results.put(id, result);
+                    }
+                }))
+                .collect(Collectors.toList());
         try {
-            Long createTime = Long.parseLong((String) propertiesLoadingCache.get(fileId).get(CREATE_DATE));
-            return new Date(createTime);
-        } catch (ExecutionException | NumberFormatException e) {
-            throw new IOException(COULD_NOT_GET_PROPERTIES_FOR + fileId);
+            for (Future<?> future : lookups) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            lookups.forEach(future -> future.cancel(true));
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while looking up files", e);
+        } catch (ExecutionException e) {
+            lookups.forEach(future -> future.cancel(true));
+            Throwables.throwIfUnchecked(e.getCause());
+            throw new IllegalStateException("Could not look up files", e.getCause());
         }
+        return results;
     }
 
     @Override
@@ -226,42 +884,120 @@ public class FileSystemFileStoreService implements FileStoreService {
     }
 
     private File idToDirectory(String fileId) {
-        return new File(targetDir, idToPath(fileId));
+        return new File(roots.owner(fileId), layout.path(fileId));
+    }
+
+    /**
+     * Checks whether the directory of the file exists on any root in any layout. The directories which files are
+     * moved from by the migration are checked first (other roots, then the legacy layout), a moved directory exists
+     * at its target before it is deleted.
+     */
+    private boolean directoryExists(String fileId) {
+        File owner = roots.owner(fileId);
+        for (File root : roots.getRoots()) {
+            if (!root.equals(owner) && (new File(root, DirectoryLayout.legacyPath(fileId)).isDirectory()
+                    || new File(root, layout.path(fileId)).isDirectory())) {
+                return true;
+            }
+        }
+        return new File(owner, DirectoryLayout.legacyPath(fileId)).isDirectory()
+                || new File(owner, layout.path(fileId)).isDirectory();
     }
 
-    private File idToPropertyFile(String fileId) {
-        return new File(idToDirectory(fileId), FILE_PROPERTIES);
+    /**
+     * Looks up the metadata in the index. Files stored before the index have a properties file in their directory,
+     * its content is added to the index at the first lookup.
+     */
+    private StoredFile loadMetadata(String fileId) throws IOException {
+        StoredFile storedFile = metadataIndex.get(fileId);
+        if (storedFile != null) {
+            return storedFile;
+        }
+        FileMetadata metadata;
+        java.util.Properties properties = readFile(fileId, this::directoryToProperties);
+        try {
+            metadata = FileMetadata.builder()
+                    .fileId(fileId)
+                    .fileName((String) properties.get(FILE_NAME))
+                    .mimeType((String) properties.get(MIME_TYPE))
+                    .size(Long.parseLong((String) properties.get(SIZE)))
+                    .createTime(new Date(Long.parseLong((String) properties.get(CREATE_DATE))))
+                    .build();
+        } catch (NumberFormatException e) {
+            throw new IOException(COULD_NOT_GET_PROPERTIES_FOR + fileId, e);
+        }
+        storedFile = StoredFile.builder().metadata(metadata).build();
+        if (MetadataIndex.isIndexable(fileId)) {
+            metadataIndex.put(storedFile);
+        }
+        return storedFile;
     }
 
-    private java.util.Properties idToProperties(String fileId) throws IOException {
+    private java.util.Properties directoryToProperties(File directory) throws IOException {
         java.util.Properties properties = new java.util.Properties();
-        properties.load(new FileInputStream(idToPropertyFile(fileId)));
+        try (InputStream in = new FileInputStream(new File(directory, FILE_PROPERTIES))) {
+            properties.load(in);
+        }
         return properties;
     }
 
-    private File idToDataFile(String fileId) throws IOException {
-        return new File(idToDirectory(fileId), (String) idToProperties(fileId).get(FILE_NAME));
+    /**
+     * Reads a file from its directory on its own root. Files which are placed on another root are read from there
+     * until the rebalancing moves them, the own root is tried again when the file is moved meanwhile.
+     */
+    private <T> T readFile(String fileId, DirectoryReader<T> reader) throws IOException {
+        File owner = roots.owner(fileId);
+        try {
+            return readFile(owner, fileId, reader);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            if (!roots.isStriped()) {
+                throw e;
+            }
+            for (File root : roots.getRoots()) {
+                if (!root.equals(owner) && (new File(root, layout.path(fileId)).exists()
+                        || new File(root, DirectoryLayout.legacyPath(fileId)).exists())) {
+                    try {
+                        return readFile(root, fileId, reader);
+                    } catch (FileNotFoundException | NoSuchFileException moved) {
+                        log.trace("File " + fileId + " moved from " + root);
+                    }
+                }
+            }
+            return readFile(owner, fileId, reader);
+        }
+    }
+
+    /**
+     * Reads a file from its directory on a root, files which are not in the configured layout are read from the
+     * legacy one. The other directory is tried when the file is moved by the layout migration meanwhile.
+     */
+    private <T> T readFile(File root, String fileId, DirectoryReader<T> reader) throws IOException {
+        File directory = new File(root, layout.path(fileId));
+        if (layout.isLegacy()) {
+            return reader.read(directory);
+        }
+        File legacyDirectory = new File(root, DirectoryLayout.legacyPath(fileId));
+        boolean legacy = !directory.exists() && legacyDirectory.exists();
+        try {
+            return reader.read(legacy ? legacyDirectory : directory);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            File other = legacy ? directory : legacyDirectory;
+            if (!other.exists()) {
+                throw e;
+            }
+            return reader.read(other);
+        }
     }
 
-    private String idToPath(String fileId) {
-        return join(File.separator, fileId.split("(?<=\\G.{2})"));
+    @FunctionalInterface
+    private interface DirectoryReader<T> {
+        T read(File directory) throws IOException;
     }
 
     static boolean isNullOrEmpty(String string) {
         return string == null || string.isEmpty();
     }
 
-    static String join(String separator, String[] items) {
-        StringBuilder sb = new StringBuilder();
-        for (String part : items) {
-            if (sb.length() != 0) {
-                sb.append(separator);
-            }
-            sb.append(part);
-        }
-        return sb.toString();
-    }
-
     private String getStrippedId(String id) {
         String cleanedId = id;
         if (id != null && id.startsWith(getProtocol()) && id.split(":").length >= 2) {
@@ -0,0 +1,174 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * Commits the items of concurrent writers together on a single thread. Writers block until the group containing
+ * their item is committed, items submitted while a group is committed (or within the interval after the first item
+ * of a group) form the next group. Each item is committed separately, so a failing item fails its own writer only,
+ * then the committed items of the group are synced once.
+ */
+@Slf4j
+class GroupCommitter<T> implements Closeable {
+
+    @FunctionalInterface
+    interface Commit<T> {
+        void commit(T item) throws IOException;
+    }
+
+    @FunctionalInterface
+    interface Sync<T> {
+        void sync(List<T> items) throws IOException;
+    }
+
+    private final Commit<T> commit;
+
+    private final Sync<T> sync;
+
+    private final long intervalMillis;
+
+    private final Object lock = new Object();
+
+    private final Thread thread;
+
+    private List<Pending<T>> pending = new ArrayList<>();
+
+    private boolean closed;
+
+    GroupCommitter(String name, long intervalMillis, Commit<T> commit, Sync<T> sync) {
+        this.commit = commit;
+        this.sync = sync;
+        this.intervalMillis = intervalMillis;
+        this.thread = new Thread(this::run, name);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Submits an item and waits until its group is committed.
+     */
+    void commit(T item) throws IOException {
+        CompletableFuture<Void> committed = new CompletableFuture<>();
+        synchronized (lock) {
+            if (closed) {
+                throw new IOException("Group committer is closed");
+            }
+            pending.add(new Pending<>(item, committed));
+            lock.notifyAll();
+        }
+        try {
+            committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for group commit");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Group commit failed", e.getCause());
+        }
+    }
+
+    private void run() {
+        while (true) {
+            List<Pending<T>> group;
+            try {
+                synchronized (lock) {
+                    while (pending.isEmpty() && !closed) {
+                        lock.wait();
+                    }
+                    if (pending.isEmpty()) {
+                        return;
+                    }
+                }
+                if (intervalMillis > 0) {
+                    Thread.sleep(intervalMillis);
+                }
+            } catch (InterruptedException e) {
+                // Items submitted before are committed anyway
+                log.trace("Group commit wait interrupted");
+            }
+            synchronized (lock) {
+                group = pending;
+                pending = new ArrayList<>();
+            }
+            if (group.isEmpty()) {
+                continue;
+            }
+            List<Pending<T>> committed = new ArrayList<>(group.size());
+            for (Pending<T> item : group) {
+                try {
+                    commit.commit(item.getItem());
+                    committed.add(item);
+                } catch (IOException | RuntimeException e) {
+                    item.getCommitted().completeExceptionally(e);
+                }
+            }
+            if (committed.isEmpty()) {
+                continue;
+            }
+            try {
+                sync.sync(committed.stream().map(Pending::getItem).collect(Collectors.toList()));
+                committed.forEach(item -> item.getCommitted().complete(null));
+            } catch (IOException | RuntimeException e) {
+                committed.forEach(item -> item.getCommitted().completeExceptionally(e));
+            }
+        }
+    }
+
+    /**
+     * Commits the pending items and stops the committer thread.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    private static final class Pending<T> {
+
+        private final T item;
+
+        private final CompletableFuture<Void> committed;
+    }
+}
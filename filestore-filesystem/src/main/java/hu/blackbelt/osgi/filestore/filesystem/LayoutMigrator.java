@@ -0,0 +1,182 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Moves the file directories of the legacy layout to the sharded one and the file directories placed on other roots to
+ * their own root while the store is in use. A file directory is moved with a single rename (directories moved to
+ * another root are copied next to their target first), readers which resolved the old directory before retry with
+ * the new one.
+ */
+@Slf4j
+class LayoutMigrator {
+
+    private final Path root;
+
+    private final DirectoryLayout layout;
+
+    private final StoreRoots roots;
+
+    LayoutMigrator(Path root, DirectoryLayout layout, StoreRoots roots) {
+        this.root = root;
+        this.layout = layout;
+        this.roots = roots;
+    }
+
+    /**
+     * Migrates all files of the root which are not in the configured layout or not on their own root and removes the
+     * emptied legacy directories (the ones which are not reused by the sharded layout).
+     *
+     * @return number of moved files
+     */
+    int migrate() throws IOException {
+        if (layout.isLegacy() && !roots.isStriped()) {
+            return 0;
+        }
+        Set<Path> fileDirectories = new HashSet<>();
+        Path segments = root.resolve(SegmentStore.SEGMENT_DIRECTORY);
+        int[] moved = new int[1];
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return FileVisitResult.TERMINATE;
+                }
+                // Packed files are not in directories of their own
+                return dir.equals(segments) ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                // Files in the root are the metadata of the store, other files are in the directories of stored files
+                if (!file.getParent().equals(root)) {
+                    fileDirectories.add(file.getParent());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                if (dir.equals(root)) {
+                    return FileVisitResult.CONTINUE;
+                }
+                Path relative = root.relativize(dir);
+                if (fileDirectories.remove(dir)) {
+                    if (move(dir, relative)) {
+                        moved[0]++;
+                    }
+                } else if (!layout.isLegacy() && relative.getNameCount() > layout.getLevels()
+                        && dir.getFileName().toString().length() <= DirectoryLayout.LEGACY_WIDTH) {
+                    // Shard and file directories of the sharded layout may be created by a concurrent put at any time,
+                    // directories of the legacy layout are kept as they may be created by a put too
+                    try {
+                        Files.deleteIfExists(dir);
+                    } catch (IOException e) {
+                        log.trace("Directory is not empty: " + dir);
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return moved[0];
+    }
+
+    private boolean move(Path dir, Path relative) throws IOException {
+        String id = dir.getFileName().toString();
+        if (!relative.toString().equals(layout.path(id))) {
+            StringBuilder fileId = new StringBuilder();
+            relative.forEach(name -> fileId.append(name.toString()));
+            id = fileId.toString();
+            if (!relative.toString().equals(DirectoryLayout.legacyPath(id))) {
+                log.warn("Unknown file directory: " + dir);
+                return false;
+            }
+        }
+        Path targetRoot = roots.owner(id).toPath();
+        Path target = targetRoot.resolve(layout.path(id));
+        if (target.equals(dir)) {
+            // Already in the configured layout on its own root (or too short id to shard)
+            return false;
+        }
+        if (Files.exists(target)) {
+            log.warn("File " + id + " exists in two directories, " + dir + " is kept");
+            return false;
+        }
+        Files.createDirectories(target.getParent());
+        if (targetRoot.equals(root)) {
+            Files.move(dir, target, StandardCopyOption.ATOMIC_MOVE);
+        } else {
+            moveToRoot(dir, target);
+        }
+        return true;
+    }
+
+    /**
+     * Copies a file directory next to its target on another root, renames it to the target and deletes the original.
+     */
+    private static void moveToRoot(Path dir, Path target) throws IOException {
+        Path copy = target.resolveSibling("." + target.getFileName() + FileSystemFileStoreService.TEMP_FILE_SUFFIX);
+        try {
+            Files.createDirectory(copy);
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                for (Path file : files) {
+                    Path copied = copy.resolve(file.getFileName());
+                    Files.copy(file, copied, StandardCopyOption.COPY_ATTRIBUTES);
+                    try (FileChannel channel = FileChannel.open(copied, StandardOpenOption.WRITE)) {
+                        channel.force(true);
+                    }
+                }
+            }
+            Files.move(copy, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteDirectory(copy);
+            throw e;
+        }
+        deleteDirectory(dir);
+    }
+
+    static void deleteDirectory(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+}
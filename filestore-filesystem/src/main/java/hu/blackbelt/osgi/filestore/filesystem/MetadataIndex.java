@@ -0,0 +1,540 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Metadata of the files in an append-only log with a memory mapped open addressing hash index keyed on the 128 bit
+ * file id.
+ *
+ * <p>Log records are <code>length, CRC32, body</code> frames. Index slots are <code>id high bits, id low bits,
+ * log offset + 1</code> (0 marks an empty slot) with linear probing. The index is marked clean only when it is
+ * closed, an index which is not clean (or does not cover the whole log) is rebuilt by scanning the log, a torn record
+ * at the end of the log is truncated and corrupt records before valid ones are skipped. The log is compacted at
+ * opening when most of its records are superseded.</p>
+ */
+@Slf4j
+class MetadataIndex implements Closeable {
+
+    static final String LOG_FILE = "metadata.log";
+    static final String INDEX_FILE = "metadata.idx";
+
+    private static final int MAGIC = 0x46534d49;
+    private static final int VERSION = 1;
+    private static final byte RECORD_VERSION = 3;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int COUNT_OFFSET = 12;
+    private static final int RECORDS_OFFSET = 16;
+    private static final int LOG_LENGTH_OFFSET = 24;
+    private static final int CLEAN_OFFSET = 32;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 24;
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int MAX_CAPACITY = 1 << 26;
+    private static final double MAX_LOAD = 0.7;
+    private static final int FRAME_HEADER_SIZE = 8;
+    private static final int MAX_RECORD_SIZE = 256 * 1024;
+    private static final int SCAN_WINDOW_SIZE = 64 * 1024;
+    private static final int COMPACTION_SLACK = 1024;
+
+    private final File directory;
+
+    private final File logFile;
+
+    private final File indexFile;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private FileChannel logChannel;
+
+    private long logLength;
+
+    private MappedByteBuffer index;
+
+    private int capacity;
+
+    private int count;
+
+    private long records;
+
+    private MetadataIndex(File directory) {
+        this.directory = directory;
+        this.logFile = new File(directory, LOG_FILE);
+        this.indexFile = new File(directory, INDEX_FILE);
+    }
+
+    /**
+     * Opens (or creates) the metadata of the given directory, the index is only mapped if it was closed cleanly.
+     */
+    static MetadataIndex open(File directory) throws IOException {
+        MetadataIndex metadataIndex = new MetadataIndex(directory);
+        metadataIndex.load();
+        return metadataIndex;
+    }
+
+    private void load() throws IOException {
+        logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        logLength = logChannel.size();
+        if (!mapExisting()) {
+            log.info("Rebuilding metadata index of " + directory);
+            rebuild();
+        }
+        index.put(CLEAN_OFFSET, (byte) 0);
+        index.force();
+        if (records > 2L * count + COMPACTION_SLACK) {
+            compact(file -> true);
+        }
+    }
+
+    private boolean mapExisting() throws IOException {
+        if (!indexFile.isFile() || indexFile.length() < HEADER_SIZE) {
+            return false;
+        }
+        MappedByteBuffer existing;
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            existing = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        int existingCapacity = existing.getInt(CAPACITY_OFFSET);
+        if (existing.getInt(MAGIC_OFFSET) != MAGIC || existing.getInt(VERSION_OFFSET) != VERSION
+                || existing.get(CLEAN_OFFSET) != 1 || existing.getLong(LOG_LENGTH_OFFSET) != logLength
+                || existingCapacity <= 0 || Integer.bitCount(existingCapacity) != 1
+                || existing.capacity() != HEADER_SIZE + (long) existingCapacity * SLOT_SIZE) {
+            return false;
+        }
+        index = existing;
+        capacity = existingCapacity;
+        count = existing.getInt(COUNT_OFFSET);
+        records = existing.getLong(RECORDS_OFFSET);
+        return true;
+    }
+
+    /**
+     * Builds a new index from the valid records of the log. Invalid bytes followed by a valid record (a corrupt record)
+     * are skipped, invalid bytes at the end of the log (a torn append) are truncated.
+     */
+    private void rebuild() throws IOException {
+        index = createIndex(INITIAL_CAPACITY);
+        capacity = INITIAL_CAPACITY;
+        count = 0;
+        records = 0;
+        long position = 0;
+        while (position < logLength) {
+            ByteBuffer body = readBody(position);
+            if (body == null) {
+                long next = findRecord(position + 1);
+                if (next < 0) {
+                    log.warn("Truncating metadata log of " + directory + " at " + position + " of " + logLength + " bytes");
+                    logChannel.truncate(position);
+                    logLength = position;
+                    break;
+                }
+                // The skipped bytes are removed by the next compaction
+                log.error("Skipping corrupt metadata records of " + directory + " at " + position + " (" + (next - position) + " bytes)");
+                position = next;
+                continue;
+            }
+            insert(body.getLong(1), body.getLong(9), position);
+            records++;
+            position += FRAME_HEADER_SIZE + body.capacity();
+        }
+        writeHeader();
+    }
+
+    /**
+     * Returns the offset of the first valid record at or after the given offset, or -1 if there is none. The log is
+     * read in windows, a record is verified only where its length and version are plausible.
+     */
+    private long findRecord(long from) throws IOException {
+        ByteBuffer window = ByteBuffer.allocate(SCAN_WINDOW_SIZE);
+        for (long start = from; start + FRAME_HEADER_SIZE < logLength; start += SCAN_WINDOW_SIZE - FRAME_HEADER_SIZE) {
+            window.clear();
+            window.limit((int) Math.min(SCAN_WINDOW_SIZE, logLength - start));
+            readFully(window, start);
+            for (int i = 0; i + FRAME_HEADER_SIZE < window.limit(); i++) {
+                int length = window.getInt(i);
+                if (length > 0 && length <= MAX_RECORD_SIZE && window.get(i + FRAME_HEADER_SIZE) == RECORD_VERSION
+                        && readBody(start + i) != null) {
+                    return start + i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Appends the metadata of a file, it supersedes the previous metadata of the same id.
+     */
+    void put(StoredFile file) throws IOException {
+        long[] key = key(file.getMetadata().getFileId());
+        if (key == null) {
+            throw new IllegalArgumentException("File id is not a 128 bit hexadecimal number: " + file.getMetadata().getFileId());
+        }
+        ByteBuffer frame = encode(key, file);
+        lock.writeLock().lock();
+        try {
+            long offset = logLength;
+            try {
+                while (frame.hasRemaining()) {
+                    logLength += logChannel.write(frame, logLength);
+                }
+            } catch (IOException e) {
+                // A partial record would hide the following ones from the recovery
+                logChannel.truncate(offset);
+                logLength = offset;
+                throw e;
+            }
+            insert(key[0], key[1], offset);
+            records++;
+            writeHeader();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Returns the metadata of the given file id or <code>null</code> if it is not in the index.
+     */
+    StoredFile get(String fileId) throws IOException {
+        long[] key = key(fileId);
+        if (key == null) {
+            return null;
+        }
+        lock.readLock().lock();
+        try {
+            long offset = index.getLong(slotPosition(find(key[0], key[1])) + 16) - 1;
+            if (offset < 0) {
+                return null;
+            }
+            ByteBuffer body = readBody(offset);
+            if (body == null) {
+                throw new IOException("Corrupt metadata record of " + fileId);
+            }
+            return decode(body);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Calls the consumer with the current metadata of each file.
+     */
+    void forEach(Consumer<StoredFile> consumer) throws IOException {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                long offset = index.getLong(slotPosition(slot) + 16) - 1;
+                ByteBuffer body = offset >= 0 ? readBody(offset) : null;
+                if (body != null) {
+                    consumer.accept(decode(body));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrites the log with the current metadata of the files which are retained and rebuilds the index.
+     */
+    void compact(Predicate<StoredFile> retain) throws IOException {
+        lock.writeLock().lock();
+        try {
+            File compacted = new File(directory, LOG_FILE + ".compact");
+            long retained = 0;
+            try (FileChannel out = FileChannel.open(compacted.toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                for (int slot = 0; slot < capacity; slot++) {
+                    long offset = index.getLong(slotPosition(slot) + 16) - 1;
+                    ByteBuffer body = offset >= 0 ? readBody(offset) : null;
+                    if (body != null && retain.test(decode(body))) {
+                        ByteBuffer frame = frame(body);
+                        while (frame.hasRemaining()) {
+                            out.write(frame);
+                        }
+                        retained++;
+                    }
+                }
+                out.force(true);
+            }
+            log.info("Compacting metadata log of " + directory + ", " + retained + " of " + records + " records are retained");
+            logChannel.close();
+            Files.move(compacted.toPath(), logFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            logChannel = FileChannel.open(logFile.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            logLength = logChannel.size();
+            rebuild();
+            index.force();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Forces the appended records to the storage device.
+     */
+    void force() throws IOException {
+        lock.readLock().lock();
+        try {
+            logChannel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (!logChannel.isOpen()) {
+                return;
+            }
+            logChannel.force(true);
+            writeHeader();
+            index.put(CLEAN_OFFSET, (byte) 1);
+            index.force();
+            logChannel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    static boolean isIndexable(String fileId) {
+        return key(fileId) != null;
+    }
+
+    private void insert(long high, long low, long offset) throws IOException {
+        if (count + 1 > capacity * MAX_LOAD) {
+            resize(capacity * 2);
+        }
+        int position = slotPosition(find(high, low));
+        if (index.getLong(position + 16) == 0) {
+            count++;
+        }
+        index.putLong(position, high);
+        index.putLong(position + 8, low);
+        index.putLong(position + 16, offset + 1);
+    }
+
+    /**
+     * Returns the slot of the given id or the empty slot where it has to be inserted.
+     */
+    private int find(long high, long low) {
+        int mask = capacity - 1;
+        int slot = hash(high, low) & mask;
+        while (true) {
+            int position = slotPosition(slot);
+            if (index.getLong(position + 16) == 0 || index.getLong(position) == high && index.getLong(position + 8) == low) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    private void resize(int newCapacity) throws IOException {
+        if (newCapacity > MAX_CAPACITY) {
+            throw new IOException("Metadata index of " + directory + " is full");
+        }
+        MappedByteBuffer previous = index;
+        int previousCapacity = capacity;
+        index = createIndex(newCapacity);
+        capacity = newCapacity;
+        count = 0;
+        for (int slot = 0; slot < previousCapacity; slot++) {
+            int position = HEADER_SIZE + slot * SLOT_SIZE;
+            long offset = previous.getLong(position + 16);
+            if (offset != 0) {
+                insert(previous.getLong(position), previous.getLong(position + 8), offset - 1);
+            }
+        }
+        writeHeader();
+    }
+
+    /**
+     * Creates an empty index file (replacing the current one) and maps it.
+     */
+    private MappedByteBuffer createIndex(int newCapacity) throws IOException {
+        File created = new File(directory, INDEX_FILE + ".tmp");
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(created.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + (long) newCapacity * SLOT_SIZE);
+        }
+        mapped.putInt(MAGIC_OFFSET, MAGIC);
+        mapped.putInt(VERSION_OFFSET, VERSION);
+        mapped.putInt(CAPACITY_OFFSET, newCapacity);
+        mapped.put(CLEAN_OFFSET, (byte) 0);
+        Files.move(created.toPath(), indexFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        return mapped;
+    }
+
+    private void writeHeader() {
+        index.putInt(COUNT_OFFSET, count);
+        index.putLong(RECORDS_OFFSET, records);
+        index.putLong(LOG_LENGTH_OFFSET, logLength);
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    private static int hash(long high, long low) {
+        long hash = high * 0x9E3779B97F4A7C15L ^ low;
+        hash ^= hash >>> 33;
+        hash *= 0xFF51AFD7ED558CCDL;
+        hash ^= hash >>> 33;
+        return (int) hash;
+    }
+
+    /**
+     * Reads and verifies the body of the record at the given offset.
+     *
+     * @return the body or <code>null</code> if the record is torn or corrupt
+     */
+    private ByteBuffer readBody(long offset) throws IOException {
+        if (offset + FRAME_HEADER_SIZE > logLength) {
+            return null;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+        readFully(header, offset);
+        int length = header.getInt(0);
+        if (length <= 0 || length > MAX_RECORD_SIZE || offset + FRAME_HEADER_SIZE + length > logLength) {
+            return null;
+        }
+        ByteBuffer body = ByteBuffer.allocate(length);
+        readFully(body, offset + FRAME_HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        if ((int) crc.getValue() != header.getInt(4) || body.get(0) != RECORD_VERSION) {
+            return null;
+        }
+        return body;
+    }
+
+    private void readFully(ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (logChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of metadata log of " + directory);
+            }
+        }
+    }
+
+    private static ByteBuffer encode(long[] key, StoredFile file) throws IOException {
+        FileMetadata metadata = file.getMetadata();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeByte(RECORD_VERSION);
+            out.writeLong(key[0]);
+            out.writeLong(key[1]);
+            out.writeLong(metadata.getSize());
+            out.writeLong(metadata.getCreateTime() != null ? metadata.getCreateTime().getTime() : 0);
+            out.writeUTF(metadata.getFileName() != null ? metadata.getFileName() : "");
+            out.writeUTF(metadata.getMimeType() != null ? metadata.getMimeType() : "");
+            out.writeUTF(metadata.getChecksum() != null ? metadata.getChecksum() : "");
+            out.writeInt(file.getSegment());
+            out.writeLong(file.getOffset());
+        }
+        return frame(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    private static ByteBuffer frame(ByteBuffer body) {
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_HEADER_SIZE + body.capacity());
+        frame.putInt(body.capacity());
+        frame.putInt((int) crc.getValue());
+        frame.put(body.array());
+        frame.flip();
+        return frame;
+    }
+
+    private static StoredFile decode(ByteBuffer body) throws IOException {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array()))) {
+            // The version is checked by readBody
+            in.readByte();
+            long high = in.readLong();
+            long low = in.readLong();
+            long size = in.readLong();
+            long createTime = in.readLong();
+            String fileName = in.readUTF();
+            String mimeType = in.readUTF();
+            String checksum = in.readUTF();
+            int segment = in.readInt();
+            long offset = in.readLong();
+            return StoredFile.builder()
+                    .metadata(FileMetadata.builder()
+                            .fileId(String.format("%016x%016x", high, low))
+                            .fileName(fileName)
+                            .mimeType(mimeType.isEmpty() ? null : mimeType)
+                            .size(size)
+                            .createTime(new Date(createTime))
+                            .checksum(checksum.isEmpty() ? null : checksum)
+                            .build())
+                    .segment(segment)
+                    .offset(offset)
+                    .build();
+        }
+    }
+
+    /**
+     * Parses a 32 character hexadecimal file id to its high and low 64 bits.
+     *
+     * @return the key or <code>null</code> if the id is not a 128 bit hexadecimal number
+     */
+    private static long[] key(String fileId) {
+        if (fileId == null || fileId.length() != 32) {
+            return null;
+        }
+        long[] key = new long[2];
+        for (int i = 0; i < 32; i++) {
+            int digit = Character.digit(fileId.charAt(i), 16);
+            if (digit < 0) {
+                return null;
+            }
+            key[i / 16] = key[i / 16] << 4 | digit;
+        }
+        return key;
+    }
+}
@@ -0,0 +1,231 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Small files packed into append-only segment files. Each record is the 128 bit id and the length of the content
+ * followed by the content, the metadata index keeps the segment and the position of the content. Records are appended
+ * to the active segment, a new segment is started when it reaches the maximum size. Space of records which are not
+ * referred by the index anymore is reclaimed by moving the live records of a sealed segment and deleting it.
+ */
+@Slf4j
+class SegmentStore implements Closeable {
+
+    static final String SEGMENT_DIRECTORY = "segments";
+
+    static final int RECORD_HEADER_SIZE = 20;
+
+    private static final Pattern SEGMENT_NAME = Pattern.compile("segment-(\\d+)\\.dat");
+
+    private final File directory;
+
+    private final long maxSegmentSize;
+
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+
+    private final Object appendLock = new Object();
+
+    private int activeSegment;
+
+    private long activeLength;
+
+    @Getter
+    @RequiredArgsConstructor
+    static final class Location {
+
+        private final int segment;
+
+        private final long offset;
+    }
+
+    private SegmentStore(File directory, long maxSegmentSize) {
+        this.directory = directory;
+        this.maxSegmentSize = maxSegmentSize;
+    }
+
+    /**
+     * Opens the segments of the given directory, the last one is the active segment. Bytes of a torn record at the
+     * end of the active segment are never referred, new records are appended after them.
+     */
+    static SegmentStore open(File directory, long maxSegmentSize) throws IOException {
+        SegmentStore store = new SegmentStore(directory, maxSegmentSize);
+        Files.createDirectories(directory.toPath());
+        File[] files = directory.listFiles();
+        for (File file : files != null ? files : new File[0]) {
+            Matcher matcher = SEGMENT_NAME.matcher(file.getName());
+            if (matcher.matches()) {
+                int segment = Integer.parseInt(matcher.group(1));
+                store.segments.put(segment, FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE));
+                store.activeSegment = Math.max(store.activeSegment, segment);
+            }
+        }
+        if (store.activeSegment == 0) {
+            store.roll();
+        } else {
+            store.activeLength = store.segments.get(store.activeSegment).size();
+        }
+        return store;
+    }
+
+    /**
+     * Appends the content of a file to the active segment.
+     */
+    Location append(String fileId, byte[] data, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+        record.putLong(Long.parseUnsignedLong(fileId.substring(0, 16), 16));
+        record.putLong(Long.parseUnsignedLong(fileId.substring(16, 32), 16));
+        record.putInt(length);
+        record.put(data, 0, length);
+        record.flip();
+        synchronized (appendLock) {
+            if (activeLength > 0 && activeLength + record.remaining() > maxSegmentSize) {
+                roll();
+            }
+            FileChannel channel = segments.get(activeSegment);
+            // A partially written record is overwritten by the next one, activeLength is advanced only on success
+            long position = activeLength;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            Location location = new Location(activeSegment, activeLength + RECORD_HEADER_SIZE);
+            activeLength = position;
+            return location;
+        }
+    }
+
+    /**
+     * Reads the content of a packed file.
+     *
+     * @throws NoSuchFileException if the segment was deleted by the compaction
+     */
+    byte[] read(int segment, long offset, int length) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel == null) {
+            throw new NoSuchFileException(segmentFile(segment).getPath());
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, offset + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of segment " + segment);
+            }
+        }
+        return buffer.array();
+    }
+
+    void force(int segment) throws IOException {
+        FileChannel channel = segments.get(segment);
+        if (channel != null) {
+            channel.force(false);
+        }
+    }
+
+    void forceActive() throws IOException {
+        synchronized (appendLock) {
+            force(activeSegment);
+        }
+    }
+
+    boolean contains(int segment) {
+        return segments.containsKey(segment);
+    }
+
+    /**
+     * Returns the sizes of the segments which are not appended anymore.
+     */
+    Map<Integer, Long> getSealedSegmentSizes() throws IOException {
+        Map<Integer, Long> sizes = new HashMap<>();
+        List<Integer> sealed = new ArrayList<>(segments.keySet());
+        synchronized (appendLock) {
+            sealed.remove(Integer.valueOf(activeSegment));
+        }
+        for (Integer segment : sealed) {
+            FileChannel channel = segments.get(segment);
+            if (channel != null) {
+                sizes.put(segment, channel.size());
+            }
+        }
+        return sizes;
+    }
+
+    /**
+     * Deletes a sealed segment, its records have to be moved before.
+     */
+    void delete(int segment) throws IOException {
+        FileChannel channel = segments.remove(segment);
+        if (channel != null) {
+            channel.close();
+        }
+        Files.deleteIfExists(segmentFile(segment).toPath());
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : segments.values()) {
+            try {
+                channel.force(false);
+                channel.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        segments.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private void roll() throws IOException {
+        if (activeSegment > 0) {
+            segments.get(activeSegment).force(false);
+        }
+        int segment = activeSegment + 1;
+        segments.put(segment, FileChannel.open(segmentFile(segment).toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+        activeSegment = segment;
+        activeLength = 0;
+        log.debug("Started segment " + segment + " in " + directory);
+    }
+
+    private File segmentFile(int segment) {
+        return new File(directory, String.format("segment-%06d.dat", segment));
+    }
+}
@@ -0,0 +1,127 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Root directories of the store, which are usually on different disks. The directory of a file is placed on one of
+ * the roots by weighted rendezvous hashing of its id: adding a root moves only the files which are placed on the new
+ * root, removing one moves only its own files. Roots are weighted by the capacity of their disks, the placement does
+ * not change with the used space. The first root keeps the metadata index and the segments of packed files.
+ */
+final class StoreRoots {
+
+    private static final HashFunction HASH = Hashing.murmur3_128();
+
+    private final List<File> roots;
+
+    private final long[] seeds;
+
+    private final double[] weights;
+
+    private StoreRoots(List<File> roots, double[] weights) {
+        this.roots = Collections.unmodifiableList(roots);
+        this.weights = weights;
+        this.seeds = new long[roots.size()];
+        for (int i = 0; i < seeds.length; i++) {
+            seeds[i] = HASH.hashUnencodedChars(roots.get(i).getPath()).asLong();
+        }
+    }
+
+    /**
+     * Returns the given root directories, each of them is weighted by the total space of its disk.
+     */
+    static StoreRoots of(List<File> roots) {
+        if (roots.isEmpty()) {
+            throw new IllegalArgumentException("At least one root directory is required");
+        }
+        double[] weights = new double[roots.size()];
+        for (int i = 0; i < weights.length; i++) {
+            long totalSpace = roots.get(i).getTotalSpace();
+            weights[i] = totalSpace > 0 ? totalSpace : 1;
+        }
+        return new StoreRoots(new ArrayList<>(roots), weights);
+    }
+
+    /**
+     * Parses a comma separated list of root directories.
+     */
+    static List<File> parse(String directories) {
+        List<File> roots = new ArrayList<>();
+        for (String directory : directories.split(",")) {
+            if (!directory.trim().isEmpty()) {
+                File root = new File(directory.trim()).getAbsoluteFile();
+                if (!roots.contains(root)) {
+                    roots.add(root);
+                }
+            }
+        }
+        return roots;
+    }
+
+    File getPrimary() {
+        return roots.get(0);
+    }
+
+    List<File> getRoots() {
+        return roots;
+    }
+
+    boolean isStriped() {
+        return roots.size() > 1;
+    }
+
+    /**
+     * Returns the root which the directory of the file is placed on.
+     */
+    File owner(String fileId) {
+        if (roots.size() == 1) {
+            return roots.get(0);
+        }
+        long hash = HASH.hashUnencodedChars(fileId).asLong();
+        int owner = 0;
+        double maxScore = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < seeds.length; i++) {
+            // Uniform value in (0, 1) from the 53 high bits of the mixed hash of the root and the id
+            double uniform = ((mix(hash ^ seeds[i]) >>> 11) + 0.5) / (1L << 53);
+            double score = weights[i] / -Math.log(uniform);
+            if (score > maxScore) {
+                maxScore = score;
+                owner = i;
+            }
+        }
+        return roots.get(owner);
+    }
+
+    private static long mix(long value) {
+        long z = value * 0x9e3779b97f4a7c15L;
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -0,0 +1,59 @@
+package hu.blackbelt.osgi.filestore.filesystem;
+
+/*-
+ * #%L
+ * Filesystem filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
+import lombok.Builder;
+import lombok.Getter;
+
+/**
+ * Entry of the metadata index: the metadata of a file and the location of its content.
+ */
+@Getter
+@Builder(toBuilder = true)
+class StoredFile {
+
+    /**
+     * Segment of the deleted marker of a file, which supersedes its previous metadata.
+     */
+    static final int DELETED_SEGMENT = -1;
+
+    private final FileMetadata metadata;
+
+    /**
+     * Segment of packed content, 0 if the content is in a file of its own, {@link #DELETED_SEGMENT} if the file
+     * was deleted.
+     */
+    private final int segment;
+
+    /**
+     * Position of packed content in its segment.
+     */
+    private final long offset;
+
+    boolean isPacked() {
+        return segment > 0;
+    }
+
+    boolean isDeleted() {
+        return segment == DELETED_SEGMENT;
+    }
+}
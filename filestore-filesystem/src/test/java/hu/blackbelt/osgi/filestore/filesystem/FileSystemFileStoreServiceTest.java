@@ -21,6 +21,7 @@ package hu.blackbelt.osgi.filestore.filesystem;
  */
 
 import com.google.common.io.ByteStreams;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
 import hu.blackbelt.osgi.utils.test.MockOsgi;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.junit.jupiter.api.BeforeEach;
@@ -31,9 +32,25 @@ import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.osgi.framework.BundleContext;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
@@ -102,6 +119,445 @@ public class FileSystemFileStoreServiceTest {
         assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("test"));
     }
 
+    @Test
+    public void testGetMetadata() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test.txt", null);
+        FileMetadata metadata = target.getMetadata(fileId);
+        assertThat(metadata.getFileId(), equalTo(fileId));
+        assertThat(metadata.getFileName(), equalTo("test.txt"));
+        assertThat(metadata.getMimeType(), equalTo("text/plain"));
+        assertThat(metadata.getSize(), equalTo(4L));
+        assertThat(metadata.getCreateTime(), equalTo(target.getCreateTime(fileId)));
+        assertThrows(IOException.class, () -> target.getMetadata("notexists"));
+    }
+
+    @Test
+    public void testBulkLookups() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId1 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test1.txt", null);
+        String fileId2 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test2.txt", null);
+        List<String> ids = Arrays.asList(fileId1, "notexists", fileId2);
+
+        assertThat(target.existing(ids), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        Map<String, FileMetadata> metadata = target.getMetadata(ids);
+        assertThat(metadata.keySet(), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        assertThat(metadata.get(fileId1).getFileName(), equalTo("test1.txt"));
+        assertThat(metadata.get(fileId2).getFileName(), equalTo("test2.txt"));
+    }
+
+    @Test
+    public void testRangeRead() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test.txt", null);
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 1, 2))), equalTo("es"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 2, -1))), equalTo("st"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 4, 10))), equalTo(""));
+
+        try (SeekableByteChannel channel = target.openChannel(fileId)) {
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            channel.position(2);
+            channel.read(buffer);
+            assertThat(new String(buffer.array()), equalTo("st"));
+            assertThat(channel.size(), equalTo(4L));
+        }
+    }
+
+    @Test
+    public void testMetadataIndex() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "indexed.txt", null);
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(fileId)).resolve(FileSystemFileStoreService.FILE_PROPERTIES)), equalTo(false));
+
+        // Files stored before the index are indexed at the first lookup
+        String legacyFileId = "0123456789abcdef0123456789abcdef";
+        Path legacyDirectory = Files.createDirectories(root.resolve(DirectoryLayout.legacyPath(legacyFileId)));
+        Files.write(legacyDirectory.resolve("legacy.txt"), "legacy".getBytes());
+        Files.write(legacyDirectory.resolve(FileSystemFileStoreService.FILE_PROPERTIES),
+                "file-name=legacy.txt\nmime-type=text/plain\nsize=6\ncreate-date=1000\n".getBytes());
+        assertThat(target.getSize(legacyFileId), equalTo(6L));
+        Files.delete(legacyDirectory.resolve(FileSystemFileStoreService.FILE_PROPERTIES));
+
+        target.deactivate();
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        target.activate(context, config);
+
+        FileMetadata metadata = target.getMetadata(fileId);
+        assertThat(metadata.getFileName(), equalTo("indexed.txt"));
+        assertThat(metadata.getSize(), equalTo(4L));
+        assertThat(target.getFileName(legacyFileId), equalTo("legacy.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(legacyFileId))), equalTo("legacy"));
+
+        // Metadata of deleted files is removed by the compaction
+        Files.delete(legacyDirectory.resolve("legacy.txt"));
+        Files.delete(legacyDirectory);
+        target.compactMetadata();
+        assertThat(target.exists(legacyFileId), equalTo(false));
+        assertThat(target.exists(fileId), equalTo(true));
+    }
+
+    @Test
+    public void testCorruptMetadataRecords() throws IOException {
+        String firstFileId = target.put(new ByteArrayInputStream("first".getBytes()), "first.txt", "text/plain");
+        String corruptFileId = target.put(new ByteArrayInputStream("corrupt".getBytes()), "corrupt.txt", "text/plain");
+        String lastFileId = target.put(new ByteArrayInputStream("last".getBytes()), "last.txt", "text/plain");
+        target.deactivate();
+
+        // A byte of the file name of the second record is flipped and a torn record is appended
+        Path log = root.resolve(MetadataIndex.LOG_FILE);
+        byte[] records = Files.readAllBytes(log);
+        int second = 8 + ByteBuffer.wrap(records).getInt(0);
+        records[second + 8 + 40] ^= 1;
+        byte[] torn = Arrays.copyOf(records, records.length + 12);
+        ByteBuffer.wrap(torn, records.length, 12).putInt(64).putInt(0).put((byte) 3);
+        Files.write(log, torn);
+
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        target.activate(context, config);
+
+        assertThat(Files.size(log), equalTo((long) records.length));
+        assertThat(target.getFileName(firstFileId), equalTo("first.txt"));
+        assertThat(target.getFileName(lastFileId), equalTo("last.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(lastFileId))), equalTo("last"));
+        assertThat(target.getMetadata(Arrays.asList(firstFileId, corruptFileId, lastFileId)).keySet(),
+                equalTo(new HashSet<>(Arrays.asList(firstFileId, lastFileId))));
+    }
+
+    @Test
+    public void testStaleTempFilesAreDeleted() throws IOException {
+        String fileId = target.put(new ByteArrayInputStream("content".getBytes()), "content.txt", "text/plain");
+
+        // Left by a crash before the rename, a running put and an interrupted move between roots
+        Path directory = Files.createDirectories(root.resolve("00").resolve("11"));
+        Path stale = Files.write(directory.resolve(".00112233445566778899aabbccddeeff" + FileSystemFileStoreService.TEMP_FILE_SUFFIX), "stale".getBytes());
+        Path running = Files.write(directory.resolve(".ffeeddccbbaa99887766554433221100" + FileSystemFileStoreService.TEMP_FILE_SUFFIX), "running".getBytes());
+        Path staleCopy = Files.createDirectories(root.resolve("22").resolve(".2233" + FileSystemFileStoreService.TEMP_FILE_SUFFIX));
+        Files.write(staleCopy.resolve("copied.txt"), "copied".getBytes());
+        long activation = System.currentTimeMillis() - 60000;
+        FileTime beforeActivation = FileTime.fromMillis(activation - 60000);
+        Files.setLastModifiedTime(stale, beforeActivation);
+        Files.setLastModifiedTime(staleCopy, beforeActivation);
+
+        assertThat(target.deleteStaleTempFiles(activation), equalTo(2));
+        assertThat(Files.exists(stale), equalTo(false));
+        assertThat(Files.exists(staleCopy), equalTo(false));
+        assertThat(Files.exists(running), equalTo(true));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("content"));
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.durability()).thenReturn(FileSystemFileStoreService.DURABILITY_GROUP);
+        target.activate(context, config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> puts = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                String content = "content" + i;
+                puts.add(executor.submit(() -> target.put(new ByteArrayInputStream(content.getBytes()), "group.txt", null)));
+            }
+            for (int i = 0; i < puts.size(); i++) {
+                String fileId = puts.get(i).get();
+                CRC32C checksum = new CRC32C();
+                checksum.update(("content" + i).getBytes());
+                assertThat(target.getMetadata(fileId).getChecksum(), equalTo(String.format("%08x", checksum.getValue())));
+                assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("content" + i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            assertThat(files.anyMatch(file -> file.toString().endsWith(FileSystemFileStoreService.TEMP_FILE_SUFFIX)), equalTo(false));
+        }
+        target.deactivate();
+    }
+
+    @Test
+    public void testGroupCommitWithFailedFile() throws Exception {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.durability()).thenReturn(FileSystemFileStoreService.DURABILITY_GROUP);
+        when(config.groupCommitInterval()).thenReturn(200);
+        target.activate(context, config);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<String>> puts = new ArrayList<>();
+            for (int i = 0; i < 4; i++) {
+                // The data file of the second one cannot be renamed to a directory which does not exist
+                String fileName = i == 1 ? "missing/failed.txt" : "group.txt";
+                String content = "content" + i;
+                puts.add(executor.submit(() -> target.put(new ByteArrayInputStream(content.getBytes()), fileName, null)));
+            }
+            ExecutionException failure = assertThrows(ExecutionException.class, () -> puts.get(1).get());
+            assertThat(failure.getCause() instanceof IOException, equalTo(true));
+            for (int i : new int[] {0, 2, 3}) {
+                assertThat(new String(ByteStreams.toByteArray(target.get(puts.get(i).get()))), equalTo("content" + i));
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.walk(root)) {
+            assertThat(files.anyMatch(file -> file.toString().endsWith(FileSystemFileStoreService.TEMP_FILE_SUFFIX)), equalTo(false));
+        }
+        target.deactivate();
+    }
+
+    @Test
+    public void testPackedFiles() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.packThreshold()).thenReturn(8);
+        when(config.segmentSize()).thenReturn(64L);
+        // Segments are not opened by a store without packing
+        assertThat(Files.exists(root.resolve(SegmentStore.SEGMENT_DIRECTORY)), equalTo(false));
+        target.activate(context, config);
+
+        List<String> packedFileIds = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            packedFileIds.add(target.put(new ByteArrayInputStream(("content" + i).getBytes()), "packed.txt", null));
+        }
+        String fileId = target.put(new ByteArrayInputStream("not packed".getBytes()), "file.txt", null);
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(packedFileIds.get(0)))), equalTo(false));
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(fileId)).resolve("file.txt")), equalTo(true));
+        try (Stream<Path> segments = Files.list(root.resolve(SegmentStore.SEGMENT_DIRECTORY))) {
+            assertThat(segments.count(), equalTo(2L));
+        }
+
+        String packedFileId = packedFileIds.get(1);
+        assertThat(target.exists(packedFileId), equalTo(true));
+        assertThat(target.getSize(packedFileId), equalTo(8L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(packedFileId, 2, 3))), equalTo("nte"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(packedFileId, 9, 3))), equalTo(""));
+        assertThat(target.openFileChannel(packedFileId), equalTo(null));
+        try (SeekableByteChannel channel = target.openChannel(packedFileId)) {
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            channel.position(6);
+            channel.read(buffer);
+            assertThat(new String(buffer.array()), equalTo("t1"));
+        }
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("not packed"));
+
+        // A known size decides whether the file is packed
+        packedFileIds.add(target.put(new ByteArrayInputStream("content3".getBytes()), "packed.txt", null, 8));
+        String hintedFileId = target.put(new ByteArrayInputStream("not packed".getBytes()), "file.txt", null, 10);
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(packedFileIds.get(3)))), equalTo(false));
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(hintedFileId)).resolve("file.txt")), equalTo(true));
+
+        // Segments of live records are kept by the compaction
+        assertThat(target.compactSegments(), equalTo(0));
+
+        target.deactivate();
+        target.activate(context, config);
+        for (int i = 0; i < packedFileIds.size(); i++) {
+            assertThat(new String(ByteStreams.toByteArray(target.get(packedFileIds.get(i)))), equalTo("content" + i));
+        }
+        target.deactivate();
+
+        // Packed files are still read after packing was disabled
+        when(config.packThreshold()).thenReturn(0);
+        target.activate(context, config);
+        assertThat(new String(ByteStreams.toByteArray(target.get(packedFileIds.get(0)))), equalTo("content0"));
+        String unpackedFileId = target.put(new ByteArrayInputStream("content4".getBytes()), "file.txt", null);
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(unpackedFileId)).resolve("file.txt")), equalTo(true));
+        target.deactivate();
+    }
+
+    @Test
+    public void testCompactSegmentsWithConcurrentReadsAndPuts() throws Exception {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.packThreshold()).thenReturn(8);
+        when(config.segmentSize()).thenReturn(64L);
+        target.activate(context, config);
+
+        // Two records fit into a segment, one of them is deleted so each sealed segment is compacted
+        List<String> keptFileIds = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            String fileId = target.put(new ByteArrayInputStream(String.format("kept%04d", i).getBytes()), "kept.txt", null);
+            keptFileIds.add(fileId);
+            target.delete(target.put(new ByteArrayInputStream("deleted".getBytes()), "deleted.txt", null));
+        }
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newFixedThreadPool(3);
+        try {
+            Future<?> reads = executor.submit(() -> {
+                while (running.get()) {
+                    for (int i = 0; i < keptFileIds.size(); i++) {
+                        assertThat(new String(ByteStreams.toByteArray(target.get(keptFileIds.get(i)))), equalTo(String.format("kept%04d", i)));
+                    }
+                }
+                return null;
+            });
+            Future<List<String>> puts = executor.submit(() -> {
+                List<String> fileIds = new ArrayList<>();
+                while (running.get()) {
+                    fileIds.add(target.put(new ByteArrayInputStream(String.format("put%05d", fileIds.size()).getBytes()), "put.txt", null));
+                }
+                return fileIds;
+            });
+            Future<List<String>> deletes = executor.submit(() -> {
+                List<String> fileIds = new ArrayList<>();
+                while (running.get()) {
+                    String fileId = target.put(new ByteArrayInputStream("deleted".getBytes()), "deleted.txt", null);
+                    target.delete(fileId);
+                    fileIds.add(fileId);
+                }
+                return fileIds;
+            });
+            int compacted = 0;
+            for (int i = 0; i < 20; i++) {
+                compacted += target.compactSegments();
+            }
+            running.set(false);
+            reads.get();
+            assertThat(compacted > 0, equalTo(true));
+
+            List<String> putFileIds = puts.get();
+            for (int i = 0; i < putFileIds.size(); i++) {
+                assertThat(new String(ByteStreams.toByteArray(target.get(putFileIds.get(i)))), equalTo(String.format("put%05d", i)));
+            }
+            // Files deleted while their segment was compacted are not moved back to the index
+            for (String fileId : deletes.get()) {
+                assertThat(target.exists(fileId), equalTo(false));
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+
+        target.deactivate();
+        target.activate(context, config);
+        for (int i = 0; i < keptFileIds.size(); i++) {
+            assertThat(new String(ByteStreams.toByteArray(target.get(keptFileIds.get(i)))), equalTo(String.format("kept%04d", i)));
+        }
+        target.deactivate();
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.packThreshold()).thenReturn(8);
+        target.activate(context, config);
+
+        String packedFileId = target.put(new ByteArrayInputStream("packed".getBytes()), "packed.txt", null);
+        String fileId = target.put(new ByteArrayInputStream("not packed".getBytes()), "file.txt", null);
+        String keptFileId = target.put(new ByteArrayInputStream("kept".getBytes()), "kept.txt", null);
+
+        target.delete(packedFileId);
+        target.delete(fileId);
+        target.delete(fileId);
+        target.delete("ffffffffffffffffffffffffffffffff");
+        assertThat(target.exists(packedFileId), equalTo(false));
+        assertThat(target.exists(fileId), equalTo(false));
+        assertThrows(IOException.class, () -> target.getMetadata(packedFileId));
+        assertThrows(IOException.class, () -> target.get(fileId));
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(fileId))), equalTo(false));
+        assertThat(target.getMetadata(Arrays.asList(packedFileId, fileId, keptFileId)).keySet(), equalTo(new HashSet<>(Arrays.asList(keptFileId))));
+
+        // Deleted markers are kept in the index until the metadata compaction
+        target.deactivate();
+        target.activate(context, config);
+        assertThat(target.exists(packedFileId), equalTo(false));
+        target.compactMetadata();
+        assertThat(target.exists(fileId), equalTo(false));
+        assertThat(new String(ByteStreams.toByteArray(target.get(keptFileId))), equalTo("kept"));
+        target.deactivate();
+    }
+
+    @Test
+    public void testShardedLayout() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        String legacyFileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "legacy.txt", null);
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(legacyFileId))), equalTo(true));
+
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(root.toString());
+        when(config.protocol()).thenReturn("judostore");
+        when(config.directoryLevels()).thenReturn(2);
+        target.activate(context, config);
+
+        // Files of the legacy layout are still readable
+        assertThat(target.exists(legacyFileId), equalTo(true));
+        assertThat(new String(ByteStreams.toByteArray(target.get(legacyFileId))), equalTo("test"));
+
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "sharded.txt", null);
+        assertThat(Files.exists(root.resolve(fileId.substring(28, 30)).resolve(fileId.substring(30)).resolve(fileId).resolve("sharded.txt")), equalTo(true));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 1, 2))), equalTo("es"));
+
+        assertThat(target.migrateLegacyLayout(), equalTo(1));
+        assertThat(Files.exists(root.resolve(DirectoryLayout.legacyPath(legacyFileId.substring(0, 6)))), equalTo(false));
+        assertThat(Files.exists(root.resolve(legacyFileId.substring(28, 30)).resolve(legacyFileId.substring(30)).resolve(legacyFileId)), equalTo(true));
+        assertThat(target.getFileName(legacyFileId), equalTo("legacy.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(legacyFileId))), equalTo("test"));
+        assertThat(target.migrateLegacyLayout(), equalTo(0));
+    }
+
+    @Test
+    public void testStripedRoots() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+        List<Path> disks = Arrays.asList(root.resolve("disk1"), root.resolve("disk2"), root.resolve("disk3"));
+        FileSystemFileStoreService.Config config = mock(FileSystemFileStoreService.Config.class);
+        when(config.fileSystemStoreDirectory()).thenReturn(disks.get(0) + "," + disks.get(1));
+        when(config.protocol()).thenReturn("judostore");
+        target.activate(context, config);
+
+        List<String> fileIds = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            fileIds.add(target.put(new ByteArrayInputStream(("content" + i).getBytes()), "striped.txt", null));
+        }
+        assertThat(countFiles(disks.get(0), fileIds) + countFiles(disks.get(1), fileIds), equalTo(40));
+        assertThat(countFiles(disks.get(0), fileIds) > 0 && countFiles(disks.get(1), fileIds) > 0, equalTo(true));
+
+        // Files are read from the previous roots until they are rebalanced to the added one
+        target.deactivate();
+        FileSystemFileStoreService.Config extendedConfig = mock(FileSystemFileStoreService.Config.class);
+        when(extendedConfig.fileSystemStoreDirectory()).thenReturn(disks.get(0) + "," + disks.get(1) + "," + disks.get(2));
+        when(extendedConfig.protocol()).thenReturn("judostore");
+        target.activate(context, extendedConfig);
+        for (int i = 0; i < fileIds.size(); i++) {
+            assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(i)))), equalTo("content" + i));
+        }
+
+        int moved = target.migrateLegacyLayout();
+        assertThat(moved, equalTo(countFiles(disks.get(2), fileIds)));
+        assertThat(moved > 0, equalTo(true));
+        assertThat(countFiles(disks.get(0), fileIds) + countFiles(disks.get(1), fileIds) + moved, equalTo(40));
+        for (int i = 0; i < fileIds.size(); i++) {
+            assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(i)))), equalTo("content" + i));
+        }
+        assertThat(target.migrateLegacyLayout(), equalTo(0));
+        target.deactivate();
+    }
+
+    private static int countFiles(Path disk, List<String> fileIds) {
+        return (int) fileIds.stream()
+                .filter(fileId -> Files.exists(disk.resolve(DirectoryLayout.legacyPath(fileId)).resolve("striped.txt")))
+                .count();
+    }
+
     @Test
     public void testGetIllegalFileId() throws IOException {
         assertThat(target.exists("notexists"), equalTo(false));
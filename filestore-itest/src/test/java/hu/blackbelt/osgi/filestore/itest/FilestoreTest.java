@@ -253,6 +253,27 @@ public class FilestoreTest {
         log.info("Response: {}\n{}", downloadResponse2, downloadResponseContent2);
         assertThat(downloadResponseContent2, equalTo(new String(getSampleTextBytes())));
         assertThat(downloadResponse2.getStatusLine().getStatusCode(), equalTo(HttpStatus.SC_OK));
+        assertThat(downloadResponse2.getFirstHeader("Accept-Ranges").getValue(), equalTo("bytes"));
+
+        // test partial download
+        final HttpGet rangeRequest = getDownloadRequest(downloadToken2String, null, null);
+        rangeRequest.setHeader("Range", "bytes=1-4");
+        final HttpResponse rangeResponse = client.execute(rangeRequest);
+        assertThat(rangeResponse.getStatusLine().getStatusCode(), equalTo(HttpStatus.SC_PARTIAL_CONTENT));
+        assertThat(rangeResponse.getFirstHeader("Content-Range").getValue(), equalTo("bytes 1-4/" + getSampleTextBytes().length));
+        assertThat(IOUtils.toByteArray(rangeResponse.getEntity().getContent()), equalTo(Arrays.copyOfRange(getSampleTextBytes(), 1, 5)));
+
+        final HttpGet unsatisfiableRangeRequest = getDownloadRequest(downloadToken2String, null, null);
+        unsatisfiableRangeRequest.setHeader("Range", "bytes=" + getSampleTextBytes().length + "-");
+        assertThat(execute(unsatisfiableRangeRequest), equalTo(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE));
+
+        // test conditional download
+        assertThat(downloadResponse2.getFirstHeader("ETag"), notNullValue());
+        assertThat(downloadResponse2.getFirstHeader("Last-Modified"), notNullValue());
+        final HttpGet conditionalRequest = getDownloadRequest(downloadToken2String, null, null);
+        conditionalRequest.setHeader("If-None-Match", downloadResponse2.getFirstHeader("ETag").getValue());
+        final HttpResponse conditionalResponse = client.execute(conditionalRequest);
+        assertThat(conditionalResponse.getStatusLine().getStatusCode(), equalTo(HttpStatus.SC_NOT_MODIFIED));
     }
 
     private static byte[] getSampleTextBytes() {
@@ -21,6 +21,8 @@ package hu.blackbelt.osgi.filestore.rdbms;
  */
 
 import com.google.common.collect.ImmutableMap;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FileIdType;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialects;
 import hu.blackbelt.osgi.liquibase.LiquibaseExecutor;
 import liquibase.exception.LiquibaseException;
 import lombok.extern.slf4j.Slf4j;
@@ -34,17 +36,32 @@ import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
 import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreHelper.*;
 
 @Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Slf4j
 public class RdbmsFileStoreLiquibaseExecutor {
 
+    public static final int CONTENT_MOVE_BATCH_SIZE = 100;
+
     @ObjectClassDefinition()
     public @interface Config {
 
         @AttributeDefinition(name="Table", description = "Table to store files")
         String table() default "FILESTORE";
+
+        @AttributeDefinition(required = false, name="Schema", description = "Table layout: combined or split (content in <table>_CONTENT). Switching to split moves existing content in batches, the filestore service has to be switched after it, it cannot be switched back")
+        String schema() default RdbmsFileStoreService.SCHEMA_COMBINED;
+
+        @AttributeDefinition(required = false, name="Id type", description = "Column type of file ids: string, uuid (native UUID) or binary (BINARY(16), BYTEA on PostgreSQL). The column of empty tables is changed to it, ids of existing files are not converted, an id type which does not match them is rejected")
+        String idType() default "string";
     }
 
     @Reference
@@ -55,12 +72,110 @@ public class RdbmsFileStoreLiquibaseExecutor {
 
     @Activate
     public void activate(BundleContext bundleContext, Config config) {
+        String table = config.table().toUpperCase();
+        FileIdType idType = FileIdType.of(config.idType());
+        boolean splitContent = RdbmsFileStoreService.SCHEMA_SPLIT.equalsIgnoreCase(config.schema());
         try (Connection connection = dataSource.getConnection()) {
+            checkFileIdType(connection, table, idType);
+            String dialect = FilestoreDialects.detect(connection.getMetaData().getDatabaseProductName());
             liquibaseExecutor.executeLiquibaseScript(connection, "liquibase/changelog.xml", bundleContext.getBundle(),
-                    ImmutableMap.of("table-name", config.table().toUpperCase())
+                    ImmutableMap.of("table-name", table,
+                            "split-content", String.valueOf(splitContent),
+                            "file-id-type", idType.getColumnType(dialect))
             );
+            if (splitContent) {
+                moveContent(connection, table, CONTENT_MOVE_BATCH_SIZE);
+            }
         } catch (SQLException | LiquibaseException e) {
             log.error("Could not execute liquibase script", e);
         }
     }
+
+    /**
+     * Rejects an id type which does not match the <code>FILE_ID</code> column of a table with rows. The changelog
+     * changes the column type of empty tables only, ids of existing files are not converted.
+     */
+    static void checkFileIdType(Connection connection, String table, FileIdType idType) throws SQLException {
+        DatabaseMetaData metaData = connection.getMetaData();
+        // Unquoted identifiers are stored in upper case by most databases, in lower case by PostgreSQL
+        for (String tableName : new String[] {table, table.toLowerCase()}) {
+            try (ResultSet columns = metaData.getColumns(null, null, tableName, null)) {
+                while (columns.next()) {
+                    String typeName = columns.getString("TYPE_NAME");
+                    if (FILE_ID_FIELD.equalsIgnoreCase(columns.getString("COLUMN_NAME")) && !idType.matchesColumnType(typeName)) {
+                        if (hasRows(connection, table)) {
+                            throw new IllegalStateException("Id type " + idType.name().toLowerCase() + " does not match the "
+                                    + FILE_ID_FIELD + " column (" + typeName + ") of the existing table " + table
+                                    + ", file ids of existing files are not converted");
+                        }
+                        log.info("Changing the " + FILE_ID_FIELD + " column (" + typeName + ") of the empty table " + table
+                                + " to id type " + idType.name().toLowerCase());
+                    }
+                }
+            }
+        }
+    }
+
+    private static boolean hasRows(Connection connection, String table) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement("SELECT " + FILE_ID_FIELD + " FROM " + table)) {
+            statement.setMaxRows(1);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                return resultSet.next();
+            }
+        }
+    }
+
+    /**
+     * Moves the content of the DATA column to the content table of the split schema. Each batch is committed on its
+     * own, so a large table is not copied in a single transaction, and a move which is interrupted is continued at
+     * the next activation (moved rows have <code>NULL</code> DATA).
+     *
+     * @return number of moved files
+     */
+    static int moveContent(Connection connection, String table, int batchSize) throws SQLException {
+        boolean autoCommit = connection.getAutoCommit();
+        connection.setAutoCommit(false);
+        int moved = 0;
+        try (PreparedStatement first = connection.prepareStatement(contentToMove(table, false));
+             PreparedStatement next = connection.prepareStatement(contentToMove(table, true));
+             PreparedStatement insert = connection.prepareStatement(copyContent(table, contentTable(table)));
+             PreparedStatement clear = connection.prepareStatement(clearContent(table))) {
+            first.setMaxRows(batchSize);
+            next.setMaxRows(batchSize);
+            List<Object> fileIds = new ArrayList<>();
+            PreparedStatement select = first;
+            do {
+                fileIds.clear();
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next() && fileIds.size() < batchSize) {
+                        fileIds.add(resultSet.getObject(FILE_ID_FIELD));
+                    }
+                }
+                for (Object fileId : fileIds) {
+                    insert.setObject(1, fileId);
+                    insert.addBatch();
+                    clear.setObject(1, fileId);
+                    clear.addBatch();
+                }
+                if (!fileIds.isEmpty()) {
+                    insert.executeBatch();
+                    clear.executeBatch();
+                    connection.commit();
+                    moved += fileIds.size();
+                    // Continued after the last moved id, the index of the primary key is used instead of a scan
+                    select = next;
+                    select.setObject(1, fileIds.get(fileIds.size() - 1));
+                }
+            } while (fileIds.size() == batchSize);
+        } catch (SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(autoCommit);
+        }
+        if (moved > 0) {
+            log.info("Moved the content of " + moved + " files to " + contentTable(table));
+        }
+        return moved;
+    }
 }
@@ -20,14 +20,31 @@ package hu.blackbelt.osgi.filestore.rdbms;
  * #L%
  */
 
+import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
-import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.io.Closer;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.UncheckedExecutionException;
+import hu.blackbelt.osgi.filestore.api.FileIdGenerator;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
 import hu.blackbelt.osgi.filestore.api.FileStoreService;
+import hu.blackbelt.osgi.filestore.api.PutRequest;
+import hu.blackbelt.osgi.filestore.rdbms.helper.ChunkedInputStream;
+import hu.blackbelt.osgi.filestore.rdbms.helper.ConnectionScopedInputStream;
 import hu.blackbelt.osgi.filestore.rdbms.helper.FileEntity;
-import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreHelper;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FileIdType;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialect;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialects;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestorePreparedStatementCallback;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreStatements;
+import hu.blackbelt.osgi.filestore.rdbms.helper.GenericDialect;
+import hu.blackbelt.osgi.filestore.rdbms.helper.JournalEntry;
+import hu.blackbelt.osgi.filestore.rdbms.helper.SpooledContent;
+import hu.blackbelt.osgi.filestore.rdbms.helper.WriteBehindJournal;
 import hu.blackbelt.osgi.filestore.urlhandler.FileStoreUrlStreamHandler;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.sling.commons.mime.MimeTypeService;
@@ -38,30 +55,72 @@ import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 import org.osgi.service.url.URLStreamHandlerService;
+import org.springframework.dao.EmptyResultDataAccessException;
 import org.springframework.dao.IncorrectResultSizeDataAccessException;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.lob.DefaultLobHandler;
+import org.springframework.jdbc.support.lob.LobCreator;
+import org.springframework.transaction.support.TransactionTemplate;
 
 import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
 import java.net.URL;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
 import static hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreHelper.*;
 
-@Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE,
+        property = "dataSource.target=(!(" + RdbmsFileStoreService.ROLE_PROPERTY + "=" + RdbmsFileStoreService.ROLE_REPLICA + "))")
 @Designate(ocd = RdbmsFileStoreService.Config.class)
 @Slf4j
 public class RdbmsFileStoreService implements FileStoreService {
 
-    @ObjectClassDefinition()
+    @ObjectClassDefinition(description = "Stores files in a relational database. All statements use bind parameters and a fixed set of"
+            + " statement texts (IN lookups are padded to 1, 2, 4 ... 256 or 500 ids), the prepared statement cache of the driver or"
+            + " the pool of the bound data source has to be enabled and hold at least 64 statements per connection:"
+            + " PostgreSQL prepareThreshold=1 and preparedStatementCacheQueries>=64,"
+            + " MySQL cachePrepStmts=true, useServerPrepStmts=true and prepStmtCacheSize>=64,"
+            + " DBCP poolPreparedStatements=true and maxOpenPreparedStatements>=64 (HikariCP has no cache, it relies on the driver)")
     public @interface Config {
 
         @AttributeDefinition(name="Protocol", description = "Protocol of URL stream handler")
@@ -69,16 +128,82 @@ public class RdbmsFileStoreService implements FileStoreService {
 
         @AttributeDefinition(name="Table", description = "Table to store files")
         String table() default "FILESTORE";
+
+        @AttributeDefinition(required = false, name="Storage mode", description = "Layout of new files: blob (single column) or chunked (rows of <table>_CHUNK)")
+        String storageMode() default STORAGE_MODE_BLOB;
+
+        @AttributeDefinition(required = false, name="Schema", description = "Table layout: combined (content in the DATA column of the table) or split (content in <table>_CONTENT), it has to match the schema of the liquibase executor")
+        String schema() default SCHEMA_COMBINED;
+
+        @AttributeDefinition(required = false, name="Id generator", description = "Generator of new file ids: random or time_ordered (UUIDv7, new index entries are appended)")
+        String idGenerator() default "random";
+
+        @AttributeDefinition(required = false, name="Id type", description = "Column type of file ids: string, uuid (native UUID) or binary (BINARY(16), BYTEA on PostgreSQL), it has to match the id type of the liquibase executor")
+        String idType() default "string";
+
+        @AttributeDefinition(required = false, name="Dialect", description = "Database specific content access: auto (selected by the database product), postgresql, hsqldb, mysql or generic")
+        String dialect() default FilestoreDialect.AUTO;
+
+        @AttributeDefinition(required = false, name="Large object threshold", description = "On PostgreSQL content larger than this (bytes) is stored as a large object, smaller content in the bytea column, 0 disables large objects")
+        int largeObjectThreshold() default 0;
+
+        @AttributeDefinition(required = false, name="Chunk size", description = "Size of chunks in chunked storage mode (bytes)")
+        int chunkSize() default DEFAULT_CHUNK_SIZE;
+
+        @AttributeDefinition(required = false, name="Spool memory threshold", description = "Content of unknown length is kept in memory up to this size (bytes), larger one is spooled to a temporary file to measure it")
+        int spoolThreshold() default DEFAULT_SPOOL_THRESHOLD;
+
+        @AttributeDefinition(required = false, name="Read idle timeout", description = "Streams returned by get are closed (releasing their database connection) when they are not read for this time (seconds)")
+        int readIdleTimeout() default DEFAULT_READ_IDLE_TIMEOUT;
+
+        @AttributeDefinition(required = false, name="Write-behind threshold", description = "Files up to this size (bytes) are acknowledged once they are written to the local journal and inserted to the database in batches by a background writer, 0 disables it")
+        int writeBehindThreshold() default 0;
+
+        @AttributeDefinition(required = false, name="Write-behind journal directory", description = "Directory of the write-behind journal, it has to be on a persistent local disk (default: ~/filestore-journal/<table>)")
+        String writeBehindDirectory();
+
+        @AttributeDefinition(required = false, name="Write-behind interval", description = "Delay between the flushes of the write-behind journal (milliseconds)")
+        int writeBehindInterval() default DEFAULT_WRITE_BEHIND_INTERVAL;
+
+        @AttributeDefinition(required = false, name="Write-behind batch size", description = "Maximum number of files inserted in a single transaction by the write-behind writer")
+        int writeBehindBatchSize() default DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+
+        @AttributeDefinition(required = false, name="Read-your-writes window", description = "When a replica data source (role=replica) is bound, files written by this node within this time (seconds) are read from the primary one, it has to be longer than the replication lag. Writes are tracked per node: files which are not found on the replica (e.g. written by an other node) are looked up on the primary one before they are reported missing")
+        int readYourWritesWindow() default DEFAULT_READ_YOUR_WRITES_WINDOW;
     }
 
+    public static final String STORAGE_MODE_BLOB = "blob";
+    public static final String STORAGE_MODE_CHUNKED = "chunked";
+    public static final String SCHEMA_COMBINED = "combined";
+    public static final String SCHEMA_SPLIT = "split";
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    public static final int DEFAULT_SPOOL_THRESHOLD = 1024 * 1024;
+    public static final int DEFAULT_READ_IDLE_TIMEOUT = 300;
+    public static final int DEFAULT_WRITE_BEHIND_INTERVAL = 100;
+    public static final int DEFAULT_WRITE_BEHIND_BATCH_SIZE = 100;
+    public static final int DEFAULT_READ_YOUR_WRITES_WINDOW = 30;
+    public static final String ROLE_PROPERTY = "role";
+    public static final String ROLE_REPLICA = "replica";
+
     @Reference
     DataSource dataSource;
 
+    /**
+     * Read-only replica of the database, queries of files which are not written recently are sent to it.
+     */
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policyOption = ReferencePolicyOption.GREEDY,
+            target = "(" + ROLE_PROPERTY + "=" + ROLE_REPLICA + ")")
+    DataSource replicaDataSource;
+
     @Reference
     MimeTypeService mimeTypeService;
 
     JdbcTemplate jdbcTemplate;
 
+    JdbcTemplate replicaJdbcTemplate;
+
+    TransactionTemplate transactionTemplate;
+
 
     public static final String COULD_NOT_GET_PROPERTIES_FOR = "Could not get properties for ";
 
@@ -87,10 +212,10 @@ public class RdbmsFileStoreService implements FileStoreService {
             .maximumSize(CACHE_SIZE)
             .expireAfterWrite(10, TimeUnit.MINUTES);
 
-    LoadingCache<String, Map<String, ?>> metaCache = CACHE_EXPIRE
+    LoadingCache<String, FileMetadata> metaCache = CACHE_EXPIRE
             .build(
-                    new CacheLoader<String, Map<String, ?>>() {
-                        public Map<String, ?> load(String fileId) throws IOException {
+                    new CacheLoader<String, FileMetadata>() {
+                        public FileMetadata load(String fileId) throws IOException {
                             return getMeta(fileId);
                         }
                     });
@@ -104,11 +229,90 @@ public class RdbmsFileStoreService implements FileStoreService {
 
     private String table;
 
+    private FilestoreStatements statements;
+
+    private FileIdGenerator idGenerator;
+
+    private FileIdType idType;
+
+    private boolean chunked;
+
+    private FilestoreDialect dialect;
+
+    private boolean largeObjects;
+
+    private int largeObjectThreshold;
+
+    private int chunkSize;
+
+    private int spoolThreshold;
+
+    private ExecutorService prefetchExecutor;
+
+    private long readIdleTimeoutMillis;
+
+    private ScheduledExecutorService idleStreamCloser;
+
+    private final Set<ConnectionScopedInputStream> openStreams = ConcurrentHashMap.newKeySet();
+
+    private WriteBehindJournal journal;
+
+    private int writeBehindThreshold;
+
+    private int writeBehindBatchSize;
+
+    private ScheduledExecutorService journalWriter;
+
+    /**
+     * Held while the journal is flushed, a deleted entry cannot be inserted by a flush which started before.
+     */
+    private final Object journalLock = new Object();
+
+    private Cache<String, Boolean> recentWrites;
+
     @Activate
     void activate(BundleContext context, Config config) {
         protocol = config.protocol() != null ? config.protocol().toLowerCase() : null;
         table = config.table().toUpperCase();
+        statements = new FilestoreStatements(table, SCHEMA_SPLIT.equalsIgnoreCase(config.schema()));
+        idGenerator = FileIdGenerator.of(config.idGenerator());
+        idType = FileIdType.of(config.idType());
+        chunked = STORAGE_MODE_CHUNKED.equalsIgnoreCase(config.storageMode());
+        chunkSize = config.chunkSize() > 0 ? config.chunkSize() : DEFAULT_CHUNK_SIZE;
+        spoolThreshold = config.spoolThreshold() > 0 ? config.spoolThreshold() : DEFAULT_SPOOL_THRESHOLD;
         jdbcTemplate = new JdbcTemplate(dataSource);
+        transactionTemplate = new TransactionTemplate(new DataSourceTransactionManager(dataSource));
+        if (replicaDataSource != null) {
+            replicaJdbcTemplate = new JdbcTemplate(replicaDataSource);
+            int window = config.readYourWritesWindow() > 0 ? config.readYourWritesWindow() : DEFAULT_READ_YOUR_WRITES_WINDOW;
+            recentWrites = CacheBuilder.newBuilder().expireAfterWrite(window, TimeUnit.SECONDS).build();
+        } else {
+            replicaJdbcTemplate = null;
+            recentWrites = null;
+        }
+        try {
+            dialect = FilestoreDialects.of(config.dialect(), dataSource);
+        } catch (SQLException e) {
+            log.warn("Could not detect database dialect, using the generic one", e);
+            dialect = new GenericDialect();
+        }
+        // The large object table is created only on databases supporting them
+        largeObjects = dialect.supportsLargeObjects() && tableExists(largeObjectTable(table));
+        largeObjectThreshold = largeObjects && !chunked ? config.largeObjectThreshold() : 0;
+        prefetchExecutor = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "RdbmsFileStoreChunkPrefetch");
+            thread.setDaemon(true);
+            return thread;
+        });
+        readIdleTimeoutMillis = TimeUnit.SECONDS.toMillis(config.readIdleTimeout() > 0 ? config.readIdleTimeout() : DEFAULT_READ_IDLE_TIMEOUT);
+        idleStreamCloser = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RdbmsFileStoreIdleStreamCloser");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long checkInterval = Math.min(readIdleTimeoutMillis, TimeUnit.SECONDS.toMillis(10));
+        idleStreamCloser.scheduleWithFixedDelay(this::closeIdleStreams, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+        openJournal(config);
 
         Dictionary props = new Hashtable();
         props.put("url.handler.protocol", protocol);
@@ -121,11 +325,274 @@ public class RdbmsFileStoreService implements FileStoreService {
             urlStreamHandlerServiceServiceRegistration.unregister();
         }
         urlStreamHandlerServiceServiceRegistration = null;
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+        }
+        if (idleStreamCloser != null) {
+            idleStreamCloser.shutdownNow();
+        }
+        openStreams.forEach(ConnectionScopedInputStream::close);
+        if (journalWriter != null) {
+            journalWriter.shutdown();
+            try {
+                journalWriter.awaitTermination(30, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // Entries which could not be inserted now are kept in the journal and inserted after the next activation
+            flushJournal();
+        }
+        journalWriter = null;
+        journal = null;
+    }
+
+    private void openJournal(Config config) {
+        journal = null;
+        writeBehindThreshold = config.writeBehindThreshold();
+        if (writeBehindThreshold <= 0) {
+            return;
+        }
+        File directory = config.writeBehindDirectory() != null && !config.writeBehindDirectory().trim().isEmpty()
+                ? new File(config.writeBehindDirectory())
+                : new File(System.getProperty("user.home"), "filestore-journal" + File.separator + table);
+        try {
+            journal = WriteBehindJournal.open(directory);
+        } catch (IOException e) {
+            log.error("Could not open write-behind journal in " + directory + ", files are written directly", e);
+            return;
+        }
+        writeBehindBatchSize = config.writeBehindBatchSize() > 0 ? config.writeBehindBatchSize() : DEFAULT_WRITE_BEHIND_BATCH_SIZE;
+        int interval = config.writeBehindInterval() > 0 ? config.writeBehindInterval() : DEFAULT_WRITE_BEHIND_INTERVAL;
+        journalWriter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "RdbmsFileStoreJournalWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Entries left by the previous run are inserted by the first flush
+        journalWriter.scheduleWithFixedDelay(this::flushJournal, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Inserts the journal entries to the database in batches, each batch in a single transaction. Entries which are
+     * already in the database (inserted before a crash, but not removed from the journal) are only removed.
+     */
+    void flushJournal() {
+        synchronized (journalLock) {
+            try {
+                List<JournalEntry> entries = journal.pending(writeBehindBatchSize);
+                while (!entries.isEmpty()) {
+                    // Checked on the primary, the replica may not have the entries inserted before a crash yet
+                    Set<String> stored = queryExisting(jdbcTemplate, entries.stream().map(JournalEntry::getFileId).collect(Collectors.toList()));
+                    List<FileEntity> files = entries.stream()
+                            .filter(entry -> !stored.contains(entry.getFileId()))
+                            .map(entry -> {
+                                FileEntity file = FileEntity.createEntity(entry.getFileId(), entry.getFileName(), entry.getMimeType(),
+                                        new ByteArrayInputStream(entry.getData()), entry.getData().length);
+                                file.setCreateTime(entry.getCreateTime());
+                                return file;
+                            })
+                            .collect(Collectors.toList());
+                    if (!files.isEmpty()) {
+                        transactionTemplate.execute(status -> {
+                            insertAll(files);
+                            return null;
+                        });
+                    }
+                    journal.remove(entries);
+                    entries = journal.pending(writeBehindBatchSize);
+                }
+            } catch (RuntimeException e) {
+                log.warn("Could not flush write-behind journal, it is retried later", e);
+            }
+        }
     }
 
     @Override
     public final String put(final InputStream data, final String fileName, final String mimeType) throws IOException {
-        FileEntity file = FileEntity.createEntity(fileName, mimeType, data);
+        return put(data, fileName, mimeType, -1);
+    }
+
+    @Override
+    public String put(final InputStream data, final String fileName, final String mimeType, final long sizeHint) throws IOException {
+        FileEntity file = createFile(data, fileName, mimeType, sizeHint);
+
+        JournalEntry entry = toJournalEntry(file, sizeHint);
+        if (entry != null) {
+            journal.append(entry);
+            return file.getFileId();
+        }
+
+        Closer closer = Closer.create();
+        try {
+            if (!storeOutOfLine(file, sizeHint, closer)) {
+                insertContent(file);
+            }
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+        return file.getFileId();
+    }
+
+    /**
+     * Stores all files in a single transaction, each of them as {@link #put} stores it. Inline content and metadata
+     * rows are inserted with JDBC batches, content which is spooled to a temporary file is inserted without waiting
+     * for the batch. Files of the write-behind journal are appended to it when the transaction is committed.
+     */
+    @Override
+    public List<String> putAll(final List<PutRequest> requests) throws IOException {
+        if (requests.isEmpty()) {
+            return new ArrayList<>();
+        }
+        List<String> fileIds = new ArrayList<>(requests.size());
+        List<JournalEntry> entries = new ArrayList<>();
+        List<FileEntity> inline = new ArrayList<>();
+        Closer closer = Closer.create();
+        try {
+            transactionTemplate.execute(status -> {
+                try {
+                    for (PutRequest request : requests) {
+                        FileEntity file = createFile(request.getData(), request.getFileName(), request.getMimeType(), request.getSizeHint());
+                        fileIds.add(file.getFileId());
+                        JournalEntry entry = toJournalEntry(file, request.getSizeHint());
+                        if (entry != null) {
+                            entries.add(entry);
+                        } else if (!storeOutOfLine(file, request.getSizeHint(), closer)) {
+                            if (file.getSize() > spoolThreshold) {
+                                insertContent(file);
+                            } else {
+                                inline.add(file);
+                            }
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                if (!inline.isEmpty()) {
+                    insertAll(inline);
+                }
+                return null;
+            });
+            for (JournalEntry entry : entries) {
+                journal.append(entry);
+            }
+        } catch (UncheckedIOException e) {
+            throw closer.rethrow(e.getCause());
+        } catch (Throwable e) {
+            throw closer.rethrow(e);
+        } finally {
+            closer.close();
+        }
+        return fileIds;
+    }
+
+    /**
+     * Reads the content of a file to a write-behind journal entry if it is not larger than the threshold.
+     *
+     * @return the entry, or <code>null</code> if the journal is disabled or the content is larger (the data of the
+     * file is restored)
+     */
+    private JournalEntry toJournalEntry(FileEntity file, long sizeHint) throws IOException {
+        if (journal == null || sizeHint > writeBehindThreshold) {
+            return null;
+        }
+        byte[] head = new byte[writeBehindThreshold + 1];
+        int count = ByteStreams.read(file.getData(), head, 0, head.length);
+        if (count > writeBehindThreshold) {
+            file.setData(new SequenceInputStream(new ByteArrayInputStream(head, 0, count), file.getData()));
+            return null;
+        }
+        return JournalEntry.builder()
+                .fileId(file.getFileId())
+                .fileName(file.getFilename())
+                .mimeType(file.getMimeType())
+                .createTime(file.getCreateTime())
+                .data(Arrays.copyOf(head, count))
+                .build();
+    }
+
+    /**
+     * Stores a file as a large object or in chunks. Content which is stored inline is measured instead (content of
+     * unknown length is spooled, the spooled content is registered to the closer) and it is inserted by the caller.
+     *
+     * @return <code>true</code> if the file is stored
+     */
+    private boolean storeOutOfLine(FileEntity file, long sizeHint, Closer closer) throws IOException {
+        if (largeObjectThreshold > 0 && (sizeHint < 0 || sizeHint > largeObjectThreshold)) {
+            byte[] head = new byte[largeObjectThreshold + 1];
+            int count = ByteStreams.read(file.getData(), head, 0, head.length);
+            if (count > largeObjectThreshold) {
+                file.setData(new SequenceInputStream(new ByteArrayInputStream(head, 0, count), file.getData()));
+                insertLargeObject(file);
+                return true;
+            }
+            // Small content of unknown length is measured by reading it
+            file.setData(new ByteArrayInputStream(head, 0, count));
+            file.setSize(count);
+            return false;
+        }
+
+        if (chunked) {
+            file.setSize(insertChunks(file.getFileId(), file.getData()));
+            jdbcTemplate.update(statements.getInsertMeta(), idType.toParameter(file.getFileId()), file.getFilename(), file.getMimeType(), file.getSize(), file.getCreateTime());
+            written(file.getFileId());
+            return true;
+        }
+        if (sizeHint < 0) {
+            // The LOB length has to be known before the insert, InputStream.available() is not the length of the content
+            SpooledContent content = closer.register(SpooledContent.spool(file.getData(), spoolThreshold));
+            file.setData(closer.register(content.openStream()));
+            file.setSize(content.getSize());
+        }
+        return false;
+    }
+
+    private void insertAll(List<FileEntity> files) {
+        files.forEach(file -> written(file.getFileId()));
+        if (chunked) {
+            for (FileEntity file : files) {
+                try {
+                    file.setSize(insertChunks(file.getFileId(), file.getData()));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        } else if (statements.isSplitContent()) {
+            batchInsert(statements.getInsertContent(), files, file -> file.getContentCallback(lobHandler, idType, dialect));
+        } else {
+            batchInsert(statements.getInsert(), files, file -> file.getCallback(lobHandler, idType, dialect));
+            return;
+        }
+        jdbcTemplate.batchUpdate(statements.getInsertMeta(), files.stream()
+                .map(file -> new Object[] {idType.toParameter(file.getFileId()), file.getFilename(), file.getMimeType(), file.getSize(), file.getCreateTime()})
+                .collect(Collectors.toList()));
+    }
+
+    private void batchInsert(String sql, List<FileEntity> files, Function<FileEntity, FilestorePreparedStatementCallback> callback) {
+        LobCreator lobCreator = lobHandler.getLobCreator();
+        try {
+            jdbcTemplate.batchUpdate(sql, new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    callback.apply(files.get(i)).bind(ps, lobCreator);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return files.size();
+                }
+            });
+        } finally {
+            lobCreator.close();
+        }
+    }
+
+    /**
+     * Creates the entity of a new file, defaulting its name and MIME type.
+     */
+    private FileEntity createFile(final InputStream data, final String fileName, final String mimeType, final long sizeHint) {
+        FileEntity file = FileEntity.createEntity(idGenerator.get(), fileName, mimeType, data, sizeHint);
 
         if (isNullOrEmpty(fileName)) {
             if (!isNullOrEmpty(mimeType)) {
@@ -140,76 +607,498 @@ public class RdbmsFileStoreService implements FileStoreService {
         if (file.getMimeType() == null) {
             file.setMimeType("application/octet-stream");
         }
+        return file;
+    }
+
+    /**
+     * Writes the content to a large object and inserts its id and the metadata in the same transaction.
+     */
+    private void insertLargeObject(FileEntity file) throws IOException {
+        try {
+            transactionTemplate.execute(status -> jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                CountingInputStream counter = new CountingInputStream(file.getData());
+                long oid;
+                try {
+                    oid = dialect.writeLargeObject(connection, counter);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                file.setSize(counter.getCount());
+                jdbcTemplate.update(statements.getInsertLargeObject(), idType.toParameter(file.getFileId()), oid);
+                jdbcTemplate.update(statements.getInsertMeta(), idType.toParameter(file.getFileId()), file.getFilename(), file.getMimeType(), file.getSize(), file.getCreateTime());
+                return null;
+            }));
+            written(file.getFileId());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-        jdbcTemplate.execute(FilestoreHelper.insert(table), file.getCallback(lobHandler));
-        return file.getFileId();
+    /**
+     * Inserts the content as a single LOB, the metadata row is inserted after the content row in the same transaction
+     * in the split schema.
+     */
+    private void insertContent(FileEntity file) {
+        if (statements.isSplitContent()) {
+            transactionTemplate.execute(status -> {
+                jdbcTemplate.execute(statements.getInsertContent(), file.getContentCallback(lobHandler, idType, dialect));
+                jdbcTemplate.update(statements.getInsertMeta(), idType.toParameter(file.getFileId()), file.getFilename(), file.getMimeType(), file.getSize(), file.getCreateTime());
+                return null;
+            });
+        } else {
+            jdbcTemplate.execute(statements.getInsert(), file.getCallback(lobHandler, idType, dialect));
+        }
+        written(file.getFileId());
+    }
+
+    /**
+     * Writes the content to chunk rows, holding a single chunk in memory.
+     *
+     * @return size of the content
+     */
+    private long insertChunks(String fileId, InputStream data) throws IOException {
+        byte[] buffer = new byte[chunkSize];
+        long size = 0;
+        int seq = 0;
+        try {
+            int count;
+            do {
+                count = ByteStreams.read(data, buffer, 0, buffer.length);
+                if (count > 0 || seq == 0) {
+                    final int chunkSeq = seq;
+                    final int chunkLength = count;
+                    jdbcTemplate.update(statements.getInsertChunk(), ps -> {
+                        idType.bind(ps, 1, fileId);
+                        ps.setInt(2, chunkSeq);
+                        ps.setBinaryStream(3, new ByteArrayInputStream(buffer, 0, chunkLength), chunkLength);
+                    });
+                    size += count;
+                    seq++;
+                }
+            } while (count == buffer.length);
+        } catch (IOException | RuntimeException e) {
+            jdbcTemplate.update(statements.getDeleteChunks(), idType.toParameter(fileId));
+            throw e;
+        }
+        return size;
+    }
+
+    /**
+     * Deletes the rows of the file (and its large object) in a single transaction. A file which is not inserted yet is
+     * removed from the write-behind journal.
+     */
+    @Override
+    public void delete(String id) {
+        String fileId = getStrippedId(id);
+        synchronized (journalLock) {
+            JournalEntry entry = journaled(fileId);
+            if (entry != null) {
+                journal.remove(Collections.singletonList(entry));
+            }
+            if (isStorable(fileId)) {
+                Object parameter = idType.toParameter(fileId);
+                transactionTemplate.execute(status -> {
+                    if (largeObjects) {
+                        jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+                            for (Long oid : jdbcTemplate.queryForList(statements.getReadLargeObject(), Long.class, parameter)) {
+                                dialect.deleteLargeObject(connection, oid);
+                            }
+                            return null;
+                        });
+                        jdbcTemplate.update(statements.getDeleteLargeObject(), parameter);
+                    }
+                    jdbcTemplate.update(statements.getDeleteChunks(), parameter);
+                    jdbcTemplate.update(statements.getDeleteContent(), parameter);
+                    jdbcTemplate.update(statements.getDelete(), parameter);
+                    return null;
+                });
+            }
+        }
+        // The replica may have the rows within the read-your-writes window
+        written(fileId);
+        metaCache.invalidate(fileId);
     }
 
     @Override
     public boolean exists(String id) {
         String fileId = getStrippedId(id);
-        Integer count = jdbcTemplate.queryForObject(count(table, fileId), Integer.class);
-        return count == 1;
+        if (journaled(fileId) != null) {
+            return true;
+        }
+        if (!isStorable(fileId)) {
+            return false;
+        }
+        JdbcTemplate reader = reader(fileId);
+        return exists(reader, fileId) || reader != jdbcTemplate && exists(jdbcTemplate, fileId);
+    }
+
+    private boolean exists(JdbcTemplate reader, String fileId) {
+        return !reader.queryForList(statements.getExists(), idType.toParameter(fileId)).isEmpty();
+    }
+
+    @Override
+    public Set<String> existing(Collection<String> ids) {
+        Set<String> fileIds = stripIds(ids);
+        Set<String> found = new HashSet<>(metaCache.getAllPresent(fileIds).keySet());
+        fileIds.stream().filter(fileId -> journaled(fileId) != null).forEach(found::add);
+        found.addAll(queryExisting(fileIds.stream().filter(fileId -> !found.contains(fileId)).collect(Collectors.toList())));
+        return ids.stream().filter(id -> id != null && found.contains(getStrippedId(id))).collect(Collectors.toSet());
+    }
+
+    /**
+     * Returns the given ids which are in the database, recently written ones and the ones which are not found on the
+     * replica are checked on the primary database.
+     */
+    private Set<String> queryExisting(Collection<String> fileIds) {
+        Set<String> found = new HashSet<>();
+        Map<JdbcTemplate, List<String>> readerFileIds = fileIds.stream().collect(Collectors.groupingBy(this::reader));
+        readerFileIds.forEach((template, ids) -> found.addAll(queryExisting(template, ids)));
+        found.addAll(queryExisting(jdbcTemplate, missedOnReplica(readerFileIds, found)));
+        return found;
+    }
+
+    /**
+     * Returns the ids which were queried on the replica and not found there.
+     */
+    private List<String> missedOnReplica(Map<JdbcTemplate, List<String>> readerFileIds, Collection<String> found) {
+        List<String> fileIds = replicaJdbcTemplate != null ? readerFileIds.get(replicaJdbcTemplate) : null;
+        return fileIds == null ? Collections.emptyList() : fileIds.stream().filter(fileId -> !found.contains(fileId)).collect(Collectors.toList());
+    }
+
+    private Set<String> queryExisting(JdbcTemplate template, Collection<String> fileIds) {
+        Set<String> found = new HashSet<>();
+        List<Object> parameters = fileIds.stream().filter(this::isStorable).map(idType::toParameter).collect(Collectors.toList());
+        for (List<Object> chunk : Lists.partition(parameters, IN_CHUNK_SIZE)) {
+            template.query(statements.existingIn(chunk.size()), FilestoreStatements.inParameters(chunk),
+                    (RowCallbackHandler) rs -> found.add(idType.read(rs, FILE_ID_FIELD)));
+        }
+        return found;
+    }
+
+    private JournalEntry journaled(String fileId) {
+        return journal != null ? journal.get(fileId) : null;
+    }
+
+    /**
+     * Records a write of the file, it is read from the primary database within the read-your-writes window.
+     */
+    private void written(String fileId) {
+        if (recentWrites != null) {
+            recentWrites.put(fileId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Returns the template of the database which queries of the given file are sent to.
+     */
+    private JdbcTemplate reader(String fileId) {
+        return recentWrites != null && recentWrites.getIfPresent(fileId) == null ? replicaJdbcTemplate : jdbcTemplate;
+    }
+
+    /**
+     * Runs a query of the file on its reader. A file which is not found on the replica is queried on the primary
+     * database, it can be written by an other node within the replication lag (recent writes are tracked per node).
+     */
+    private <T> T read(String fileId, Function<JdbcTemplate, T> query) {
+        JdbcTemplate reader = reader(fileId);
+        try {
+            return query.apply(reader);
+        } catch (EmptyResultDataAccessException e) {
+            if (reader == jdbcTemplate) {
+                throw e;
+            }
+            return query.apply(jdbcTemplate);
+        }
     }
 
     @Override
     public InputStream get(String id) {
         String fileId = getStrippedId(id);
-        return jdbcTemplate.queryForObject(read(table, fileId, DATA_FIELD),
-                (rs, rowNum) -> rs.getBinaryStream(DATA_FIELD));
+        JournalEntry entry = journaled(fileId);
+        if (entry != null) {
+            return new ByteArrayInputStream(entry.getData());
+        }
+        return read(fileId, reader -> {
+            InputStream data = openDataStream(reader, statements.getReadData(), idType.toParameter(fileId));
+            if (data == null && largeObjects) {
+                data = openLargeObjectStream(reader, fileId, 0, -1);
+            }
+            if (data != null) {
+                return data;
+            }
+            byte[] firstChunk = readChunk(reader, fileId, 0);
+            if (firstChunk == null) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return new ChunkedInputStream(seq -> readChunk(reader, fileId, seq), prefetchExecutor, firstChunk, 0, 0, -1);
+        });
     }
 
     @Override
-    public String getMimeType(String id) {
+    public InputStream get(String id, long offset, long length) {
+        if (offset < 0) {
+            throw new IllegalArgumentException("Offset cannot be negative");
+        }
         String fileId = getStrippedId(id);
+        JournalEntry entry = journaled(fileId);
+        if (entry != null) {
+            int from = (int) Math.min(offset, entry.getData().length);
+            int to = length >= 0 ? (int) Math.min(from + length, entry.getData().length) : entry.getData().length;
+            return new ByteArrayInputStream(entry.getData(), from, to - from);
+        }
+        long available = getSize(fileId) - offset;
+        long rangeLength = length >= 0 ? Math.min(length, available) : available;
+        if (rangeLength <= 0) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        return read(fileId, reader -> {
+            InputStream data = openDataStream(reader, statements.getReadRange(), offset + 1, rangeLength, idType.toParameter(fileId));
+            if (data == null && largeObjects) {
+                data = openLargeObjectStream(reader, fileId, offset, rangeLength);
+            }
+            if (data != null) {
+                return data;
+            }
+            // Chunked content, all chunks but the last one have the same length
+            List<Integer> chunkLengths = reader.queryForList(statements.getChunkLength(), Integer.class, idType.toParameter(fileId));
+            int firstChunkLength = chunkLengths.isEmpty() || chunkLengths.get(0) == null ? 0 : chunkLengths.get(0);
+            if (firstChunkLength == 0) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            int firstSeq = (int) (offset / firstChunkLength);
+            byte[] firstChunk = readChunk(reader, fileId, firstSeq);
+            if (firstChunk == null) {
+                return new ByteArrayInputStream(new byte[0]);
+            }
+            return new ChunkedInputStream(seq -> readChunk(reader, fileId, seq), prefetchExecutor, firstChunk, firstSeq,
+                    (int) (offset % firstChunkLength), rangeLength);
+        });
+    }
+
+    /**
+     * Executes a query of the DATA column and returns a stream which keeps the connection open until it is closed.
+     *
+     * @return stream of the content or <code>null</code> if the DATA column is <code>NULL</code> (chunked content)
+     */
+    private InputStream openDataStream(JdbcTemplate reader, String sql, Object... args) {
+        return openStream(reader, sql, true, (connection, resultSet) -> resultSet.getBinaryStream(DATA_FIELD), args);
+    }
+
+    /**
+     * Opens the large object of a file positioned at <code>offset</code>.
+     *
+     * @return stream of the content or <code>null</code> if the file is not stored as a large object
+     */
+    private InputStream openLargeObjectStream(JdbcTemplate reader, String fileId, long offset, long length) {
+        return openStream(reader, statements.getReadLargeObject(), false,
+                (connection, resultSet) -> dialect.openLargeObject(connection, resultSet.getLong(LOB_OID_FIELD), offset, length),
+                idType.toParameter(fileId));
+    }
+
+    /**
+     * Opens a stream of the first row of the query with the given opener, the stream keeps the connection (and the
+     * transaction) open until it is closed.
+     *
+     * @param required the query has to return a row
+     */
+    private InputStream openStream(JdbcTemplate reader, String sql, boolean required, ContentOpener opener, Object... args) {
+        // The stream outlives the call, so it uses its own connection instead of a transaction bound one
+        Connection connection;
         try {
-            return (String) metaCache.get(fileId).get(MIME_TYPE_FIELD);
-        } catch (NullPointerException | UncheckedExecutionException | IncorrectResultSizeDataAccessException | ExecutionException e) {
-            throw new IllegalArgumentException(NOT_FOUND_MESSAGE);
+            connection = reader.getDataSource().getConnection();
+        } catch (SQLException e) {
+            throw reader.getExceptionTranslator().translate("get", sql, e);
+        }
+        PreparedStatement statement = null;
+        ResultSet resultSet = null;
+        boolean restoreAutoCommit = false;
+        try {
+            // PostgreSQL uses a cursor (instead of reading the whole result) only in a transaction
+            if (connection.getAutoCommit()) {
+                connection.setAutoCommit(false);
+                restoreAutoCommit = true;
+            }
+            statement = connection.prepareStatement(sql);
+            statement.setFetchSize(dialect.getStreamingFetchSize());
+            for (int i = 0; i < args.length; i++) {
+                statement.setObject(i + 1, args[i]);
+            }
+            resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                if (required) {
+                    throw new EmptyResultDataAccessException(1);
+                }
+                release(connection, statement, resultSet, restoreAutoCommit);
+                return null;
+            }
+            InputStream data = opener.open(connection, resultSet);
+            if (data != null) {
+                ConnectionScopedInputStream stream = new ConnectionScopedInputStream(data, resultSet, statement, connection,
+                        restoreAutoCommit, openStreams::remove);
+                openStreams.add(stream);
+                return stream;
+            }
+        } catch (SQLException e) {
+            release(connection, statement, resultSet, restoreAutoCommit);
+            throw reader.getExceptionTranslator().translate("get", sql, e);
+        } catch (RuntimeException e) {
+            release(connection, statement, resultSet, restoreAutoCommit);
+            throw e;
+        }
+        release(connection, statement, resultSet, restoreAutoCommit);
+        return null;
+    }
+
+    private boolean tableExists(String tableName) {
+        try (Connection connection = dataSource.getConnection()) {
+            DatabaseMetaData metaData = connection.getMetaData();
+            for (String name : new String[] {tableName, tableName.toLowerCase(Locale.ROOT)}) {
+                try (ResultSet tables = metaData.getTables(null, null, name, null)) {
+                    if (tables.next()) {
+                        return true;
+                    }
+                }
+            }
+        } catch (SQLException e) {
+            log.warn("Could not check table " + tableName, e);
         }
+        return false;
+    }
+
+    @FunctionalInterface
+    private interface ContentOpener {
+        InputStream open(Connection connection, ResultSet resultSet) throws SQLException;
+    }
+
+    private void release(Connection connection, Statement statement, ResultSet resultSet, boolean restoreAutoCommit) {
+        JdbcUtils.closeResultSet(resultSet);
+        JdbcUtils.closeStatement(statement);
+        try {
+            if (restoreAutoCommit) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.debug("Could not end read transaction", e);
+        }
+        JdbcUtils.closeConnection(connection);
+    }
+
+    private void closeIdleStreams() {
+        long now = System.currentTimeMillis();
+        openStreams.stream()
+                .filter(stream -> stream.isIdle(now, readIdleTimeoutMillis))
+                .forEach(ConnectionScopedInputStream::closeIdle);
+    }
+
+    private byte[] readChunk(JdbcTemplate reader, String fileId, int seq) {
+        List<byte[]> chunks = reader.query(statements.getReadChunk(), (rs, rowNum) -> rs.getBytes(DATA_FIELD), idType.toParameter(fileId), seq);
+        return chunks.isEmpty() ? null : chunks.get(0);
+    }
+
+    @Override
+    public String getMimeType(String id) {
+        String fileId = getStrippedId(id);
+        return getMetadata(fileId).getMimeType();
     }
 
     @Override
     public String getFileName(String id) {
         String fileId = getStrippedId(id);
-        try {
-            return (String) metaCache.get(fileId).get(FILENAME_FIELD);
-        } catch (NullPointerException | UncheckedExecutionException | IncorrectResultSizeDataAccessException | ExecutionException e) {
-            throw new IllegalArgumentException(NOT_FOUND_MESSAGE);
-        }
+        return getMetadata(fileId).getFileName();
     }
 
     @Override
     public long getSize(String id) {
         String fileId = getStrippedId(id);
-        try {
-            return (Long) metaCache.get(fileId).get(SIZE_FIELD);
-        } catch (NullPointerException | UncheckedExecutionException | IncorrectResultSizeDataAccessException | ExecutionException e) {
-            throw new IllegalArgumentException(NOT_FOUND_MESSAGE);
-        }
+        return getMetadata(fileId).getSize();
     }
 
     @Override
     public Timestamp getCreateTime(String id) {
+        String fileId = getStrippedId(id);
+        return (Timestamp) getMetadata(fileId).getCreateTime();
+    }
+
+    @Override
+    public FileMetadata getMetadata(String id) {
         String fileId = getStrippedId(id);
         try {
-            return (Timestamp) metaCache.get(fileId).get(CREATE_TIME_FIELD);
+            return metaCache.get(fileId);
         } catch (NullPointerException | UncheckedExecutionException | IncorrectResultSizeDataAccessException | ExecutionException e) {
             throw new IllegalArgumentException(NOT_FOUND_MESSAGE);
         }
     }
 
-    private Map<String, ?> getMeta(String id) {
+    @Override
+    public Map<String, FileMetadata> getMetadata(Collection<String> ids) {
+        Set<String> fileIds = stripIds(ids);
+        Map<String, FileMetadata> found = new HashMap<>(metaCache.getAllPresent(fileIds));
+        fileIds.stream().map(this::journaled).filter(Objects::nonNull).forEach(entry -> found.put(entry.getFileId(), toMetadata(entry)));
+        Map<JdbcTemplate, List<String>> missing = fileIds.stream().filter(fileId -> !found.containsKey(fileId) && isStorable(fileId))
+                .collect(Collectors.groupingBy(this::reader));
+        missing.forEach((reader, readerFileIds) -> queryMetadata(reader, readerFileIds, found));
+        queryMetadata(jdbcTemplate, missedOnReplica(missing, found.keySet()), found);
+        Map<String, FileMetadata> metadata = new LinkedHashMap<>();
+        ids.stream().filter(id -> id != null && found.containsKey(getStrippedId(id)))
+                .forEach(id -> metadata.put(id, found.get(getStrippedId(id))));
+        return metadata;
+    }
+
+    private void queryMetadata(JdbcTemplate reader, List<String> fileIds, Map<String, FileMetadata> found) {
+        List<Object> parameters = fileIds.stream().map(idType::toParameter).collect(Collectors.toList());
+        for (List<Object> chunk : Lists.partition(parameters, IN_CHUNK_SIZE)) {
+            reader.query(statements.metaIn(chunk.size()), FilestoreStatements.inParameters(chunk), (RowCallbackHandler) rs -> {
+                FileMetadata metadata = toMetadata(rs, idType.read(rs, FILE_ID_FIELD));
+                metaCache.put(metadata.getFileId(), metadata);
+                found.put(metadata.getFileId(), metadata);
+            });
+        }
+    }
+
+    private FileMetadata getMeta(String id) {
         String fileId = getStrippedId(id);
-        return jdbcTemplate.queryForObject(meta(table, fileId),
-                (RowMapper<Map<String, ?>>) (rs, rowNum) -> ImmutableMap.of(
-                    FILENAME_FIELD, rs.getString(FILENAME_FIELD),
-                    MIME_TYPE_FIELD, rs.getString(MIME_TYPE_FIELD),
-                    CREATE_TIME_FIELD, rs.getTimestamp(CREATE_TIME_FIELD),
-                    SIZE_FIELD, rs.getLong(SIZE_FIELD)));
+        JournalEntry entry = journaled(fileId);
+        if (entry != null) {
+            return toMetadata(entry);
+        }
+        return read(fileId, reader -> reader.queryForObject(statements.getMeta(),
+                (RowMapper<FileMetadata>) (rs, rowNum) -> toMetadata(rs, fileId), idType.toParameter(fileId)));
 
     }
 
+    /**
+     * Checks whether the id can be stored in the id column, other ids cannot exist.
+     */
+    private boolean isStorable(String fileId) {
+        try {
+            idType.toParameter(fileId);
+            return true;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static FileMetadata toMetadata(JournalEntry entry) {
+        return FileMetadata.builder()
+                .fileId(entry.getFileId())
+                .fileName(entry.getFileName())
+                .mimeType(entry.getMimeType())
+                .createTime(entry.getCreateTime())
+                .size(entry.getData().length)
+                .build();
+    }
+
+    private static FileMetadata toMetadata(ResultSet rs, String fileId) throws SQLException {
+        return FileMetadata.builder()
+                .fileId(fileId)
+                .fileName(rs.getString(FILENAME_FIELD))
+                .mimeType(rs.getString(MIME_TYPE_FIELD))
+                .createTime(rs.getTimestamp(CREATE_TIME_FIELD))
+                .size(rs.getLong(SIZE_FIELD))
+                .build();
+    }
+
     @Override
     public URL getAccessUrl(String id) throws IOException {
         String fileId = getStrippedId(id);
@@ -225,6 +1114,10 @@ public class RdbmsFileStoreService implements FileStoreService {
         return string == null || string.length() == 0;
     }
 
+    private Set<String> stripIds(Collection<String> ids) {
+        return ids.stream().filter(Objects::nonNull).map(this::getStrippedId).collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
     private String getStrippedId(String id) {
         String cleanedId = id;
         if (id != null && id.startsWith(getProtocol()) && id.split(":").length >= 2) {
@@ -0,0 +1,154 @@
+package hu.blackbelt.osgi.filestore.rdbms;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import hu.blackbelt.osgi.filestore.api.UploadProgressRegistry;
+import hu.blackbelt.osgi.filestore.rdbms.helper.UploadProgressHelper;
+import lombok.extern.slf4j.Slf4j;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.ConfigurationPolicy;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.metatype.annotations.AttributeDefinition;
+import org.osgi.service.metatype.annotations.Designate;
+import org.osgi.service.metatype.annotations.ObjectClassDefinition;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import javax.sql.DataSource;
+import java.sql.Timestamp;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static hu.blackbelt.osgi.filestore.rdbms.helper.UploadProgressHelper.*;
+
+/**
+ * Upload progress registry shared by all nodes using the same database, so the status of an upload can be polled
+ * on any of them. Progress is stored in the <code>&lt;table&gt;_PROGRESS</code> table created by the filestore
+ * liquibase script. Rows which are not updated for the configured time (uploads never removed by the client, uploads
+ * of crashed nodes) are expired: they are not returned and they are deleted when the progress of an upload is saved.
+ */
+@Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
+@Designate(ocd = RdbmsUploadProgressRegistry.Config.class)
+@Slf4j
+public class RdbmsUploadProgressRegistry implements UploadProgressRegistry {
+
+    @ObjectClassDefinition()
+    public @interface Config {
+
+        @AttributeDefinition(name="Table", description = "Table to store files, progress is stored in <table>_PROGRESS")
+        String table() default "FILESTORE";
+
+        @AttributeDefinition(required = false, name = "Upload progress TTL (ms)", description = "Progress of uploads which are not updated for this time is deleted")
+        long uploadProgressTtl() default DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS;
+    }
+
+    public static final long DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS = 60 * 60 * 1000L;
+
+    @Reference
+    DataSource dataSource;
+
+    JdbcTemplate jdbcTemplate;
+
+    private String table;
+
+    private long expireAfterMillis;
+
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    @Activate
+    void activate(Config config) {
+        table = progressTable(config.table().toUpperCase());
+        expireAfterMillis = config.uploadProgressTtl() > 0 ? config.uploadProgressTtl() : DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS;
+        nextSweep.set(System.currentTimeMillis());
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    @Override
+    public void save(UploadProgress progress) {
+        evictExpired(System.currentTimeMillis());
+        UploadProgress.Status status = progress.getStatus() != null ? progress.getStatus() : UploadProgress.Status.RUNNING;
+        Timestamp updated = new Timestamp(progress.getUpdated() != null ? progress.getUpdated().getTime() : System.currentTimeMillis());
+        int updatedRows = jdbcTemplate.update(UploadProgressHelper.update(table), progress.getBytesRead(), progress.getContentLength(), status.name(),
+                progress.getMessage(), updated, progress.getUploadId());
+        if (updatedRows == 0) {
+            try {
+                jdbcTemplate.update(insert(table), progress.getUploadId(), progress.getBytesRead(), progress.getContentLength(), status.name(),
+                        progress.getMessage(), updated);
+            } catch (DuplicateKeyException e) {
+                // Inserted concurrently by an other node
+                jdbcTemplate.update(UploadProgressHelper.update(table), progress.getBytesRead(), progress.getContentLength(), status.name(),
+                        progress.getMessage(), updated, progress.getUploadId());
+            }
+        }
+    }
+
+    @Override
+    public void update(String uploadId, long bytesRead, long contentLength) {
+        jdbcTemplate.update(updateBytes(table), bytesRead, contentLength, new Timestamp(System.currentTimeMillis()), uploadId);
+    }
+
+    @Override
+    public UploadProgress get(String uploadId) {
+        if (uploadId == null) {
+            return null;
+        }
+        List<UploadProgress> progress = jdbcTemplate.query(read(table), (rs, rowNum) -> UploadProgress.builder()
+                .uploadId(uploadId)
+                .bytesRead(rs.getLong(BYTES_READ_FIELD))
+                .contentLength(rs.getLong(CONTENT_LENGTH_FIELD))
+                .status(UploadProgress.Status.valueOf(rs.getString(STATUS_FIELD)))
+                .message(rs.getString(MESSAGE_FIELD))
+                .updated(rs.getTimestamp(UPDATED_FIELD) != null ? new Date(rs.getTimestamp(UPDATED_FIELD).getTime()) : null)
+                .build(), uploadId);
+        if (progress.isEmpty() || isExpired(progress.get(0), System.currentTimeMillis())) {
+            return null;
+        }
+        return progress.get(0);
+    }
+
+    @Override
+    public void remove(String uploadId) {
+        if (uploadId != null) {
+            jdbcTemplate.update(delete(table), uploadId);
+        }
+    }
+
+    /**
+     * Deletes the expired rows, at most once in the expiration time on each node, so saving a progress does not scan
+     * the table each time.
+     */
+    void evictExpired(long now) {
+        long sweep = nextSweep.get();
+        if (now >= sweep && nextSweep.compareAndSet(sweep, now + expireAfterMillis)) {
+            int deleted = jdbcTemplate.update(deleteExpired(table), new Timestamp(now - expireAfterMillis));
+            if (deleted > 0) {
+                log.debug("Deleted " + deleted + " expired upload progress rows from " + table);
+            }
+        }
+    }
+
+    private boolean isExpired(UploadProgress progress, long now) {
+        return progress.getUpdated() != null && now - progress.getUpdated().getTime() > expireAfterMillis;
+    }
+}
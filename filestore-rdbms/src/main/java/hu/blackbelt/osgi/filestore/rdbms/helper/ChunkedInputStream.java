@@ -0,0 +1,134 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.function.IntFunction;
+
+/**
+ * Reads content stored in chunk rows. The next chunk is fetched in the background while the current one is
+ * consumed, so at most two chunks are held in memory.
+ */
+public class ChunkedInputStream extends InputStream {
+    private static final byte[] EMPTY = new byte[0];
+
+    private final IntFunction<byte[]> chunkReader;
+    private final Executor executor;
+    private byte[] chunk;
+    private int position;
+    private int nextSeq;
+    private long remaining;
+    private CompletableFuture<byte[]> next;
+
+    /**
+     * @param chunkReader reads the chunk with the given sequence number, <code>null</code> if it does not exist
+     * @param executor    executor of prefetching
+     * @param firstChunk  content of the first chunk to read
+     * @param firstSeq    sequence number of the first chunk
+     * @param skip        number of bytes to skip in the first chunk
+     * @param length      number of bytes to read, negative to read until the last chunk
+     */
+    public ChunkedInputStream(IntFunction<byte[]> chunkReader, Executor executor, byte[] firstChunk, int firstSeq, int skip, long length) {
+        this.chunkReader = chunkReader;
+        this.executor = executor;
+        this.chunk = firstChunk;
+        this.position = Math.min(skip, firstChunk.length);
+        this.nextSeq = firstSeq + 1;
+        this.remaining = length >= 0 ? length : Long.MAX_VALUE;
+        prefetch();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        return read(single, 0, 1) < 0 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        while (remaining > 0 && position >= chunk.length) {
+            if (!advance()) {
+                return -1;
+            }
+        }
+        if (remaining <= 0) {
+            return -1;
+        }
+        int count = (int) Math.min(Math.min(len, chunk.length - position), remaining);
+        System.arraycopy(chunk, position, b, off, count);
+        position += count;
+        remaining -= count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return (int) Math.min(chunk.length - position, remaining);
+    }
+
+    @Override
+    public void close() {
+        if (next != null) {
+            next.cancel(false);
+            next = null;
+        }
+        chunk = EMPTY;
+        position = 0;
+        remaining = 0;
+    }
+
+    private void prefetch() {
+        if (remaining > chunk.length - position) {
+            int seq = nextSeq;
+            next = CompletableFuture.supplyAsync(() -> chunkReader.apply(seq), executor);
+        } else {
+            next = null;
+        }
+    }
+
+    private boolean advance() throws IOException {
+        if (next == null) {
+            return false;
+        }
+        byte[] fetched;
+        try {
+            fetched = next.join();
+        } catch (CompletionException e) {
+            throw new IOException("Could not read chunk " + nextSeq, e.getCause());
+        }
+        if (fetched == null) {
+            next = null;
+            return false;
+        }
+        chunk = fetched;
+        position = 0;
+        nextSeq++;
+        prefetch();
+        return true;
+    }
+}
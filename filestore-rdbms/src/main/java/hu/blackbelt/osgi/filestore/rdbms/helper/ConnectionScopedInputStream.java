@@ -0,0 +1,170 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.function.Consumer;
+
+/**
+ * Stream of a LOB column which keeps the connection, statement and result set it is read from open until it is
+ * closed, so drivers do not have to materialize the whole value. Streams left open are closed by the owner after an
+ * idle timeout (see {@link #isIdle(long, long)}).
+ */
+@Slf4j
+public class ConnectionScopedInputStream extends InputStream {
+    private final InputStream data;
+    private final ResultSet resultSet;
+    private final Statement statement;
+    private final Connection connection;
+    private final boolean restoreAutoCommit;
+    private final Consumer<ConnectionScopedInputStream> onClose;
+    private volatile long lastAccess = System.currentTimeMillis();
+    private boolean closed;
+    private boolean timedOut;
+    private boolean endOfStream;
+
+    /**
+     * @param restoreAutoCommit the transaction was started for the stream, it is ended and auto-commit mode is
+     *                          restored on close
+     * @param onClose           called once when the stream is closed
+     */
+    public ConnectionScopedInputStream(InputStream data, ResultSet resultSet, Statement statement, Connection connection,
+                                       boolean restoreAutoCommit, Consumer<ConnectionScopedInputStream> onClose) {
+        this.data = data;
+        this.resultSet = resultSet;
+        this.statement = statement;
+        this.connection = connection;
+        this.restoreAutoCommit = restoreAutoCommit;
+        this.onClose = onClose;
+    }
+
+    @Override
+    public synchronized int read() throws IOException {
+        if (endOfStream) {
+            return -1;
+        }
+        ensureOpen();
+        lastAccess = System.currentTimeMillis();
+        return closeAtEnd(data.read());
+    }
+
+    @Override
+    public synchronized int read(byte[] b, int off, int len) throws IOException {
+        if (endOfStream) {
+            return -1;
+        }
+        ensureOpen();
+        lastAccess = System.currentTimeMillis();
+        return closeAtEnd(data.read(b, off, len));
+    }
+
+    @Override
+    public synchronized long skip(long n) throws IOException {
+        if (endOfStream) {
+            return 0;
+        }
+        ensureOpen();
+        lastAccess = System.currentTimeMillis();
+        return data.skip(n);
+    }
+
+    @Override
+    public synchronized int available() throws IOException {
+        if (endOfStream) {
+            return 0;
+        }
+        ensureOpen();
+        return data.available();
+    }
+
+    public boolean isIdle(long now, long idleTimeoutMillis) {
+        return now - lastAccess > idleTimeoutMillis;
+    }
+
+    /**
+     * Closes the stream because it was not read for too long.
+     */
+    public synchronized void closeIdle() {
+        if (!closed) {
+            log.warn("Closing database stream which was not read or closed in time");
+            timedOut = true;
+            close();
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            data.close();
+        } catch (IOException e) {
+            log.debug("Could not close LOB stream", e);
+        }
+        closeQuietly(resultSet);
+        closeQuietly(statement);
+        try {
+            if (restoreAutoCommit) {
+                connection.commit();
+                connection.setAutoCommit(true);
+            }
+        } catch (SQLException e) {
+            log.debug("Could not end read transaction", e);
+        }
+        closeQuietly(connection);
+        onClose.accept(this);
+    }
+
+    /**
+     * The connection is released as soon as the content is read, callers which do not close the stream do not
+     * hold it until the idle timeout.
+     */
+    private int closeAtEnd(int result) {
+        if (result < 0) {
+            endOfStream = true;
+            close();
+        }
+        return result;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException(timedOut ? "Stream closed after idle timeout" : "Stream closed");
+        }
+    }
+
+    private static void closeQuietly(AutoCloseable closeable) {
+        try {
+            closeable.close();
+        } catch (Exception e) {
+            log.debug("Could not close " + closeable, e);
+        }
+    }
+}
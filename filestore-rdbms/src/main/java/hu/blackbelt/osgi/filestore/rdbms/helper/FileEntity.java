@@ -24,7 +24,6 @@ import lombok.Getter;
 import lombok.Setter;
 import org.springframework.jdbc.support.lob.LobHandler;
 
-import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Timestamp;
 import java.time.format.DateTimeFormatter;
@@ -38,8 +37,17 @@ import static java.time.LocalDateTime.now;
 public final class FileEntity {
     private static DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm");
 
-    public static FileEntity createEntity(String filename, String mimeType, InputStream data) throws IOException {
-        return new FileEntity(filename, mimeType, data);
+    /**
+     * Creates an entity of content with the given size.
+     *
+     * @param size length of the content, or <code>-1</code> if it is set later (when the content is measured)
+     */
+    public static FileEntity createEntity(String filename, String mimeType, InputStream data, long size) {
+        return createEntity(UUID.randomUUID().toString(), filename, mimeType, data, size);
+    }
+
+    public static FileEntity createEntity(String fileId, String filename, String mimeType, InputStream data, long size) {
+        return new FileEntity(fileId, filename, mimeType, data, size);
     }
 
     private String filename;
@@ -49,12 +57,12 @@ public final class FileEntity {
     private long size;
     private InputStream data;
 
-    private FileEntity(String filename, String mimeType, InputStream data) throws IOException {
-        this.fileId = UUID.randomUUID().toString();
+    private FileEntity(String fileId, String filename, String mimeType, InputStream data, long size) {
+        this.fileId = fileId;
         this.mimeType = mimeType;
         this.filename = filename == null ? fileId + '.' + mimeType : filename;
         this.data = data;
-        this.size = data.available();
+        this.size = size;
         this.createTime = new Timestamp(new Date().getTime());
     }
 
@@ -69,6 +77,14 @@ public final class FileEntity {
     }
 
     public FilestorePreparedStatementCallback getCallback(LobHandler lobHandler) {
-        return new FilestorePreparedStatementCallback(lobHandler, this);
+        return getCallback(lobHandler, FileIdType.STRING, new GenericDialect());
+    }
+
+    public FilestorePreparedStatementCallback getCallback(LobHandler lobHandler, FileIdType idType, FilestoreDialect dialect) {
+        return new FilestorePreparedStatementCallback(lobHandler, this, idType, dialect, false);
+    }
+
+    public FilestorePreparedStatementCallback getContentCallback(LobHandler lobHandler, FileIdType idType, FilestoreDialect dialect) {
+        return new FilestorePreparedStatementCallback(lobHandler, this, idType, dialect, true);
     }
 }
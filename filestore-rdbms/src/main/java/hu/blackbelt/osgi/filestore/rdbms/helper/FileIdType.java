@@ -0,0 +1,142 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import java.nio.ByteBuffer;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.UUID;
+
+/**
+ * Column type of the file ids. The compact types require ids in UUID form, ids which cannot be converted are not
+ * found.
+ */
+public enum FileIdType {
+
+    /**
+     * The id as it is, in a <code>VARCHAR(255)</code> column.
+     */
+    STRING("VARCHAR(255)") {
+        @Override
+        public Object toParameter(String fileId) {
+            return fileId;
+        }
+
+        @Override
+        public void bind(PreparedStatement ps, int index, String fileId) throws SQLException {
+            ps.setString(index, fileId);
+        }
+
+        @Override
+        public String read(ResultSet rs, String columnName) throws SQLException {
+            return rs.getString(columnName);
+        }
+    },
+
+    /**
+     * Native UUID column (PostgreSQL, HSQLDB).
+     */
+    UUID("UUID") {
+        @Override
+        public Object toParameter(String fileId) {
+            return java.util.UUID.fromString(fileId);
+        }
+    },
+
+    /**
+     * UUID in a <code>BINARY(16)</code> column (databases without native UUID type), <code>BYTEA</code> on PostgreSQL.
+     */
+    BINARY("BINARY(16)") {
+        @Override
+        public String getColumnType(String dialect) {
+            return FilestoreDialect.POSTGRESQL.equals(dialect) ? "BYTEA" : getColumnType();
+        }
+
+        @Override
+        public Object toParameter(String fileId) {
+            java.util.UUID uuid = java.util.UUID.fromString(fileId);
+            return ByteBuffer.allocate(16)
+                    .putLong(uuid.getMostSignificantBits())
+                    .putLong(uuid.getLeastSignificantBits())
+                    .array();
+        }
+    };
+
+    private final String columnType;
+
+    FileIdType(String columnType) {
+        this.columnType = columnType;
+    }
+
+    /**
+     * Column type used by the liquibase changelog.
+     */
+    public String getColumnType() {
+        return columnType;
+    }
+
+    /**
+     * Column type used by the liquibase changelog on the database of the given dialect (see
+     * {@link FilestoreDialects#detect(String)}).
+     */
+    public String getColumnType(String dialect) {
+        return getColumnType();
+    }
+
+    /**
+     * Checks whether a <code>FILE_ID</code> column of the given database type (as reported by the JDBC metadata)
+     * stores this type of ids.
+     */
+    public boolean matchesColumnType(String typeName) {
+        return typeName.toUpperCase().contains("CHAR") == (this == STRING);
+    }
+
+    /**
+     * Converts the id to a bind parameter.
+     *
+     * @throws IllegalArgumentException if the id cannot be stored in this type
+     */
+    public abstract Object toParameter(String fileId);
+
+    public void bind(PreparedStatement ps, int index, String fileId) throws SQLException {
+        ps.setObject(index, toParameter(fileId));
+    }
+
+    public String read(ResultSet rs, String columnName) throws SQLException {
+        Object value = rs.getObject(columnName);
+        if (value instanceof byte[]) {
+            ByteBuffer buffer = ByteBuffer.wrap((byte[]) value);
+            return new java.util.UUID(buffer.getLong(), buffer.getLong()).toString();
+        }
+        return value == null ? null : value.toString();
+    }
+
+    /**
+     * Returns the type with the given (case insensitive) name, {@link #STRING} if it is empty.
+     */
+    public static FileIdType of(String name) {
+        if (name == null || name.trim().isEmpty()) {
+            return STRING;
+        }
+        return valueOf(name.trim().toUpperCase());
+    }
+}
@@ -0,0 +1,89 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.jdbc.support.lob.LobCreator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Database specific access of the content. The dialect is selected by the product name of the database at
+ * activation (see {@link FilestoreDialects}), unknown databases use {@link GenericDialect}.
+ */
+public interface FilestoreDialect {
+
+    String AUTO = "auto";
+    String GENERIC = "generic";
+    String POSTGRESQL = "postgresql";
+    String HSQLDB = "hsqldb";
+    String MYSQL = "mysql";
+
+    String getName();
+
+    /**
+     * Binds the content parameter of an insert.
+     */
+    void setContent(PreparedStatement ps, LobCreator lobCreator, int index, InputStream data, long size) throws SQLException;
+
+    /**
+     * Fetch size of a query returning a single LOB, which makes the driver stream the value instead of reading
+     * the whole result.
+     */
+    default int getStreamingFetchSize() {
+        return 1;
+    }
+
+    /**
+     * Content can be stored as a large object, which is written and read (from any offset) as a stream.
+     */
+    default boolean supportsLargeObjects() {
+        return false;
+    }
+
+    /**
+     * Creates a large object with the content of <code>data</code> in the transaction of the connection.
+     *
+     * @return id of the large object
+     */
+    default long writeLargeObject(Connection connection, InputStream data) throws SQLException, IOException {
+        throw new UnsupportedOperationException("Large objects are not supported by " + getName());
+    }
+
+    /**
+     * Opens a large object in the transaction of the connection, positioned at <code>offset</code>.
+     *
+     * @param length number of bytes to read, negative to read until the end
+     */
+    default InputStream openLargeObject(Connection connection, long oid, long offset, long length) throws SQLException {
+        throw new UnsupportedOperationException("Large objects are not supported by " + getName());
+    }
+
+    /**
+     * Deletes a large object in the transaction of the connection.
+     */
+    default void deleteLargeObject(Connection connection, long oid) throws SQLException {
+        throw new UnsupportedOperationException("Large objects are not supported by " + getName());
+    }
+}
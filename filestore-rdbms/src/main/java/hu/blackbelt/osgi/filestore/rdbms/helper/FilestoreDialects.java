@@ -0,0 +1,84 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Locale;
+
+import static hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialect.*;
+
+@Slf4j
+public final class FilestoreDialects {
+
+    private FilestoreDialects() {
+    }
+
+    /**
+     * Returns the dialect with the given name, or the one matching the database if it is <code>auto</code> (or empty).
+     */
+    public static FilestoreDialect of(String name, DataSource dataSource) throws SQLException {
+        String dialect = name == null || name.trim().isEmpty() ? AUTO : name.trim().toLowerCase(Locale.ROOT);
+        if (AUTO.equals(dialect)) {
+            try (Connection connection = dataSource.getConnection()) {
+                dialect = detect(connection.getMetaData().getDatabaseProductName());
+            }
+        }
+        switch (dialect) {
+            case POSTGRESQL:
+                return postgresql();
+            case HSQLDB:
+                return new NativeStreamingDialect(HSQLDB, 1);
+            case MYSQL:
+                // Connector/J streams rows only with this fetch size, otherwise it reads the whole result
+                return new NativeStreamingDialect(MYSQL, Integer.MIN_VALUE);
+            case GENERIC:
+                return new GenericDialect();
+            default:
+                throw new IllegalArgumentException("Unknown dialect: " + name);
+        }
+    }
+
+    public static String detect(String productName) {
+        String product = productName == null ? "" : productName.toLowerCase(Locale.ROOT);
+        if (product.contains("postgres")) {
+            return POSTGRESQL;
+        } else if (product.contains("hsql")) {
+            return HSQLDB;
+        } else if (product.contains("mysql") || product.contains("mariadb")) {
+            return MYSQL;
+        }
+        return GENERIC;
+    }
+
+    private static FilestoreDialect postgresql() {
+        // The driver is an optional dependency of the bundle
+        try {
+            return new PostgresqlDialect();
+        } catch (LinkageError e) {
+            log.warn("PostgreSQL driver classes are not available, large objects are disabled", e);
+            return new NativeStreamingDialect(POSTGRESQL, 1);
+        }
+    }
+}
@@ -20,29 +20,158 @@ package hu.blackbelt.osgi.filestore.rdbms.helper;
  * #L%
  */
 
+import java.util.Collections;
+
 public final class FilestoreHelper {
+    public static final String FILE_ID_FIELD = "FILE_ID";
     public static final String FILENAME_FIELD = "FILENAME";
     public static final String MIME_TYPE_FIELD = "MIME_TYPE";
     public static final String DATA_FIELD = "DATA";
     public static final String SIZE_FIELD = "SIZE";
     public static final String CREATE_TIME_FIELD = "CREATE_TIME";
+    public static final String SEQ_FIELD = "SEQ";
+    public static final String LOB_OID_FIELD = "LOB_OID";
+
+    public static final String CHUNK_TABLE_SUFFIX = "_CHUNK";
+    public static final String CONTENT_TABLE_SUFFIX = "_CONTENT";
+    public static final String LARGE_OBJECT_TABLE_SUFFIX = "_LOB";
 
     public static final String NOT_FOUND_MESSAGE = "No file found with the given id.";
 
-    public static String count(String tableName, String fileId) {
-        return ("SELECT COUNT(*) FROM " + tableName + " WHERE FILE_ID = '" + fileId + "'");
+    /**
+     * Maximum number of bind parameters used in a single <code>IN (...)</code> clause.
+     */
+    public static final int IN_CHUNK_SIZE = 500;
+
+    /**
+     * Primary key lookup returning at most one row, without counting.
+     */
+    public static String exists(String tableName) {
+        return ("SELECT " + FILE_ID_FIELD + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
     }
 
     public static String insert(String tableName) { return ("INSERT INTO " + tableName + " (FILE_ID, FILENAME, MIME_TYPE, SIZE, CREATE_TIME, DATA)"
             + " VALUES(?, ?, ?, ?, ?, ?)");}
 
-    public static String read(String tableName, String fileId, String colName) {
-        return ("SELECT " + colName + " FROM " + tableName + " WHERE FILE_ID = '" + fileId + "'");
+    public static String readData(String tableName) {
+        return ("SELECT " + DATA_FIELD + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
     }
 
-    public static String meta(String tableName, String fileId) {
+    public static String readRange(String tableName) {
+        return ("SELECT SUBSTRING(" + DATA_FIELD + " FROM ? FOR ?) AS " + DATA_FIELD + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String meta(String tableName) {
         return ("SELECT " + FILENAME_FIELD + "," + MIME_TYPE_FIELD + "," + SIZE_FIELD + "," + CREATE_TIME_FIELD
-                + " FROM " + tableName + " WHERE FILE_ID = '" + fileId + "'");
+                + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String existingIn(String tableName, int idCount) {
+        return ("SELECT " + FILE_ID_FIELD + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " IN (" + placeholders(idCount) + ")");
+    }
+
+    /**
+     * Reads the content of the split schema. The metadata table is the driving one, so a missing file has no row and
+     * a file without content row (chunked content) has a <code>NULL</code> DATA.
+     */
+    public static String readContent(String tableName, String contentTableName) {
+        return ("SELECT c." + DATA_FIELD + " AS " + DATA_FIELD + contentJoin(tableName, contentTableName));
+    }
+
+    public static String readContentRange(String tableName, String contentTableName) {
+        return ("SELECT SUBSTRING(c." + DATA_FIELD + " FROM ? FOR ?) AS " + DATA_FIELD + contentJoin(tableName, contentTableName));
+    }
+
+    public static String metaIn(String tableName, int idCount) {
+        return ("SELECT " + FILE_ID_FIELD + "," + FILENAME_FIELD + "," + MIME_TYPE_FIELD + "," + SIZE_FIELD + "," + CREATE_TIME_FIELD
+                + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " IN (" + placeholders(idCount) + ")");
+    }
+
+    public static String delete(String tableName) {
+        return ("DELETE FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String insertMeta(String tableName) {
+        return ("INSERT INTO " + tableName + " (FILE_ID, FILENAME, MIME_TYPE, SIZE, CREATE_TIME)"
+                + " VALUES(?, ?, ?, ?, ?)");
+    }
+
+    public static String contentTable(String tableName) {
+        return tableName + CONTENT_TABLE_SUFFIX;
+    }
+
+    public static String insertContent(String contentTableName) {
+        return ("INSERT INTO " + contentTableName + " (" + FILE_ID_FIELD + ", " + DATA_FIELD + ") VALUES(?, ?)");
+    }
+
+    /**
+     * Ids of the files which have content in the DATA column of the metadata table, ordered by id. With
+     * <code>after</code> only the ids following a bind parameter are returned.
+     */
+    public static String contentToMove(String tableName, boolean after) {
+        return ("SELECT " + FILE_ID_FIELD + " FROM " + tableName + " WHERE " + DATA_FIELD + " IS NOT NULL"
+                + (after ? " AND " + FILE_ID_FIELD + " > ?" : "") + " ORDER BY " + FILE_ID_FIELD);
+    }
+
+    public static String copyContent(String tableName, String contentTableName) {
+        return ("INSERT INTO " + contentTableName + " (" + FILE_ID_FIELD + ", " + DATA_FIELD + ") SELECT " + FILE_ID_FIELD + ", "
+                + DATA_FIELD + " FROM " + tableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String clearContent(String tableName) {
+        return ("UPDATE " + tableName + " SET " + DATA_FIELD + " = NULL WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String largeObjectTable(String tableName) {
+        return tableName + LARGE_OBJECT_TABLE_SUFFIX;
+    }
+
+    public static String insertLargeObject(String largeObjectTableName) {
+        return ("INSERT INTO " + largeObjectTableName + " (" + FILE_ID_FIELD + ", " + LOB_OID_FIELD + ") VALUES(?, ?)");
+    }
+
+    public static String readLargeObject(String largeObjectTableName) {
+        return ("SELECT " + LOB_OID_FIELD + " FROM " + largeObjectTableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    public static String chunkTable(String tableName) {
+        return tableName + CHUNK_TABLE_SUFFIX;
+    }
+
+    public static String insertChunk(String chunkTableName) {
+        return ("INSERT INTO " + chunkTableName + " (" + FILE_ID_FIELD + ", " + SEQ_FIELD + ", " + DATA_FIELD + ") VALUES(?, ?, ?)");
+    }
+
+    public static String readChunk(String chunkTableName) {
+        return ("SELECT " + DATA_FIELD + " FROM " + chunkTableName + " WHERE " + FILE_ID_FIELD + " = ? AND " + SEQ_FIELD + " = ?");
+    }
+
+    public static String chunkLength(String chunkTableName) {
+        return ("SELECT OCTET_LENGTH(" + DATA_FIELD + ") FROM " + chunkTableName + " WHERE " + FILE_ID_FIELD + " = ? AND " + SEQ_FIELD + " = 0");
+    }
+
+    public static String deleteChunks(String chunkTableName) {
+        return ("DELETE FROM " + chunkTableName + " WHERE " + FILE_ID_FIELD + " = ?");
+    }
+
+    /**
+     * Number of bind parameters used to look up <code>idCount</code> ids: the next power of two (or
+     * {@link #IN_CHUNK_SIZE}), so only a few distinct <code>IN (...)</code> statements are prepared.
+     */
+    public static int inBucketSize(int idCount) {
+        if (idCount >= IN_CHUNK_SIZE) {
+            return IN_CHUNK_SIZE;
+        }
+        return Math.min(Integer.highestOneBit(Math.max(idCount, 1) * 2 - 1), IN_CHUNK_SIZE);
+    }
+
+    private static String contentJoin(String tableName, String contentTableName) {
+        return (" FROM " + tableName + " m LEFT JOIN " + contentTableName + " c ON c." + FILE_ID_FIELD + " = m." + FILE_ID_FIELD
+                + " WHERE m." + FILE_ID_FIELD + " = ?");
+    }
+
+    private static String placeholders(int count) {
+        return String.join(",", Collections.nCopies(count, "?"));
     }
 
     private FilestoreHelper() {
@@ -30,10 +30,21 @@ import java.sql.SQLException;
 
 public class FilestorePreparedStatementCallback extends AbstractLobCreatingPreparedStatementCallback {
     private final FileEntity fileEntity;
+    private final FileIdType idType;
+    private final FilestoreDialect dialect;
+    private final boolean contentOnly;
 
     public FilestorePreparedStatementCallback(LobHandler lobHandler, FileEntity fileEntity) {
+        this(lobHandler, fileEntity, FileIdType.STRING, new GenericDialect(), false);
+    }
+
+    public FilestorePreparedStatementCallback(LobHandler lobHandler, FileEntity fileEntity, FileIdType idType,
+                                              FilestoreDialect dialect, boolean contentOnly) {
         super(lobHandler);
         this.fileEntity = fileEntity;
+        this.idType = idType;
+        this.dialect = dialect;
+        this.contentOnly = contentOnly;
     }
 
     /**
@@ -41,14 +52,30 @@ public class FilestorePreparedStatementCallback extends AbstractLobCreatingPrepa
      *
      *    INSERT INTO JUDO_FILESTORE(FILE_ID, FILENAME, MIME_TYPE, SIZE, CREATE_TIME, DATA)
      *    VALUES(?, ?, ?, ?, ?, ?);
+     *
+     * or only the content of the split schema:
+     *
+     *    INSERT INTO JUDO_FILESTORE_CONTENT(FILE_ID, DATA)
+     *    VALUES(?, ?);
      */
     @Override
     protected void setValues(PreparedStatement ps, LobCreator lobCreator) throws SQLException, DataAccessException {
-        ps.setString(1, fileEntity.getFileId());
-        ps.setString(2, fileEntity.getFilename());
-        ps.setString(3, fileEntity.getMimeType());
-        ps.setLong(4, fileEntity.getSize());
-        ps.setTimestamp(5, fileEntity.getCreateTime());
-        lobCreator.setBlobAsBinaryStream(ps, 6, fileEntity.getData(), (int) fileEntity.getSize());
+        bind(ps, lobCreator);
+    }
+
+    /**
+     * Sets the parameters of a statement in a batch.
+     */
+    public void bind(PreparedStatement ps, LobCreator lobCreator) throws SQLException {
+        idType.bind(ps, 1, fileEntity.getFileId());
+        int dataIndex = 2;
+        if (!contentOnly) {
+            ps.setString(2, fileEntity.getFilename());
+            ps.setString(3, fileEntity.getMimeType());
+            ps.setLong(4, fileEntity.getSize());
+            ps.setTimestamp(5, fileEntity.getCreateTime());
+            dataIndex = 6;
+        }
+        dialect.setContent(ps, lobCreator, dataIndex, fileEntity.getData(), fileEntity.getSize());
     }
 }
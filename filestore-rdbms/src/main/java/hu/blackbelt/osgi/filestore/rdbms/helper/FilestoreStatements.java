@@ -0,0 +1,107 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Getter;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreHelper.*;
+
+/**
+ * Statement texts of a filestore table, built once. All of them use bind parameters, so the database parses each
+ * statement only once and drivers (or pools) with a statement cache can reuse the prepared statements. The cache is
+ * not configured by the filestore, the required data source settings are in the description of
+ * {@link hu.blackbelt.osgi.filestore.rdbms.RdbmsFileStoreService.Config}.
+ */
+@Getter
+public final class FilestoreStatements {
+    private final String table;
+    private final String chunkTable;
+    private final String contentTable;
+    private final boolean splitContent;
+    private final String exists;
+    private final String insert;
+    private final String delete;
+    private final String insertMeta;
+    private final String insertContent;
+    private final String deleteContent;
+    private final String readData;
+    private final String readRange;
+    private final String meta;
+    private final String insertChunk;
+    private final String readChunk;
+    private final String chunkLength;
+    private final String deleteChunks;
+    private final String insertLargeObject;
+    private final String readLargeObject;
+    private final String deleteLargeObject;
+    private final Map<Integer, String> existingIn = new ConcurrentHashMap<>();
+    private final Map<Integer, String> metaIn = new ConcurrentHashMap<>();
+
+    /**
+     * @param splitContent content is stored in the <code>&lt;table&gt;_CONTENT</code> table instead of the DATA column
+     *                     of the metadata table
+     */
+    public FilestoreStatements(String table, boolean splitContent) {
+        this.table = table;
+        this.chunkTable = FilestoreHelper.chunkTable(table);
+        this.contentTable = FilestoreHelper.contentTable(table);
+        this.splitContent = splitContent;
+        this.exists = FilestoreHelper.exists(table);
+        this.insert = FilestoreHelper.insert(table);
+        this.delete = FilestoreHelper.delete(table);
+        this.insertMeta = FilestoreHelper.insertMeta(table);
+        this.insertContent = FilestoreHelper.insertContent(contentTable);
+        this.deleteContent = FilestoreHelper.delete(contentTable);
+        this.readData = splitContent ? readContent(table, contentTable) : FilestoreHelper.readData(table);
+        this.readRange = splitContent ? readContentRange(table, contentTable) : FilestoreHelper.readRange(table);
+        this.meta = FilestoreHelper.meta(table);
+        this.insertChunk = FilestoreHelper.insertChunk(chunkTable);
+        this.readChunk = FilestoreHelper.readChunk(chunkTable);
+        this.chunkLength = FilestoreHelper.chunkLength(chunkTable);
+        this.deleteChunks = FilestoreHelper.deleteChunks(chunkTable);
+        this.insertLargeObject = FilestoreHelper.insertLargeObject(largeObjectTable(table));
+        this.readLargeObject = FilestoreHelper.readLargeObject(largeObjectTable(table));
+        this.deleteLargeObject = FilestoreHelper.delete(largeObjectTable(table));
+    }
+
+    public String existingIn(int idCount) {
+        return existingIn.computeIfAbsent(inBucketSize(idCount), size -> FilestoreHelper.existingIn(table, size));
+    }
+
+    public String metaIn(int idCount) {
+        return metaIn.computeIfAbsent(inBucketSize(idCount), size -> FilestoreHelper.metaIn(table, size));
+    }
+
+    /**
+     * Bind parameters of {@link #existingIn(int)} and {@link #metaIn(int)}: the ids padded with the last one to the
+     * bucket size.
+     */
+    public static Object[] inParameters(List<?> ids) {
+        Object[] parameters = Arrays.copyOf(ids.toArray(), inBucketSize(ids.size()));
+        Arrays.fill(parameters, ids.size(), parameters.length, ids.get(ids.size() - 1));
+        return parameters;
+    }
+}
@@ -0,0 +1,41 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Builder;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.sql.Timestamp;
+
+/**
+ * A small file kept in the {@link WriteBehindJournal} until it is inserted to the database.
+ */
+@Getter
+@Builder
+@ToString(exclude = "data")
+public final class JournalEntry {
+    private final String fileId;
+    private final String fileName;
+    private final String mimeType;
+    private final Timestamp createTime;
+    private final byte[] data;
+}
@@ -0,0 +1,55 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.springframework.jdbc.support.lob.LobCreator;
+
+import java.io.InputStream;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Binds the content as a JDBC 4 stream of known length, which the driver sends without copying it to a LOB first.
+ */
+public class NativeStreamingDialect implements FilestoreDialect {
+    private final String name;
+    private final int streamingFetchSize;
+
+    public NativeStreamingDialect(String name, int streamingFetchSize) {
+        this.name = name;
+        this.streamingFetchSize = streamingFetchSize;
+    }
+
+    @Override
+    public String getName() {
+        return name;
+    }
+
+    @Override
+    public void setContent(PreparedStatement ps, LobCreator lobCreator, int index, InputStream data, long size) throws SQLException {
+        ps.setBinaryStream(index, data, size);
+    }
+
+    @Override
+    public int getStreamingFetchSize() {
+        return streamingFetchSize;
+    }
+}
@@ -0,0 +1,82 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.ByteStreams;
+import org.postgresql.PGConnection;
+import org.postgresql.largeobject.LargeObject;
+import org.postgresql.largeobject.LargeObjectManager;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * PostgreSQL: small content is stored in the <code>bytea</code> column, large content can be stored as a large
+ * object, which is written and read in pages and can be read from any offset.
+ */
+public class PostgresqlDialect extends NativeStreamingDialect {
+
+    public PostgresqlDialect() {
+        super(POSTGRESQL, 1);
+        // Fails early when the driver classes are not visible
+        LargeObjectManager.class.getName();
+    }
+
+    @Override
+    public boolean supportsLargeObjects() {
+        return true;
+    }
+
+    @Override
+    public long writeLargeObject(Connection connection, InputStream data) throws SQLException, IOException {
+        LargeObjectManager manager = connection.unwrap(PGConnection.class).getLargeObjectAPI();
+        long oid = manager.createLO(LargeObjectManager.READWRITE);
+        LargeObject object = manager.open(oid, LargeObjectManager.WRITE);
+        // Closing the stream closes the large object
+        try (OutputStream out = object.getOutputStream()) {
+            ByteStreams.copy(data, out);
+        }
+        return oid;
+    }
+
+    @Override
+    public InputStream openLargeObject(Connection connection, long oid, long offset, long length) throws SQLException {
+        LargeObjectManager manager = connection.unwrap(PGConnection.class).getLargeObjectAPI();
+        LargeObject object = manager.open(oid, LargeObjectManager.READ);
+        try {
+            if (offset > 0) {
+                object.seek64(offset, LargeObject.SEEK_SET);
+            }
+            return length >= 0 ? object.getInputStream(length) : object.getInputStream();
+        } catch (SQLException | RuntimeException e) {
+            object.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void deleteLargeObject(Connection connection, long oid) throws SQLException {
+        connection.unwrap(PGConnection.class).getLargeObjectAPI().delete(oid);
+    }
+}
@@ -0,0 +1,87 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingOutputStream;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+
+/**
+ * Content of a stream with unknown length. Small content is kept in memory, larger one is copied to a temporary
+ * file, so the real length is known before it is inserted.
+ */
+public final class SpooledContent implements Closeable {
+    private final byte[] bytes;
+    private final File file;
+    private final long size;
+
+    private SpooledContent(byte[] bytes, File file, long size) {
+        this.bytes = bytes;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Reads the whole stream, holding at most <code>memoryThreshold</code> bytes in memory.
+     */
+    public static SpooledContent spool(InputStream data, int memoryThreshold) throws IOException {
+        byte[] buffer = new byte[memoryThreshold];
+        int count = ByteStreams.read(data, buffer, 0, buffer.length);
+        if (count < buffer.length) {
+            byte[] bytes = new byte[count];
+            System.arraycopy(buffer, 0, bytes, 0, count);
+            return new SpooledContent(bytes, null, count);
+        }
+        File file = File.createTempFile("filestore", ".spool");
+        try (CountingOutputStream out = new CountingOutputStream(new BufferedOutputStream(Files.newOutputStream(file.toPath())))) {
+            out.write(buffer, 0, count);
+            ByteStreams.copy(data, out);
+            out.flush();
+            return new SpooledContent(null, file, out.getCount());
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public InputStream openStream() throws IOException {
+        return file != null ? Files.newInputStream(file.toPath()) : new ByteArrayInputStream(bytes);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file != null) {
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+public final class UploadProgressHelper {
+    public static final String TABLE_SUFFIX = "_PROGRESS";
+
+    public static final String UPLOAD_ID_FIELD = "UPLOAD_ID";
+    public static final String BYTES_READ_FIELD = "BYTES_READ";
+    public static final String CONTENT_LENGTH_FIELD = "CONTENT_LENGTH";
+    public static final String STATUS_FIELD = "STATUS";
+    public static final String MESSAGE_FIELD = "MESSAGE";
+    public static final String UPDATED_FIELD = "UPDATED";
+
+    public static String progressTable(String fileStoreTable) {
+        return fileStoreTable + TABLE_SUFFIX;
+    }
+
+    public static String insert(String tableName) {
+        return ("INSERT INTO " + tableName + " (" + UPLOAD_ID_FIELD + ", " + BYTES_READ_FIELD + ", " + CONTENT_LENGTH_FIELD + ", "
+                + STATUS_FIELD + ", " + MESSAGE_FIELD + ", " + UPDATED_FIELD + ") VALUES(?, ?, ?, ?, ?, ?)");
+    }
+
+    public static String update(String tableName) {
+        return ("UPDATE " + tableName + " SET " + BYTES_READ_FIELD + " = ?, " + CONTENT_LENGTH_FIELD + " = ?, " + STATUS_FIELD + " = ?, "
+                + MESSAGE_FIELD + " = ?, " + UPDATED_FIELD + " = ? WHERE " + UPLOAD_ID_FIELD + " = ?");
+    }
+
+    public static String updateBytes(String tableName) {
+        return ("UPDATE " + tableName + " SET " + BYTES_READ_FIELD + " = ?, " + CONTENT_LENGTH_FIELD + " = ?, " + UPDATED_FIELD + " = ?"
+                + " WHERE " + UPLOAD_ID_FIELD + " = ?");
+    }
+
+    public static String read(String tableName) {
+        return ("SELECT " + BYTES_READ_FIELD + "," + CONTENT_LENGTH_FIELD + "," + STATUS_FIELD + "," + MESSAGE_FIELD + "," + UPDATED_FIELD
+                + " FROM " + tableName + " WHERE " + UPLOAD_ID_FIELD + " = ?");
+    }
+
+    public static String delete(String tableName) {
+        return ("DELETE FROM " + tableName + " WHERE " + UPLOAD_ID_FIELD + " = ?");
+    }
+
+    public static String deleteExpired(String tableName) {
+        return ("DELETE FROM " + tableName + " WHERE " + UPDATED_FIELD + " < ?");
+    }
+
+    private UploadProgressHelper() {
+    }
+}
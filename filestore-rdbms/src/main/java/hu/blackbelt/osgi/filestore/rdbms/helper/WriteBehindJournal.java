@@ -0,0 +1,175 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Local journal of small files which are acknowledged before they are inserted to the database. Each entry is a
+ * file in the journal directory, written to a temporary file, synced and renamed, so an entry is either complete or
+ * missing after a crash. Entries are kept in memory too, until they are removed.
+ */
+@Slf4j
+public final class WriteBehindJournal {
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final File directory;
+    private final Map<String, JournalEntry> entries = new LinkedHashMap<>();
+
+    private WriteBehindJournal(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Opens the journal in the given directory, loading the entries which were not removed before the last shutdown
+     * (or crash).
+     */
+    public static WriteBehindJournal open(File directory) throws IOException {
+        Files.createDirectories(directory.toPath());
+        WriteBehindJournal journal = new WriteBehindJournal(directory);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return journal;
+        }
+        Stream.of(files).filter(file -> file.getName().endsWith(TEMP_SUFFIX)).forEach(File::delete);
+        for (File file : Stream.of(files).filter(file -> file.getName().endsWith(ENTRY_SUFFIX))
+                .sorted(Comparator.comparingLong(File::lastModified)).collect(Collectors.toList())) {
+            try {
+                JournalEntry entry = read(file);
+                journal.entries.put(entry.getFileId(), entry);
+            } catch (IOException e) {
+                log.error("Could not read journal entry " + file, e);
+            }
+        }
+        return journal;
+    }
+
+    /**
+     * Writes the entry durably, it can be acknowledged when this method returns.
+     */
+    public void append(JournalEntry entry) throws IOException {
+        File temp = new File(directory, entry.getFileId() + TEMP_SUFFIX);
+        try (FileOutputStream file = new FileOutputStream(temp);
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file))) {
+            out.writeUTF(entry.getFileId());
+            out.writeUTF(entry.getFileName());
+            out.writeUTF(entry.getMimeType());
+            out.writeLong(entry.getCreateTime().getTime());
+            out.writeInt(entry.getData().length);
+            out.write(entry.getData());
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp.toPath());
+            throw e;
+        }
+        Files.move(temp.toPath(), entryFile(entry.getFileId()).toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory();
+        synchronized (entries) {
+            entries.put(entry.getFileId(), entry);
+        }
+    }
+
+    public JournalEntry get(String fileId) {
+        synchronized (entries) {
+            return entries.get(fileId);
+        }
+    }
+
+    /**
+     * Returns at most <code>max</code> entries, the oldest ones first.
+     */
+    public List<JournalEntry> pending(int max) {
+        synchronized (entries) {
+            return entries.values().stream().limit(max).collect(Collectors.toCollection(ArrayList::new));
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    /**
+     * Removes the entries which are stored in the database.
+     */
+    public void remove(Collection<JournalEntry> stored) {
+        for (JournalEntry entry : stored) {
+            synchronized (entries) {
+                entries.remove(entry.getFileId());
+            }
+            try {
+                Files.deleteIfExists(entryFile(entry.getFileId()).toPath());
+            } catch (IOException e) {
+                log.warn("Could not delete journal entry of " + entry.getFileId(), e);
+            }
+        }
+    }
+
+    private File entryFile(String fileId) {
+        return new File(directory, fileId + ENTRY_SUFFIX);
+    }
+
+    private void syncDirectory() {
+        // Makes the rename durable, not supported on every platform
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.trace("Could not sync journal directory", e);
+        }
+    }
+
+    private static JournalEntry read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file.toPath())))) {
+            JournalEntry.JournalEntryBuilder builder = JournalEntry.builder()
+                    .fileId(in.readUTF())
+                    .fileName(in.readUTF())
+                    .mimeType(in.readUTF())
+                    .createTime(new Timestamp(in.readLong()));
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            return builder.data(data).build();
+        }
+    }
+}
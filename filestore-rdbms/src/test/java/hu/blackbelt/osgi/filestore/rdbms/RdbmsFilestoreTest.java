@@ -22,8 +22,14 @@ package hu.blackbelt.osgi.filestore.rdbms;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.io.ByteStreams;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
+import hu.blackbelt.osgi.filestore.api.PutRequest;
 import hu.blackbelt.osgi.filestore.rdbms.fixture.RdbmsDatasourceFixture;
 import hu.blackbelt.osgi.filestore.rdbms.fixture.RdbmsDatasourceSingetonExtension;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FileIdType;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialect;
+import hu.blackbelt.osgi.filestore.rdbms.helper.FilestoreDialects;
+import hu.blackbelt.osgi.filestore.rdbms.helper.WriteBehindJournal;
 import org.apache.sling.commons.mime.MimeTypeService;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -32,13 +38,33 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 import org.mockito.junit.jupiter.MockitoExtension;
 import org.osgi.framework.BundleContext;
+import org.springframework.jdbc.core.JdbcTemplate;
 
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 import static org.hamcrest.CoreMatchers.equalTo;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
 import static org.mockito.ArgumentMatchers.endsWith;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
@@ -116,6 +142,490 @@ public class RdbmsFilestoreTest {
     }
 
 
+    @Test
+    public void testGetMetadata() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test.txt", null);
+        FileMetadata metadata = target.getMetadata(fileId);
+        assertThat(metadata.getFileId(), equalTo(fileId));
+        assertThat(metadata.getFileName(), equalTo("test.txt"));
+        assertThat(metadata.getMimeType(), equalTo("text/plain"));
+        assertThat(metadata.getSize(), equalTo(4L));
+        assertThat(metadata.getCreateTime(), equalTo(target.getCreateTime(fileId)));
+        assertThrows(IllegalArgumentException.class, () -> target.getMetadata("notexists"));
+    }
+
+    @Test
+    public void testBulkLookups() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId1 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test1.txt", null);
+        String fileId2 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test2.txt", null);
+        List<String> ids = Arrays.asList(fileId1, "notexists", fileId2);
+
+        assertThat(target.existing(ids), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        Map<String, FileMetadata> metadata = target.getMetadata(ids);
+        assertThat(metadata.keySet(), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        assertThat(metadata.get(fileId1).getFileName(), equalTo("test1.txt"));
+        assertThat(metadata.get(fileId2).getFileName(), equalTo("test2.txt"));
+    }
+
+    @Test
+    public void testExistsAndPaddedInLookups() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId1 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test1.txt", null);
+        String fileId2 = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test2.txt", null);
+        assertThat(target.exists(fileId1), equalTo(true));
+        assertThat(target.exists(UUID.randomUUID().toString().replace("-", "")), equalTo(false));
+
+        // 1 id, 3 ids (padded to 4 with the last one) and 501 ids (a full chunk of 500 and a padded one of 1)
+        assertThat(target.existing(Arrays.asList(fileId1)), equalTo(new HashSet<>(Arrays.asList(fileId1))));
+        assertThat(target.existing(Arrays.asList(fileId1, fileId2, "notexists")), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        List<String> ids = IntStream.range(0, 499).mapToObj(i -> UUID.randomUUID().toString().replace("-", "")).collect(Collectors.toList());
+        ids.add(fileId1);
+        ids.add(fileId2);
+        assertThat(ids.size(), equalTo(501));
+        assertThat(target.existing(ids), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        assertThat(target.getMetadata(ids).keySet(), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+    }
+
+    @Test
+    public void testPutAll() throws IOException {
+        List<String> fileIds = target.putAll(Arrays.asList(
+                PutRequest.builder().data(new ByteArrayInputStream("first".getBytes())).fileName("first.txt").mimeType("text/plain").sizeHint(5).build(),
+                PutRequest.builder().data(new UnknownLengthInputStream("second".getBytes())).fileName("second.txt").mimeType("text/plain").build()));
+        assertThat(fileIds.size(), equalTo(2));
+        assertThat(target.getFileName(fileIds.get(0)), equalTo("first.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(0)))), equalTo("first"));
+        assertThat(target.getSize(fileIds.get(1)), equalTo(6L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(1)))), equalTo("second"));
+    }
+
+    @Test
+    public void testPutAllStoresEachFileAsPut() throws IOException {
+        Path journalDirectory = Files.createTempDirectory("filestore-journal");
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.storageMode()).thenReturn(RdbmsFileStoreService.STORAGE_MODE_CHUNKED);
+        when(config.chunkSize()).thenReturn(3);
+        when(config.writeBehindThreshold()).thenReturn(4);
+        when(config.writeBehindDirectory()).thenReturn(journalDirectory.toString());
+        when(config.writeBehindInterval()).thenReturn(3600000);
+        target.activate(context, config);
+
+        List<String> fileIds = target.putAll(Arrays.asList(
+                PutRequest.builder().data(new UnknownLengthInputStream("0123456789".getBytes())).fileName("chunked.txt").mimeType("text/plain").build(),
+                PutRequest.builder().data(new ByteArrayInputStream("tiny".getBytes())).fileName("tiny.txt").mimeType("text/plain").sizeHint(4).build()));
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(rdbmsDatasourceFixture.getDataSource());
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM FILESTORE_CAMELCASE_CHUNK WHERE FILE_ID = ?", Integer.class, fileIds.get(0)), equalTo(4));
+        assertThat(target.getSize(fileIds.get(0)), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(0), 2, 5))), equalTo("23456"));
+
+        // Small files are written to the journal, they are inserted by the next flush
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM FILESTORE_CAMELCASE WHERE FILE_ID = ?", Integer.class, fileIds.get(1)), equalTo(0));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(1)))), equalTo("tiny"));
+        target.flushJournal();
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM FILESTORE_CAMELCASE WHERE FILE_ID = ?", Integer.class, fileIds.get(1)), equalTo(1));
+    }
+
+    @Test
+    public void testRangeRead() throws IOException {
+        when(mimeTypeServiceMock.getMimeType(endsWith(".txt"))).thenReturn("text/plain");
+
+        String fileId = target.put(this.getClass().getClassLoader().getResourceAsStream("test.txt"), "test.txt", null);
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 1, 2))), equalTo("es"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 2, -1))), equalTo("st"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 4, 10))), equalTo(""));
+
+        try (SeekableByteChannel channel = target.openChannel(fileId)) {
+            ByteBuffer buffer = ByteBuffer.allocate(2);
+            channel.position(2);
+            channel.read(buffer);
+            assertThat(new String(buffer.array()), equalTo("st"));
+            assertThat(channel.size(), equalTo(4L));
+        }
+    }
+
+    @Test
+    public void testChunkedStorage() throws IOException {
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.storageMode()).thenReturn(RdbmsFileStoreService.STORAGE_MODE_CHUNKED);
+        when(config.chunkSize()).thenReturn(3);
+        target.activate(context, config);
+
+        String content = "0123456789";
+        String fileId = target.put(new ByteArrayInputStream(content.getBytes()), "chunked.txt", "text/plain");
+        assertThat(target.getSize(fileId), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo(content));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 2, 5))), equalTo("23456"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 9, -1))), equalTo("9"));
+
+        String emptyFileId = target.put(new ByteArrayInputStream(new byte[0]), "empty.txt", "text/plain");
+        assertThat(target.getSize(emptyFileId), equalTo(0L));
+        assertThat(ByteStreams.toByteArray(target.get(emptyFileId)).length, equalTo(0));
+    }
+
+    @Test
+    public void testPutWithUnknownLength() throws IOException {
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.spoolThreshold()).thenReturn(4);
+        target.activate(context, config);
+
+        String small = "abc";
+        String smallFileId = target.put(new UnknownLengthInputStream(small.getBytes()), "small.txt", "text/plain");
+        assertThat(target.getSize(smallFileId), equalTo(3L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(smallFileId))), equalTo(small));
+
+        String spooled = "0123456789";
+        String spooledFileId = target.put(new UnknownLengthInputStream(spooled.getBytes()), "spooled.txt", "text/plain");
+        assertThat(target.getSize(spooledFileId), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(spooledFileId))), equalTo(spooled));
+
+        String hintedFileId = target.put(new UnknownLengthInputStream(spooled.getBytes()), "hinted.txt", "text/plain", 10);
+        assertThat(target.getSize(hintedFileId), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(hintedFileId))), equalTo(spooled));
+    }
+
+    /**
+     * Stream of a network or pipe which does not report available bytes.
+     */
+    private static class UnknownLengthInputStream extends ByteArrayInputStream {
+        UnknownLengthInputStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int available() {
+            return 0;
+        }
+    }
+
+    @Test
+    public void testSplitSchema() throws Exception {
+        String combinedFileId = target.put(new ByteArrayInputStream("combined".getBytes()), "combined.txt", "text/plain");
+        String otherCombinedFileId = target.put(new ByteArrayInputStream("other".getBytes()), "other.txt", "text/plain");
+
+        rdbmsDatasourceFixture.executeInitiLiquibase(
+                RdbmsFileStoreService.class.getClassLoader(), "liquibase/changelog.xml", rdbmsDatasourceFixture.getDataSource(),
+                ImmutableMap.of("table-name", "FILESTORE_CamelCase".toUpperCase(), "split-content", "true"));
+        try (Connection connection = rdbmsDatasourceFixture.getDataSource().getConnection()) {
+            // Content is moved in batches of a single file
+            assertThat(RdbmsFileStoreLiquibaseExecutor.moveContent(connection, "FILESTORE_CamelCase".toUpperCase(), 1) >= 2, equalTo(true));
+            assertThat(RdbmsFileStoreLiquibaseExecutor.moveContent(connection, "FILESTORE_CamelCase".toUpperCase(), 1), equalTo(0));
+        }
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.schema()).thenReturn(RdbmsFileStoreService.SCHEMA_SPLIT);
+        target.activate(context, config);
+
+        assertThat(new String(ByteStreams.toByteArray(target.get(combinedFileId))), equalTo("combined"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(otherCombinedFileId))), equalTo("other"));
+
+        String content = "0123456789";
+        String fileId = target.put(new ByteArrayInputStream(content.getBytes()), "split.txt", "text/plain", content.length());
+        assertThat(target.exists(fileId), equalTo(true));
+        assertThat(target.getMetadata(fileId).getFileName(), equalTo("split.txt"));
+        assertThat(target.getSize(fileId), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo(content));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 2, 5))), equalTo("23456"));
+        assertThrows(RuntimeException.class, () -> target.get("notexists"));
+    }
+
+    @Test
+    public void testTimeOrderedBinaryIds() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(rdbmsDatasourceFixture.getDataSource());
+        jdbcTemplate.execute("DROP TABLE FILESTORE_BINARY IF EXISTS");
+        jdbcTemplate.execute("CREATE TABLE FILESTORE_BINARY (FILE_ID BINARY(16) PRIMARY KEY, FILENAME VARCHAR(255) NOT NULL,"
+                + " DATA BLOB, SIZE BIGINT NOT NULL, MIME_TYPE VARCHAR(255) NOT NULL, CREATE_TIME TIMESTAMP NOT NULL)");
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_BINARY");
+        when(config.idGenerator()).thenReturn("time_ordered");
+        when(config.idType()).thenReturn("binary");
+        target.activate(context, config);
+
+        String fileId1 = target.put(new ByteArrayInputStream("first".getBytes()), "first.txt", "text/plain");
+        Thread.sleep(2);
+        String fileId2 = target.put(new ByteArrayInputStream("second".getBytes()), "second.txt", "text/plain");
+        assertThat(fileId1.compareTo(fileId2) < 0, equalTo(true));
+        assertThat(UUID.fromString(fileId1).version(), equalTo(7));
+
+        assertThat(target.exists(fileId1), equalTo(true));
+        assertThat(target.exists("notexists"), equalTo(false));
+        assertThat(target.existing(Arrays.asList(fileId1, fileId2, "notexists")), equalTo(new HashSet<>(Arrays.asList(fileId1, fileId2))));
+        assertThat(target.getMetadata(Arrays.asList(fileId2, "notexists")).get(fileId2).getFileName(), equalTo("second.txt"));
+        assertThat(target.getFileName(fileId1), equalTo("first.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId2))), equalTo("second"));
+        assertThrows(IllegalArgumentException.class, () -> target.getMetadata("notexists"));
+    }
+
+    @Test
+    public void testFileIdTypeOfExistingTables() throws Exception {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(rdbmsDatasourceFixture.getDataSource());
+        jdbcTemplate.execute("DROP TABLE FILESTORE_BINARY_CHECK IF EXISTS");
+        jdbcTemplate.execute("CREATE TABLE FILESTORE_BINARY_CHECK (FILE_ID BINARY(16) PRIMARY KEY, FILENAME VARCHAR(255) NOT NULL,"
+                + " DATA BLOB, SIZE BIGINT NOT NULL, MIME_TYPE VARCHAR(255) NOT NULL, CREATE_TIME TIMESTAMP NOT NULL)");
+
+        target.put(new ByteArrayInputStream("test".getBytes()), "test.txt", "text/plain");
+
+        try (Connection connection = rdbmsDatasourceFixture.getDataSource().getConnection()) {
+            String stringTable = "FILESTORE_CamelCase".toUpperCase();
+            RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, stringTable, FileIdType.STRING);
+            assertThrows(IllegalStateException.class, () -> RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, stringTable, FileIdType.UUID));
+            assertThrows(IllegalStateException.class, () -> RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, stringTable, FileIdType.BINARY));
+
+            RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, "FILESTORE_BINARY_CHECK", FileIdType.BINARY);
+            // The column of an empty table is changed by the changelog
+            RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, "FILESTORE_BINARY_CHECK", FileIdType.STRING);
+            jdbcTemplate.update("INSERT INTO FILESTORE_BINARY_CHECK (FILE_ID, FILENAME, SIZE, MIME_TYPE, CREATE_TIME) VALUES(?, ?, ?, ?, CURRENT_TIMESTAMP)",
+                    FileIdType.BINARY.toParameter(UUID.randomUUID().toString()), "test.txt", 0, "text/plain");
+            assertThrows(IllegalStateException.class, () -> RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, "FILESTORE_BINARY_CHECK", FileIdType.STRING));
+
+            // New tables are created with the selected type
+            RdbmsFileStoreLiquibaseExecutor.checkFileIdType(connection, "FILESTORE_NOT_CREATED", FileIdType.UUID);
+        }
+
+        // PostgreSQL has no BINARY type
+        assertThat(FileIdType.BINARY.getColumnType(FilestoreDialect.POSTGRESQL), equalTo("BYTEA"));
+        assertThat(FileIdType.BINARY.getColumnType(FilestoreDialect.HSQLDB), equalTo("BINARY(16)"));
+        assertThat(FileIdType.UUID.getColumnType(FilestoreDialect.POSTGRESQL), equalTo("UUID"));
+    }
+
+    @Test
+    public void testWriteBehind() throws IOException {
+        Path journalDirectory = Files.createTempDirectory("filestore-journal");
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.writeBehindThreshold()).thenReturn(8);
+        when(config.writeBehindDirectory()).thenReturn(journalDirectory.toString());
+        when(config.writeBehindInterval()).thenReturn(3600000);
+        target.activate(context, config);
+
+        String smallFileId = target.put(new UnknownLengthInputStream("tiny".getBytes()), "tiny.txt", "text/plain");
+        String largeFileId = target.put(new ByteArrayInputStream("0123456789".getBytes()), "large.txt", "text/plain");
+        assertThat(journalDirectory.toFile().list().length, equalTo(1));
+        assertThat(target.exists(smallFileId), equalTo(true));
+        assertThat(target.existing(Arrays.asList(smallFileId, largeFileId)), equalTo(new HashSet<>(Arrays.asList(smallFileId, largeFileId))));
+        assertThat(target.getSize(smallFileId), equalTo(4L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(smallFileId))), equalTo("tiny"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(smallFileId, 1, 2))), equalTo("in"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(largeFileId))), equalTo("0123456789"));
+
+        // Entries are recovered after a crash
+        assertThat(WriteBehindJournal.open(journalDirectory.toFile()).get(smallFileId).getFileName(), equalTo("tiny.txt"));
+
+        target.flushJournal();
+        assertThat(journalDirectory.toFile().list().length, equalTo(0));
+        assertThat(new JdbcTemplate(rdbmsDatasourceFixture.getDataSource()).queryForObject(
+                "SELECT COUNT(*) FROM FILESTORE_CAMELCASE WHERE FILE_ID = ?", Integer.class, smallFileId), equalTo(1));
+        assertThat(new String(ByteStreams.toByteArray(target.get(smallFileId))), equalTo("tiny"));
+    }
+
+    @Test
+    public void testDelete() throws IOException {
+        Path journalDirectory = Files.createTempDirectory("filestore-journal");
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.writeBehindThreshold()).thenReturn(4);
+        when(config.writeBehindDirectory()).thenReturn(journalDirectory.toString());
+        when(config.writeBehindInterval()).thenReturn(3600000);
+        target.activate(context, config);
+
+        String fileId = target.put(new ByteArrayInputStream("0123456789".getBytes()), "file.txt", "text/plain");
+        String journaledFileId = target.put(new ByteArrayInputStream("tiny".getBytes()), "tiny.txt", "text/plain");
+        String keptFileId = target.put(new ByteArrayInputStream("kept content".getBytes()), "kept.txt", "text/plain");
+        assertThat(target.getSize(fileId), equalTo(10L));
+
+        target.delete(fileId);
+        target.delete(journaledFileId);
+        target.delete(fileId);
+        target.delete("notexists");
+        assertThat(target.exists(fileId), equalTo(false));
+        assertThat(target.exists(journaledFileId), equalTo(false));
+        assertThat(journalDirectory.toFile().list().length, equalTo(0));
+        assertThat(target.existing(Arrays.asList(fileId, journaledFileId, keptFileId)), equalTo(new HashSet<>(Arrays.asList(keptFileId))));
+        assertThrows(IllegalArgumentException.class, () -> target.getMetadata(fileId));
+
+        target.flushJournal();
+        assertThat(target.exists(journaledFileId), equalTo(false));
+
+        when(config.storageMode()).thenReturn(RdbmsFileStoreService.STORAGE_MODE_CHUNKED);
+        when(config.chunkSize()).thenReturn(3);
+        target.activate(context, config);
+        String chunkedFileId = target.put(new ByteArrayInputStream("0123456789".getBytes()), "chunked.txt", "text/plain");
+        target.delete(chunkedFileId);
+        assertThat(target.exists(chunkedFileId), equalTo(false));
+        assertThat(new JdbcTemplate(rdbmsDatasourceFixture.getDataSource()).queryForObject(
+                "SELECT COUNT(*) FROM FILESTORE_CAMELCASE_CHUNK WHERE FILE_ID = ?", Integer.class, chunkedFileId), equalTo(0));
+    }
+
+    @Test
+    public void testDialects() throws IOException {
+        assertThat(FilestoreDialects.detect("PostgreSQL"), equalTo(FilestoreDialect.POSTGRESQL));
+        assertThat(FilestoreDialects.detect("HSQL Database Engine"), equalTo(FilestoreDialect.HSQLDB));
+        assertThat(FilestoreDialects.detect("MariaDB"), equalTo(FilestoreDialect.MYSQL));
+        assertThat(FilestoreDialects.detect("Oracle"), equalTo(FilestoreDialect.GENERIC));
+
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.dialect()).thenReturn(FilestoreDialect.GENERIC);
+        target.activate(context, config);
+
+        String fileId = target.put(new ByteArrayInputStream("generic".getBytes()), "generic.txt", "text/plain");
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("generic"));
+    }
+
+    @Test
+    public void testPostgresqlLargeObjects() throws IOException {
+        assumeTrue(RdbmsDatasourceFixture.POSTGRESQL.equals(rdbmsDatasourceFixture.getDialect()));
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.largeObjectThreshold()).thenReturn(4);
+        target.activate(context, config);
+
+        String content = "0123456789";
+        String largeFileId = target.put(new UnknownLengthInputStream(content.getBytes()), "large.txt", "text/plain");
+        assertThat(target.getSize(largeFileId), equalTo(10L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(largeFileId))), equalTo(content));
+        assertThat(new String(ByteStreams.toByteArray(target.get(largeFileId, 3, 4))), equalTo("3456"));
+
+        String smallFileId = target.put(new UnknownLengthInputStream("abc".getBytes()), "small.txt", "text/plain");
+        assertThat(target.getSize(smallFileId), equalTo(3L));
+        assertThat(new String(ByteStreams.toByteArray(target.get(smallFileId))), equalTo("abc"));
+
+        List<String> fileIds = target.putAll(Arrays.asList(
+                PutRequest.builder().data(new UnknownLengthInputStream(content.getBytes())).fileName("large.txt").mimeType("text/plain").build(),
+                PutRequest.builder().data(new UnknownLengthInputStream("abc".getBytes())).fileName("small.txt").mimeType("text/plain").build()));
+        assertThat(new JdbcTemplate(rdbmsDatasourceFixture.getDataSource()).queryForObject(
+                "SELECT COUNT(*) FROM FILESTORE_CAMELCASE_LOB WHERE FILE_ID = ?", Integer.class, fileIds.get(0)), equalTo(1));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(0), 3, 4))), equalTo("3456"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileIds.get(1)))), equalTo("abc"));
+
+        target.delete(largeFileId);
+        assertThat(target.exists(largeFileId), equalTo(false));
+        assertThat(new JdbcTemplate(rdbmsDatasourceFixture.getDataSource()).queryForObject(
+                "SELECT COUNT(*) FROM FILESTORE_CAMELCASE_LOB WHERE FILE_ID = ?", Integer.class, largeFileId), equalTo(0));
+    }
+
+    @Test
+    public void testReplicaReads() throws Exception {
+        DataSource primary = rdbmsDatasourceFixture.getDataSource();
+        AtomicInteger replicaConnections = new AtomicInteger();
+        target.replicaDataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+                (proxy, method, args) -> {
+                    if ("getConnection".equals(method.getName())) {
+                        replicaConnections.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(primary, args);
+                    } catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                });
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.readYourWritesWindow()).thenReturn(1);
+        target.activate(context, config);
+
+        // Recently written files are read from the primary
+        String fileId = target.put(new ByteArrayInputStream("replica".getBytes()), "replica.txt", "text/plain");
+        assertThat(target.exists(fileId), equalTo(true));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("replica"));
+        assertThat(replicaConnections.get(), equalTo(0));
+
+        Thread.sleep(1500);
+        assertThat(target.exists(fileId), equalTo(true));
+        assertThat(target.getMetadata(Arrays.asList(fileId)).get(fileId).getFileName(), equalTo("replica.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 2, 3))), equalTo("pli"));
+        assertThat(replicaConnections.get() > 0, equalTo(true));
+    }
+
+    @Test
+    public void testReplicaMissIsReadFromPrimary() throws Exception {
+        DataSource primary = rdbmsDatasourceFixture.getDataSource();
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(primary);
+        jdbcTemplate.execute("DROP TABLE FILESTORE_LAGGING IF EXISTS");
+        jdbcTemplate.execute("CREATE TABLE FILESTORE_LAGGING (FILE_ID VARCHAR(255) PRIMARY KEY, FILENAME VARCHAR(255) NOT NULL,"
+                + " DATA BLOB, SIZE BIGINT NOT NULL, MIME_TYPE VARCHAR(255) NOT NULL, CREATE_TIME TIMESTAMP NOT NULL)");
+        // The replica has not received any file yet, its queries are sent to an empty table
+        target.replicaDataSource = (DataSource) Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {DataSource.class},
+                (proxy, method, args) -> {
+                    Object result = invoke(primary, method, args);
+                    if (!(result instanceof Connection)) {
+                        return result;
+                    }
+                    return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+                            (connectionProxy, connectionMethod, connectionArgs) -> {
+                                if ("prepareStatement".equals(connectionMethod.getName())) {
+                                    connectionArgs[0] = ((String) connectionArgs[0]).replaceAll("\\bFILESTORE_CAMELCASE\\b", "FILESTORE_LAGGING");
+                                }
+                                return invoke(result, connectionMethod, connectionArgs);
+                            });
+                });
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.readYourWritesWindow()).thenReturn(30);
+        target.activate(context, config);
+
+        // Written by an other node, this one does not know that it is a recent write
+        RdbmsFileStoreService otherNode = new RdbmsFileStoreService();
+        otherNode.dataSource = primary;
+        otherNode.mimeTypeService = mimeTypeServiceMock;
+        otherNode.activate(context, config);
+        String fileId = otherNode.put(new ByteArrayInputStream("other node".getBytes()), "other.txt", "text/plain");
+        otherNode.deactivate();
+
+        assertThat(target.exists(fileId), equalTo(true));
+        assertThat(target.existing(Arrays.asList(fileId, "notexists")), equalTo(new HashSet<>(Arrays.asList(fileId))));
+        assertThat(target.getMetadata(Arrays.asList(fileId)).get(fileId).getFileName(), equalTo("other.txt"));
+        assertThat(target.getFileName(fileId), equalTo("other.txt"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId))), equalTo("other node"));
+        assertThat(new String(ByteStreams.toByteArray(target.get(fileId, 6, 4))), equalTo("node"));
+        assertThat(target.exists(UUID.randomUUID().toString()), equalTo(false));
+    }
+
+    private static Object invoke(Object target, Method method, Object[] args) throws Throwable {
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Test
+    public void testStreamingReadIsClosedWhenIdle() throws Exception {
+        RdbmsFileStoreService.Config config = mock(RdbmsFileStoreService.Config.class);
+        when(config.protocol()).thenReturn("judostore");
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        when(config.readIdleTimeout()).thenReturn(1);
+        target.activate(context, config);
+
+        String fileId = target.put(new ByteArrayInputStream("test".getBytes()), "test.txt", "text/plain");
+        try (InputStream stream = target.get(fileId)) {
+            assertThat(stream.read(), equalTo((int) 't'));
+            Thread.sleep(2500);
+            assertThrows(IOException.class, stream::read);
+        }
+        try (InputStream stream = target.get(fileId)) {
+            assertThat(new String(ByteStreams.toByteArray(stream)), equalTo("test"));
+            assertThat(stream.read(), equalTo(-1));
+        }
+    }
+
     @Test
     public void testGetIllegalFileId() {
         assertThat(target.exists("notexists"), equalTo(false));
@@ -0,0 +1,114 @@
+package hu.blackbelt.osgi.filestore.rdbms;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import com.google.common.collect.ImmutableMap;
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import hu.blackbelt.osgi.filestore.rdbms.fixture.RdbmsDatasourceFixture;
+import hu.blackbelt.osgi.filestore.rdbms.fixture.RdbmsDatasourceSingetonExtension;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Date;
+import java.util.UUID;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@ExtendWith(RdbmsDatasourceSingetonExtension.class)
+public class RdbmsUploadProgressRegistryTest {
+
+    RdbmsUploadProgressRegistry target = new RdbmsUploadProgressRegistry();
+
+    RdbmsDatasourceFixture rdbmsDatasourceFixture;
+
+    RdbmsUploadProgressRegistryTest(RdbmsDatasourceFixture rdbmsDatasourceFixture) {
+        this.rdbmsDatasourceFixture = rdbmsDatasourceFixture;
+    }
+
+    @BeforeEach
+    public void setup() {
+        target.dataSource = rdbmsDatasourceFixture.getDataSource();
+        rdbmsDatasourceFixture.executeInitiLiquibase(
+                RdbmsUploadProgressRegistry.class.getClassLoader(), "liquibase/changelog.xml", rdbmsDatasourceFixture.getDataSource(),
+                ImmutableMap.of("table-name", "FILESTORE_CamelCase".toUpperCase()));
+
+        RdbmsUploadProgressRegistry.Config config = mock(RdbmsUploadProgressRegistry.Config.class);
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+
+        target.activate(config);
+    }
+
+    @Test
+    public void testProgressLifecycle() {
+        String uploadId = UUID.randomUUID().toString();
+        assertThat(target.get(uploadId), nullValue());
+
+        target.update(uploadId, 10, 100);
+        assertThat(target.get(uploadId), nullValue());
+
+        target.save(UploadProgress.builder().uploadId(uploadId).contentLength(100).status(UploadProgress.Status.RUNNING).build());
+        target.update(uploadId, 10, 100);
+        UploadProgress progress = target.get(uploadId);
+        assertThat(progress.getBytesRead(), equalTo(10L));
+        assertThat(progress.getContentLength(), equalTo(100L));
+        assertThat(progress.getStatus(), equalTo(UploadProgress.Status.RUNNING));
+
+        target.save(progress.toBuilder().status(UploadProgress.Status.CANCELED).build());
+        target.update(uploadId, 20, 100);
+        assertThat(target.get(uploadId).getStatus(), equalTo(UploadProgress.Status.CANCELED));
+        assertThat(target.get(uploadId).getBytesRead(), equalTo(20L));
+
+        target.save(progress.toBuilder().bytesRead(100).status(UploadProgress.Status.FINISHED).message("{\"finished\":\"ok\"}").build());
+        assertThat(target.get(uploadId).getMessage(), equalTo("{\"finished\":\"ok\"}"));
+
+        target.remove(uploadId);
+        assertThat(target.get(uploadId), nullValue());
+    }
+
+    @Test
+    public void testExpiredProgressIsDeleted() {
+        String expiredUploadId = UUID.randomUUID().toString();
+        String uploadId = UUID.randomUUID().toString();
+        long expired = System.currentTimeMillis() - RdbmsUploadProgressRegistry.DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS - 1000;
+        target.save(UploadProgress.builder().uploadId(expiredUploadId).contentLength(100).updated(new Date(expired)).build());
+        assertThat(target.get(expiredUploadId), nullValue());
+        assertThat(countRows(expiredUploadId), equalTo(1));
+
+        // Rows of uploads abandoned on other nodes are deleted at the next sweep
+        RdbmsUploadProgressRegistry.Config config = mock(RdbmsUploadProgressRegistry.Config.class);
+        when(config.table()).thenReturn("FILESTORE_CamelCase".toUpperCase());
+        target.activate(config);
+        target.save(UploadProgress.builder().uploadId(uploadId).contentLength(100).build());
+        assertThat(countRows(expiredUploadId), equalTo(0));
+        assertThat(target.get(uploadId).getContentLength(), equalTo(100L));
+    }
+
+    private int countRows(String uploadId) {
+        return new JdbcTemplate(rdbmsDatasourceFixture.getDataSource()).queryForObject(
+                "SELECT COUNT(*) FROM FILESTORE_CAMELCASE_PROGRESS WHERE UPLOAD_ID = ?", Integer.class, uploadId);
+    }
+}
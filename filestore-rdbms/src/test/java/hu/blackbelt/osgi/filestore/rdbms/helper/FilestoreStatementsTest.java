@@ -0,0 +1,75 @@
+package hu.blackbelt.osgi.filestore.rdbms.helper;
+
+/*-
+ * #%L
+ * JUDO framework RDBMS filestore
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class FilestoreStatementsTest {
+
+    private final FilestoreStatements statements = new FilestoreStatements("FILESTORE", false);
+
+    @Test
+    public void testExistsBindsTheId() {
+        assertThat(statements.getExists(), equalTo("SELECT FILE_ID FROM FILESTORE WHERE FILE_ID = ?"));
+    }
+
+    @Test
+    public void testSingleId() {
+        assertThat(FilestoreHelper.inBucketSize(1), equalTo(1));
+        assertThat(placeholders(statements.existingIn(1)), equalTo(1));
+        assertThat(Arrays.asList(FilestoreStatements.inParameters(Collections.singletonList("a"))), equalTo(Arrays.asList("a")));
+    }
+
+    @Test
+    public void testIdsArePaddedToPowerOfTwo() {
+        assertThat(FilestoreHelper.inBucketSize(3), equalTo(4));
+        assertThat(placeholders(statements.existingIn(3)), equalTo(4));
+        assertThat(placeholders(statements.metaIn(3)), equalTo(4));
+        assertThat(statements.existingIn(3), sameInstance(statements.existingIn(4)));
+        assertThat(Arrays.asList(FilestoreStatements.inParameters(Arrays.asList("a", "b", "c"))), equalTo(Arrays.asList("a", "b", "c", "c")));
+    }
+
+    @Test
+    public void testBucketSizeIsLimited() {
+        List<String> ids = IntStream.range(0, 501).mapToObj(String::valueOf).collect(Collectors.toList());
+
+        assertThat(FilestoreHelper.inBucketSize(257), equalTo(FilestoreHelper.IN_CHUNK_SIZE));
+        assertThat(FilestoreHelper.inBucketSize(501), equalTo(FilestoreHelper.IN_CHUNK_SIZE));
+        assertThat(placeholders(statements.existingIn(501)), equalTo(FilestoreHelper.IN_CHUNK_SIZE));
+        // Callers split the ids to chunks of IN_CHUNK_SIZE, the last chunk is padded again
+        assertThat(FilestoreStatements.inParameters(ids.subList(0, FilestoreHelper.IN_CHUNK_SIZE)).length, equalTo(FilestoreHelper.IN_CHUNK_SIZE));
+        assertThat(Arrays.asList(FilestoreStatements.inParameters(ids.subList(FilestoreHelper.IN_CHUNK_SIZE, 501))), equalTo(Arrays.asList("500")));
+    }
+
+    private static int placeholders(String sql) {
+        return (int) sql.chars().filter(c -> c == '?').count();
+    }
+}
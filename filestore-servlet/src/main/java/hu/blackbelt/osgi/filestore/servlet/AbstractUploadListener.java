@@ -42,15 +42,16 @@ public abstract class AbstractUploadListener implements org.apache.commons.fileu
     protected static final long serialVersionUID = -6431275569719042836L;
 //    protected static String className = AbstractUploadListener.class.getName().replaceAll("^.+\\.", "");
     protected static final int DEFAULT_SAVE_INTERVAL = 3000;
-    protected Long bytesRead = 0L;
-    protected Long contentLength = 0L;
-    protected RuntimeException exception;
+    // Progress is written by the thread parsing the request and read by the ones polling the status.
+    protected volatile long bytesRead;
+    protected volatile long contentLength;
+    protected volatile RuntimeException exception;
     protected boolean exceptionTrhown;
     protected int frozenTimeout = 60000;
-    protected Date saved = new Date();
+    protected volatile Date saved = new Date();
     protected String sessionId = "";
     protected int slowUploads;
-    private String postResponse;
+    protected volatile String postResponse;
 
     public AbstractUploadListener(int sleepMilliseconds, long requestSize) {
         this();
@@ -61,11 +62,10 @@ public abstract class AbstractUploadListener implements org.apache.commons.fileu
         if (request != null) {
             sessionId = request.getSession().getId();
         }
-        save();
     }
 
 
-    private AbstractUploadListener() {
+    protected AbstractUploadListener() {
     }
 
     public static AbstractUploadListener current(String sessionId) {
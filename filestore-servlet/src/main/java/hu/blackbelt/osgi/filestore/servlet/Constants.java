@@ -54,6 +54,7 @@ public final class Constants {
     public static final String PARAM_SESSION = "new_session";
     public static final String PARAM_SHOW = "show";
     public static final String PARAM_KEEP_SESSION = "keep_session";
+    public static final String PARAM_UPLOAD_ID = "upload_id";
 
     public static final String MULTI_SUFFIX = "[]";
 
@@ -62,6 +63,9 @@ public final class Constants {
 
     protected static final int DEFAULT_REQUEST_LIMIT_KB = 50 * 1024 * 1024;
     protected static final int DEFAULT_SLOW_DELAY_MILLIS = 0;
+    protected static final long DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS = 60 * 60 * 1000L;
+    protected static final int STREAMING_BATCH_FILE_SIZE = 64 * 1024;
+    protected static final int STREAMING_BATCH_SIZE = 1024 * 1024;
 
     public static final String XML_DELETED_TRUE = "<deleted>true</deleted>";
     public static final String XML_ERROR_ITEM_NOT_FOUND = "<error>item not found</error>";
@@ -86,11 +90,25 @@ public final class Constants {
     public static final String HEADER_TOKEN = "X-Token";
     public static final String HEADER_CONTENT_TYPE = "Content-Type";
     public static final String HEADER_CONTENT_DISPOSITION = "Content-Disposition";
+    public static final String HEADER_CONTENT_LENGTH = "Content-Length";
+    public static final String HEADER_CONTENT_RANGE = "Content-Range";
+    public static final String HEADER_ACCEPT_RANGES = "Accept-Ranges";
+    public static final String HEADER_RANGE = "Range";
+    public static final String HEADER_IF_RANGE = "If-Range";
+    public static final String HEADER_ETAG = "ETag";
+    public static final String HEADER_LAST_MODIFIED = "Last-Modified";
+    public static final String HEADER_CACHE_CONTROL = "Cache-Control";
+    public static final String HEADER_IF_NONE_MATCH = "If-None-Match";
+    public static final String HEADER_IF_MODIFIED_SINCE = "If-Modified-Since";
+
+    public static final String DEFAULT_DOWNLOAD_CACHE_CONTROL = "private, max-age=31536000, immutable";
+    public static final long DEFAULT_ASYNC_DOWNLOAD_TIMEOUT_MILLIS = 10 * 60 * 1000L;
     public static final String PARAM_FILE_ID = "id";
 
     public static final String MIMETYPE_TEXT_PLAIN = "text/plain";
     public static final String MIMETYPE_TEXT_HTML = "text/html";
     public static final String MIMETYPE_APPLICATION_JSON = "application/json";
+    public static final String MIMETYPE_MULTIPART_BYTERANGES = "multipart/byteranges";
 
     public static final String HEADER_ORIGIN = "Origin";
     public static final String ALL = "*";
@@ -20,6 +20,8 @@ package hu.blackbelt.osgi.filestore.servlet;
  * #L%
  */
 
+import hu.blackbelt.osgi.filestore.api.ChannelReadableFileStore;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
 import hu.blackbelt.osgi.filestore.api.FileStoreService;
 import hu.blackbelt.osgi.filestore.security.api.DownloadClaim;
 import hu.blackbelt.osgi.filestore.security.api.Token;
@@ -27,25 +29,32 @@ import hu.blackbelt.osgi.filestore.security.api.TokenValidator;
 import hu.blackbelt.osgi.filestore.security.api.exceptions.InvalidTokenException;
 import hu.blackbelt.osgi.filestore.servlet.exceptions.MissingParameterException;
 import hu.blackbelt.osgi.filestore.servlet.exceptions.TokenRequiredException;
+import hu.blackbelt.osgi.filestore.servlet.utils.AsyncContentWriter;
+import hu.blackbelt.osgi.filestore.servlet.utils.ByteRange;
 import hu.blackbelt.osgi.filestore.servlet.utils.CorsProcessor;
-import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
 import org.osgi.service.component.annotations.*;
-import org.osgi.service.http.HttpService;
-import org.osgi.service.http.NamespaceException;
+import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
 import org.osgi.service.metatype.annotations.AttributeDefinition;
 import org.osgi.service.metatype.annotations.AttributeType;
 import org.osgi.service.metatype.annotations.Designate;
 import org.osgi.service.metatype.annotations.ObjectClassDefinition;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.Servlet;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -56,11 +65,13 @@ import static hu.blackbelt.osgi.filestore.servlet.UploadUtils.*;
 /**
  * Download servlet.
  */
-@Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE, service = Servlet.class)
+@Component(immediate = true, configurationPolicy = ConfigurationPolicy.REQUIRE)
 @Designate(ocd = DownloadServlet.Config.class)
 @Slf4j
 public class DownloadServlet extends HttpServlet {
 
+    private static final String CRLF = "\r\n";
+
     @ObjectClassDefinition()
     public @interface Config {
 
@@ -77,24 +88,35 @@ public class DownloadServlet extends HttpServlet {
         boolean cors_allowCredentials() default true;
 
         @AttributeDefinition(name = "CORS allow headers", description = "Comma-separated list of Access-Control-Allow-Headers")
-        String cors_allowHeaders() default HEADER_CONTENT_TYPE + "," + HEADER_ORIGIN + "," + HEADER_ACCEPT + "," + HEADER_AUTHORIZATION;
+        String cors_allowHeaders() default HEADER_CONTENT_TYPE + "," + HEADER_ORIGIN + "," + HEADER_ACCEPT + "," + HEADER_AUTHORIZATION + "," + HEADER_RANGE + "," + HEADER_IF_RANGE
+                + "," + HEADER_IF_NONE_MATCH + "," + HEADER_IF_MODIFIED_SINCE;
 
         @AttributeDefinition(name = "CORS expose headers", description = "Comma-separated list of Access-Control-Expose-Headers")
-        String cors_exposeHeaders() default HEADER_CONTENT_TYPE + "," + HEADER_CONTENT_DISPOSITION;
+        String cors_exposeHeaders() default HEADER_CONTENT_TYPE + "," + HEADER_CONTENT_DISPOSITION + "," + HEADER_CONTENT_RANGE + "," + HEADER_ACCEPT_RANGES + "," + HEADER_ETAG;
 
         @AttributeDefinition(name = "CORS max age", description = "Access-Control-Max-Age")
         int cors_maxAge() default -1;
 
         @AttributeDefinition(name = "CORS preflight error code", description = "HTTP status code returned by failed prefligth requests", type = AttributeType.INTEGER)
         int cors_prefligthErrorStatus() default CORS_PREFLIGHT_ERROR_CODE;
+
+        @AttributeDefinition(required = false, name = "Cache control", description = "Cache-Control header of downloaded files (stored files are immutable), empty to omit")
+        String cacheControl() default DEFAULT_DOWNLOAD_CACHE_CONTROL;
+
+        @AttributeDefinition(required = false, name = "Asynchronous download", description = "Write file content with non-blocking I/O when the container supports it, files of stores providing file channels are transferred with FileChannel.transferTo in the request thread instead", type = AttributeType.BOOLEAN)
+        boolean asyncDownload() default true;
+
+        @AttributeDefinition(required = false, name = "Asynchronous download timeout (ms)", description = "Maximum duration of an asynchronous download, the transfer is aborted and the file is closed after it", type = AttributeType.LONG)
+        long asyncTimeout() default DEFAULT_ASYNC_DOWNLOAD_TIMEOUT_MILLIS;
     }
 
     private CorsProcessor corsProcessor = CorsProcessor.builder().build();
     private String servletPath;
     private boolean tokenRequired;
-
-    @Reference
-    private HttpService httpService;
+    private String cacheControl;
+    private boolean asyncDownload;
+    private long asyncTimeout;
+    private ServiceRegistration<Servlet> registration;
 
     @Reference(policyOption = ReferencePolicyOption.GREEDY)
     FileStoreService fileStoreService;
@@ -103,8 +125,7 @@ public class DownloadServlet extends HttpServlet {
     TokenValidator tokenValidator;
 
     @Activate
-    @SneakyThrows({ ServletException.class, NamespaceException.class })
-    protected void activate(DownloadServlet.Config config) {
+    protected void activate(BundleContext bundleContext, DownloadServlet.Config config) {
         corsProcessor = CorsProcessor.builder()
                 .allowOrigins(config.cors_allowOrigin() != null ? Arrays.asList(config.cors_allowOrigin().split("\\s*,\\s*")) : Collections.emptyList())
                 .allowCredentials(config.cors_allowCredentials())
@@ -123,13 +144,20 @@ public class DownloadServlet extends HttpServlet {
                 .build();
         servletPath = config.servletPath();
         tokenRequired = config.tokenRequired();
+        cacheControl = config.cacheControl();
+        asyncDownload = config.asyncDownload();
+        asyncTimeout = config.asyncTimeout() > 0 ? config.asyncTimeout() : DEFAULT_ASYNC_DOWNLOAD_TIMEOUT_MILLIS;
 
-        httpService.registerServlet(servletPath, this, getInitParams(servletPath), null);
+        // Registered on the HTTP Whiteboard, servlets of HttpService.registerServlet do not support async processing
+        registration = bundleContext.registerService(Servlet.class, this, getServiceProperties(servletPath));
     }
 
     @Deactivate
     protected void deactivate() {
-        httpService.unregister(servletPath);
+        if (registration != null) {
+            registration.unregister();
+            registration = null;
+        }
     }
 
     @Override
@@ -168,9 +196,17 @@ public class DownloadServlet extends HttpServlet {
             } else if (fileId == null) {
                 throw new MissingParameterException(UploadUtils.getMessage(KEY_MISSING_PARAMETER, PARAM_FILE_ID));
             }
-            String fileName = fileStoreService.getFileName(fileId);
-            String contentType = fileStoreService.getMimeType(fileId);
-            long size = fileStoreService.getSize(fileId);
+            FileMetadata metadata = fileStoreService.getMetadata(fileId);
+            String fileName = metadata.getFileName();
+            String contentType = metadata.getMimeType();
+            long size = metadata.getSize();
+
+            String entityTag = toEntityTag(metadata.getFileId() != null ? metadata.getFileId() : fileId);
+            if (isNotModified(request, entityTag, metadata)) {
+                setCachingHeaders(response, entityTag, metadata);
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return;
+            }
             Optional<String> disposition = Optional.ofNullable(inlineDispositionFromUrl);
             if (disposition.isEmpty()) {
                 disposition = Optional.ofNullable(downloadToken).map(t -> (String) t.get(DownloadClaim.DISPOSITION));
@@ -187,17 +223,36 @@ public class DownloadServlet extends HttpServlet {
             } else {
                 response.setHeader("Content-Disposition", disposition.orElse("attachment"));
             }
-            if (contentType != null) {
-                response.setContentType(contentType);
-            }
-            if (size < Integer.MAX_VALUE && size >= 0) {
-                response.setContentLength((int) size);
-            }
+            response.setHeader(HEADER_ACCEPT_RANGES, ByteRange.BYTES_UNIT);
 
-            final InputStream in = fileStoreService.get(fileId);
-            final OutputStream out = response.getOutputStream();
-
-            copyFromInputStreamToOutputStream(in, out);
+            List<ByteRange> ranges = isRangeApplicable(request, entityTag, metadata) ? ByteRange.parse(request.getHeader(HEADER_RANGE), size) : null;
+            if (ranges == null) {
+                ReadableByteChannel source = openContent(fileId, 0, -1);
+                setCachingHeaders(response, entityTag, metadata);
+                if (contentType != null) {
+                    response.setContentType(contentType);
+                }
+                if (size >= 0) {
+                    setContentLength(response, size);
+                }
+                sendContent(request, response, source, -1);
+            } else if (ranges.isEmpty()) {
+                response.setHeader(HEADER_CONTENT_RANGE, ByteRange.BYTES_UNIT + " */" + size);
+                response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            } else if (ranges.size() == 1) {
+                ByteRange range = ranges.get(0);
+                ReadableByteChannel source = openContent(fileId, range.getStart(), range.getLength());
+                setCachingHeaders(response, entityTag, metadata);
+                response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                if (contentType != null) {
+                    response.setContentType(contentType);
+                }
+                response.setHeader(HEADER_CONTENT_RANGE, range.toContentRange(size));
+                setContentLength(response, range.getLength());
+                sendContent(request, response, source, range.getLength());
+            } else {
+                writeMultipartRanges(response, fileId, entityTag, metadata, ranges);
+            }
         } catch (TokenRequiredException e) {
             response.setContentType(MIMETYPE_TEXT_PLAIN);
             response.setStatus(HttpServletResponse.SC_FORBIDDEN);
@@ -220,9 +275,180 @@ public class DownloadServlet extends HttpServlet {
         }
     }
 
-    private Dictionary getInitParams(String name) {
-        Dictionary dictionary = new Hashtable();
-        dictionary.put("servlet-name", "DownloadServlet-" + name);
+    /**
+     * Stored files are immutable, so the file id is a strong entity tag.
+     */
+    private static String toEntityTag(String fileId) {
+        return "\"" + fileId + "\"";
+    }
+
+    /**
+     * Validators and caching headers are only sent with the content (or a 304), error responses must not be cached.
+     */
+    private void setCachingHeaders(HttpServletResponse response, String entityTag, FileMetadata metadata) {
+        response.setHeader(HEADER_ETAG, entityTag);
+        if (metadata.getCreateTime() != null) {
+            response.setDateHeader(HEADER_LAST_MODIFIED, metadata.getCreateTime().getTime());
+        }
+        if (cacheControl != null && !cacheControl.trim().isEmpty()) {
+            response.setHeader(HEADER_CACHE_CONTROL, cacheControl);
+        }
+    }
+
+    /**
+     * Evaluates <code>If-None-Match</code> (weak comparison) or, when it is missing, <code>If-Modified-Since</code>.
+     */
+    private boolean isNotModified(HttpServletRequest request, String entityTag, FileMetadata metadata) {
+        String ifNoneMatch = request.getHeader(HEADER_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            return Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    .anyMatch(tag -> ALL.equals(tag) || entityTag.equals(tag) || ("W/" + entityTag).equals(tag));
+        }
+        if (metadata.getCreateTime() == null) {
+            return false;
+        }
+        try {
+            long date = request.getDateHeader(HEADER_IF_MODIFIED_SINCE);
+            return date >= 0 && metadata.getCreateTime().getTime() / 1000 <= date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * A <code>Range</code> header is ignored when the <code>If-Range</code> validator does not match the stored file.
+     */
+    private boolean isRangeApplicable(HttpServletRequest request, String entityTag, FileMetadata metadata) {
+        String ifRange = request.getHeader(HEADER_IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            return entityTag.equals(ifRange.trim());
+        }
+        try {
+            long date = request.getDateHeader(HEADER_IF_RANGE);
+            return metadata.getCreateTime() != null && metadata.getCreateTime().getTime() / 1000 == date / 1000;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private void writeMultipartRanges(HttpServletResponse response, String fileId, String entityTag, FileMetadata metadata,
+                                      List<ByteRange> ranges) throws IOException {
+        String contentType = metadata.getMimeType();
+        long size = metadata.getSize();
+        String boundary = UUID.randomUUID().toString().replace("-", "");
+        List<byte[]> partHeaders = new ArrayList<>();
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            String partHeader = CRLF + "--" + boundary + CRLF
+                    + (contentType != null ? HEADER_CONTENT_TYPE + ": " + contentType + CRLF : "")
+                    + HEADER_CONTENT_RANGE + ": " + range.toContentRange(size) + CRLF + CRLF;
+            byte[] partHeaderBytes = partHeader.getBytes(StandardCharsets.ISO_8859_1);
+            partHeaders.add(partHeaderBytes);
+            contentLength += partHeaderBytes.length + range.getLength();
+        }
+        byte[] closing = (CRLF + "--" + boundary + "--" + CRLF).getBytes(StandardCharsets.ISO_8859_1);
+        contentLength += closing.length;
+
+        OutputStream out = null;
+        for (int i = 0; i < ranges.size(); i++) {
+            ByteRange range = ranges.get(i);
+            try (ReadableByteChannel source = openContent(fileId, range.getStart(), range.getLength())) {
+                if (out == null) {
+                    // The response is started when the content of the first part could be opened
+                    setCachingHeaders(response, entityTag, metadata);
+                    response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+                    response.setContentType(MIMETYPE_MULTIPART_BYTERANGES + "; boundary=" + boundary);
+                    setContentLength(response, contentLength);
+                    out = response.getOutputStream();
+                }
+                out.write(partHeaders.get(i));
+                copyContent(source, range.getLength(), out);
+            }
+        }
+        out.write(closing);
+    }
+
+    /**
+     * Sends <code>length</code> bytes of the opened content as the response body and closes it. When async processing
+     * is supported the content is written by an {@link AsyncContentWriter} and the container thread is released,
+     * otherwise it is copied in the calling thread. File channels are always transferred in the calling thread, the
+     * async writer would copy them through its heap buffer.
+     */
+    private void sendContent(HttpServletRequest request, HttpServletResponse response, ReadableByteChannel source, long length) throws IOException {
+        if (!asyncDownload || !request.isAsyncSupported() || source instanceof FileChannel) {
+            try (ReadableByteChannel in = source) {
+                copyContent(in, length, response.getOutputStream());
+            }
+            return;
+        }
+        AsyncContext asyncContext;
+        try {
+            asyncContext = request.startAsync();
+            asyncContext.setTimeout(asyncTimeout);
+        } catch (RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        try {
+            new AsyncContentWriter(asyncContext, source, length).start();
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            asyncContext.complete();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens the content of the file positioned at <code>start</code>. File channels are not limited to
+     * <code>length</code>, the other sources end after <code>length</code> bytes.
+     */
+    private ReadableByteChannel openContent(String fileId, long start, long length) throws IOException {
+        if (fileStoreService instanceof ChannelReadableFileStore) {
+            FileChannel channel = ((ChannelReadableFileStore) fileStoreService).openFileChannel(fileId);
+            if (channel != null) {
+                return channel.position(start);
+            }
+        }
+        return Channels.newChannel(start == 0 && length < 0 ? fileStoreService.get(fileId) : fileStoreService.get(fileId, start, length));
+    }
+
+    /**
+     * Copies <code>length</code> bytes of the opened content (negative length copies until the end). Content of local
+     * files is transferred with {@link FileChannel#transferTo}, so it is not copied through the heap buffers of the
+     * servlet.
+     */
+    private static void copyContent(ReadableByteChannel source, long length, OutputStream out) throws IOException {
+        if (!(source instanceof FileChannel)) {
+            copyFromInputStreamToOutputStream(Channels.newInputStream(source), out);
+            return;
+        }
+        FileChannel channel = (FileChannel) source;
+        long position = channel.position();
+        long remaining = length >= 0 ? Math.min(length, channel.size() - position) : channel.size() - position;
+        WritableByteChannel target = Channels.newChannel(out);
+        while (remaining > 0) {
+            long transferred = channel.transferTo(position, remaining, target);
+            if (transferred <= 0) {
+                break;
+            }
+            position += transferred;
+            remaining -= transferred;
+        }
+    }
+
+    private static void setContentLength(HttpServletResponse response, long length) {
+        response.setContentLengthLong(length);
+    }
+
+    private Dictionary<String, Object> getServiceProperties(String name) {
+        Dictionary<String, Object> dictionary = new Hashtable<>();
+        dictionary.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_NAME, "DownloadServlet-" + name);
+        dictionary.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN, new String[] { name, name + "/*" });
+        dictionary.put(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED, Boolean.TRUE);
         return dictionary;
     }
 
@@ -0,0 +1,131 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import hu.blackbelt.osgi.filestore.api.UploadProgressRegistry;
+
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Upload progress registry of a single node. Byte counters of running uploads are updated without locking, so
+ * polling the status does not contend with the thread parsing the request. Entries which are not updated for the
+ * configured time (uploads never removed by the client, frozen uploads) are evicted: expired entries are not
+ * returned and they are swept when the progress of an upload is saved.
+ */
+public class InMemoryUploadProgressRegistry implements UploadProgressRegistry {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+    private final long expireAfterMillis;
+
+    private final AtomicLong nextSweep = new AtomicLong();
+
+    public InMemoryUploadProgressRegistry() {
+        this(Constants.DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS);
+    }
+
+    public InMemoryUploadProgressRegistry(long expireAfterMillis) {
+        this.expireAfterMillis = expireAfterMillis;
+        nextSweep.set(System.currentTimeMillis() + expireAfterMillis);
+    }
+
+    @Override
+    public void save(UploadProgress progress) {
+        evictExpired(System.currentTimeMillis());
+        entries.compute(progress.getUploadId(), (uploadId, entry) -> {
+            Entry saved = entry != null ? entry : new Entry(uploadId);
+            saved.bytesRead.set(progress.getBytesRead());
+            saved.contentLength.set(progress.getContentLength());
+            saved.status = progress.getStatus() != null ? progress.getStatus() : UploadProgress.Status.RUNNING;
+            saved.message = progress.getMessage();
+            saved.updated = progress.getUpdated() != null ? progress.getUpdated().getTime() : System.currentTimeMillis();
+            return saved;
+        });
+    }
+
+    @Override
+    public void update(String uploadId, long bytesRead, long contentLength) {
+        Entry entry = entries.get(uploadId);
+        if (entry != null) {
+            entry.bytesRead.set(bytesRead);
+            entry.contentLength.set(contentLength);
+            entry.updated = System.currentTimeMillis();
+        }
+    }
+
+    @Override
+    public UploadProgress get(String uploadId) {
+        Entry entry = uploadId != null ? entries.get(uploadId) : null;
+        if (entry == null || isExpired(entry, System.currentTimeMillis())) {
+            return null;
+        }
+        return UploadProgress.builder()
+                .uploadId(entry.uploadId)
+                .bytesRead(entry.bytesRead.get())
+                .contentLength(entry.contentLength.get())
+                .status(entry.status)
+                .message(entry.message)
+                .updated(new Date(entry.updated))
+                .build();
+    }
+
+    @Override
+    public void remove(String uploadId) {
+        if (uploadId != null) {
+            entries.remove(uploadId);
+        }
+    }
+
+    /**
+     * Removes the expired entries, at most once in the expiration time, so saving a progress is not an O(n) scan.
+     */
+    void evictExpired(long now) {
+        long sweep = nextSweep.get();
+        if (now >= sweep && nextSweep.compareAndSet(sweep, now + expireAfterMillis)) {
+            entries.values().removeIf(entry -> isExpired(entry, now));
+        }
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    private boolean isExpired(Entry entry, long now) {
+        return now - entry.updated > expireAfterMillis;
+    }
+
+    private static final class Entry {
+        private final String uploadId;
+        private final AtomicLong bytesRead = new AtomicLong();
+        private final AtomicLong contentLength = new AtomicLong();
+        private volatile UploadProgress.Status status = UploadProgress.Status.RUNNING;
+        private volatile String message;
+        private volatile long updated = System.currentTimeMillis();
+
+        private Entry(String uploadId) {
+            this.uploadId = uploadId;
+        }
+    }
+}
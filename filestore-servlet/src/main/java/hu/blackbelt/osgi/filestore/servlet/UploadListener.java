@@ -20,63 +20,83 @@ package hu.blackbelt.osgi.filestore.servlet;
  * #L%
  */
 
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import hu.blackbelt.osgi.filestore.api.UploadProgressRegistry;
+import hu.blackbelt.osgi.filestore.servlet.exceptions.UploadActionException;
+import hu.blackbelt.osgi.filestore.servlet.exceptions.UploadCanceledException;
 import hu.blackbelt.osgi.filestore.servlet.exceptions.UploadTimeoutException;
 import lombok.extern.slf4j.Slf4j;
 
-import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpSession;
-import java.io.Serializable;
 import java.util.Date;
 
-import static hu.blackbelt.osgi.filestore.servlet.UploadUtils.getThreadLocalRequest;
-
 /**
  * This is a File Upload Listener that is used by Apache Commons File Upload to
- * monitor the progress of the uploaded file.
+ * monitor the progress of the uploaded file. Its state is saved in an {@link UploadProgressRegistry}
+ * under the upload id.
  */
 @Slf4j
 public class UploadListener extends AbstractUploadListener {
 
-    protected static final String ATTR_LISTENER = "LISTENER";
     private final long serialVersionUID = -6431275569719042836L;
-    private final int watcherInterval = 5000;
     private int noDataTimeout = 20000;
-    private TimeoutWatchDog watcher;
+    private final transient UploadWatchDog watchDog;
+    private volatile long lastData = System.currentTimeMillis();
+    private final transient UploadProgressRegistry registry;
+    private final String uploadId;
 
     /**
      * Default constructor.
      */
-    public UploadListener(int sleepMilliseconds, long requestSize, int noDataTimeoutMillisec) {
+    public UploadListener(UploadProgressRegistry registry, UploadWatchDog watchDog, String uploadId, int sleepMilliseconds, long requestSize,
+                          int noDataTimeoutMillisec) {
         super(sleepMilliseconds, requestSize);
+        this.registry = registry;
+        this.watchDog = watchDog;
+        this.uploadId = uploadId;
         noDataTimeout = noDataTimeoutMillisec;
+        save();
         startWatcher();
     }
 
-
-    public static AbstractUploadListener current(HttpServletRequest request) {
-        return (AbstractUploadListener) request.getSession().getAttribute(ATTR_LISTENER);
-    }
-
-    public static AbstractUploadListener current(String sessionId) {
-        return (AbstractUploadListener) session().getAttribute(ATTR_LISTENER);
-    }
-
     /**
-     * Upload servlet saves the current request as a ThreadLocal,
-     * so it is accessible from any class.
-     *
-     * @return request of the current thread
+     * Listener restored from a saved progress, used to answer status requests and to cancel the upload (which can
+     * be running on an other node).
      */
-    private static HttpServletRequest request() {
-        return getThreadLocalRequest();
+    private UploadListener(UploadProgressRegistry registry, UploadProgress progress) {
+        this.registry = registry;
+        this.watchDog = null;
+        this.uploadId = progress.getUploadId();
+        sessionId = progress.getUploadId();
+        bytesRead = progress.getBytesRead();
+        contentLength = progress.getContentLength();
+        saved = progress.getUpdated() != null ? progress.getUpdated() : new Date();
+        if (progress.getStatus() != null) {
+            switch (progress.getStatus()) {
+                case FINISHED:
+                    postResponse = progress.getMessage();
+                    break;
+                case CANCELED:
+                    exception = new UploadCanceledException();
+                    break;
+                case TIMEOUT:
+                    exception = new UploadTimeoutException(progress.getMessage());
+                    break;
+                case FAILED:
+                    exception = new UploadActionException(progress.getMessage());
+                    break;
+                default:
+                    break;
+            }
+        }
     }
 
-    /**
-     * Returns current HttpSession.
-     * @return current HttpSession
-     */
-    private static HttpSession session() {
-        return request() != null ? request().getSession() : null;
+    public static AbstractUploadListener current(UploadProgressRegistry registry, String uploadId) {
+        UploadProgress progress = registry.get(uploadId);
+        return progress != null ? new UploadListener(registry, progress) : null;
+    }
+
+    public String getUploadId() {
+        return uploadId;
     }
 
     /* (non-Javadoc)
@@ -84,9 +104,7 @@ public class UploadListener extends AbstractUploadListener {
      */
     public void remove() {
         log.info(sessionId + " remove: " + toString());
-        if (session() != null) {
-            session().removeAttribute(ATTR_LISTENER);
-        }
+        registry.remove(uploadId);
         stopWatcher();
         saved = new Date();
     }
@@ -95,95 +113,97 @@ public class UploadListener extends AbstractUploadListener {
      * @see AbstractUploadListener#save()
      */
     public void save() {
-        if (session() != null) {
-            session().setAttribute(ATTR_LISTENER, this);
-        }
         saved = new Date();
+        if (exception == null && !isFinished()) {
+            // Only the counters of a running upload are updated, so a cancel saved by an other listener instance
+            // (serving the cancel request, maybe on an other node) is not overwritten.
+            registry.update(uploadId, bytesRead, contentLength);
+            UploadProgress stored = registry.get(uploadId);
+            if (stored != null && stored.getStatus() != UploadProgress.Status.CANCELED) {
+                log.debug(sessionId + " save " + toString());
+                return;
+            } else if (stored != null) {
+                exception = new UploadCanceledException();
+            }
+        }
+        registry.save(toProgress());
         log.debug(sessionId + " save " + toString());
     }
 
+    private UploadProgress toProgress() {
+        RuntimeException e = exception;
+        UploadProgress.Status status;
+        String message = null;
+        if (isFinished()) {
+            status = UploadProgress.Status.FINISHED;
+            message = getPostResponse();
+        } else if (e instanceof UploadCanceledException) {
+            status = UploadProgress.Status.CANCELED;
+        } else if (e instanceof UploadTimeoutException) {
+            status = UploadProgress.Status.TIMEOUT;
+            message = e.getMessage();
+        } else if (e != null) {
+            status = UploadProgress.Status.FAILED;
+            message = e.getMessage();
+        } else {
+            status = UploadProgress.Status.RUNNING;
+        }
+        return UploadProgress.builder()
+                .uploadId(uploadId)
+                .bytesRead(bytesRead)
+                .contentLength(contentLength)
+                .status(status)
+                .message(message)
+                .updated(saved)
+                .build();
+    }
+
     /* (non-Javadoc)
      * @see AbstractUploadListener#update(long, long, int)
      */
     @Override
     public void update(long done, long total, int item) {
+        if (done > bytesRead) {
+            lastData = System.currentTimeMillis();
+        }
         super.update(done, total, item);
         if (getPercent() >= 100) {
             stopWatcher();
         }
     }
 
-    private void startWatcher() {
-        if (watcher == null) {
-            try {
-                watcher = new TimeoutWatchDog(this);
-                watcher.start();
-            } catch (Exception e) {
-                log.info(sessionId + " unable to create watchdog: " + e.getMessage());
-            }
-        }
-    }
-
-    private void stopWatcher() {
-        if (watcher != null) {
-            watcher.cancel();
-        }
-    }
-
     /**
-     * A class which is executed in a new thread, so its able to detect
-     * when an upload process is frozen and sets an exception in order to
-     * be canceled.
-     * This doesn't work in Google application engine
+     * Called by the {@link UploadWatchDog} when the deadline of the upload is reached, it detects when an upload
+     * process is frozen and saves an exception in order to be canceled.
+     *
+     * @param now current time in milliseconds
+     * @return time when the upload has to be checked again, or -1 if it does not need to be watched anymore
      */
-    private class TimeoutWatchDog extends Thread implements Serializable {
-        private static final long serialVersionUID = -649803529271569237L;
-
-        AbstractUploadListener listener;
-        private long lastBytesRead;
-        private long lastData = (new Date()).getTime();
-
-        public TimeoutWatchDog(AbstractUploadListener l) {
-            listener = l;
+    long checkTimeout(long now) {
+        if (getBytesRead() > 0 && getPercent() >= 100 || isCanceled()) {
+            log.debug(sessionId + " UploadWatchDog: upload process has finished, stoping watcher");
+            return -1;
         }
-
-        public void cancel() {
-            listener = null;
+        long deadline = lastData + noDataTimeout;
+        if (now < deadline) {
+            return deadline;
         }
+        log.info(sessionId + " UploadWatchDog: the recepcion seems frozen: "
+                + getBytesRead() + "/" + getContentLength() + " bytes (" + getPercent() + "%) ");
+        exception = new UploadTimeoutException("No new data received after " + noDataTimeout / 1000 + " seconds");
+        save();
+        return -1;
+    }
 
-        @Override
-        public void run() {
-            try {
-                Thread.sleep(watcherInterval);
-            } catch (InterruptedException e) {
-                log.error(sessionId + " TimeoutWatchDog: sleep Exception: " + e.getMessage());
-            }
-            if (listener != null) {
-                if (listener.getBytesRead() > 0 && listener.getPercent() >= 100 || listener.isCanceled()) {
-                    log.debug(sessionId + " TimeoutWatchDog: upload process has finished, stoping watcher");
-                    listener = null;
-                } else {
-                    if (isFrozen()) {
-                        log.info(sessionId + " TimeoutWatchDog: the recepcion seems frozen: "
-                                + listener.getBytesRead() + "/" + listener.getContentLength() + " bytes ("
-                                + listener.getPercent() + "%) ", new Throwable());
-                        exception = new UploadTimeoutException("No new data received after " + noDataTimeout / 1000 + " seconds");
-                    } else {
-                        run();
-                    }
-                }
-            }
+    private void startWatcher() {
+        if (watchDog != null) {
+            watchDog.watch(this);
         }
+    }
 
-        private boolean isFrozen() {
-            long now = (new Date()).getTime();
-            if (bytesRead > lastBytesRead) {
-                lastData = now;
-                lastBytesRead = bytesRead;
-            } else if (now - lastData > noDataTimeout) {
-                return true;
-            }
-            return false;
+    private void stopWatcher() {
+        if (watchDog != null) {
+            watchDog.unwatch(this);
         }
     }
 }
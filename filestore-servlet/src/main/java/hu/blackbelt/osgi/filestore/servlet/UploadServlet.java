@@ -22,9 +22,14 @@ package hu.blackbelt.osgi.filestore.servlet;
 
 import hu.blackbelt.osgi.filestore.security.api.*;
 import hu.blackbelt.osgi.filestore.api.FileStoreService;
+import hu.blackbelt.osgi.filestore.api.PutRequest;
+import hu.blackbelt.osgi.filestore.api.UploadProgressRegistry;
 import hu.blackbelt.osgi.filestore.servlet.exceptions.*;
 import hu.blackbelt.osgi.filestore.servlet.utils.CorsProcessor;
+import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import lombok.extern.slf4j.Slf4j;
 import org.osgi.service.component.annotations.*;
 import org.osgi.service.http.HttpService;
@@ -40,8 +45,10 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.SequenceInputStream;
 import java.net.URL;
 import java.util.*;
 import java.util.stream.Collectors;
@@ -98,6 +105,12 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
         @AttributeDefinition(name = "CORS preflight error code", description = "HTTP status code returned by failed prefligth requests", type = AttributeType.INTEGER)
         int cors_prefligthErrorStatus() default CORS_PREFLIGHT_ERROR_CODE;
+
+        @AttributeDefinition(required = false, name = "Upload progress TTL (ms)", description = "Progress of uploads which are not updated for this time is evicted from the in-memory registry", type = AttributeType.LONG)
+        long uploadProgressTtl() default Constants.DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS;
+
+        @AttributeDefinition(required = false, name = "Streaming upload", description = "Store uploaded files while the request is parsed instead of spooling them to temporary files. Received files are not kept in the session, so they cannot be shown or removed by later requests, files of a failed upload are deleted from the file store", type = AttributeType.BOOLEAN)
+        boolean streamingUpload() default false;
     }
 
     protected long maxSize;
@@ -107,6 +120,7 @@ public class UploadServlet extends HttpServlet implements Servlet {
     private CorsProcessor corsProcessor = CorsProcessor.builder().build();
     private String servletPath;
     private boolean tokenRequired;
+    private boolean streamingUpload;
 
     @Reference
     private HttpService httpService;
@@ -120,6 +134,13 @@ public class UploadServlet extends HttpServlet implements Servlet {
     @Reference(policyOption = ReferencePolicyOption.GREEDY, cardinality = ReferenceCardinality.OPTIONAL)
     TokenIssuer tokenIssuer;
 
+    @Reference(policyOption = ReferencePolicyOption.GREEDY, cardinality = ReferenceCardinality.OPTIONAL)
+    UploadProgressRegistry uploadProgressRegistry;
+
+    private UploadProgressRegistry progressRegistry = new InMemoryUploadProgressRegistry();
+
+    private UploadWatchDog watchDog;
+
     public UploadServlet() {
     }
 
@@ -144,6 +165,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
                 .build();
         servletPath = config.servletPath();
         tokenRequired = config.tokenRequired();
+        streamingUpload = config.streamingUpload();
+        progressRegistry = uploadProgressRegistry != null ? uploadProgressRegistry
+                : new InMemoryUploadProgressRegistry(config.uploadProgressTtl() > 0 ? config.uploadProgressTtl() : Constants.DEFAULT_UPLOAD_PROGRESS_TTL_MILLIS);
+        watchDog = new UploadWatchDog(UploadWatchDog.DEFAULT_INTERVAL_MILLIS);
 
         log.info(String.format(MSG_INIT_MAX_SIZE_D_UPLOAD_DELAY_D_CORS_REGEX_S, maxSize, uploadDelay, corsProcessor.getAllowOrigins()));
         httpService.registerServlet(servletPath, this, getInitParams(servletPath), null);
@@ -152,6 +177,10 @@ public class UploadServlet extends HttpServlet implements Servlet {
     @Deactivate
     protected void deactivate() {
         httpService.unregister(servletPath);
+        if (watchDog != null) {
+            watchDog.shutdown();
+            watchDog = null;
+        }
     }
 
     @Override
@@ -208,7 +237,22 @@ public class UploadServlet extends HttpServlet implements Servlet {
      */
     protected AbstractUploadListener createNewListener(HttpServletRequest request) {
         int delay = request.getParameter("nodelay") != null ? 0 : uploadDelay;
-        return new UploadListener(delay, getContentLength(request), noDataTimeout);
+        return new UploadListener(progressRegistry, watchDog, getUploadId(request), delay, getContentLength(request), noDataTimeout);
+    }
+
+    /**
+     * Id of the upload the request belongs to. Clients uploading in parallel pass their own id in the
+     * <code>upload_id</code> parameter, the default is the upload of the session. The id is scoped to the session: the
+     * progress is registered under the digest of the session id and the given id, so an upload can be polled or
+     * canceled only in the session which started it (on any node sharing the session).
+     *
+     * @param request
+     * @return upload id
+     */
+    protected String getUploadId(HttpServletRequest request) {
+        String sessionId = request.getSession().getId();
+        String uploadId = request.getParameter(PARAM_UPLOAD_ID);
+        return UploadUtils.digest(uploadId != null && !uploadId.isEmpty() ? sessionId + SLASH + uploadId : sessionId);
     }
 
     /**
@@ -275,42 +319,19 @@ public class UploadServlet extends HttpServlet implements Servlet {
             } else {
                 uploadToken = null;
             }
-            error = parsePostRequest(request, response, uploadToken != null ? (Long) UploadClaim.MAX_FILE_SIZE.convert(uploadToken.get(UploadClaim.MAX_FILE_SIZE)) : null);
+            Long tokenMaxFileSize = uploadToken != null ? (Long) UploadClaim.MAX_FILE_SIZE.convert(uploadToken.get(UploadClaim.MAX_FILE_SIZE)) : null;
+            List<String> allFiles = new ArrayList<>();
+            if (streamingUpload) {
+                error = parseStreamingPostRequest(request, tokenMaxFileSize, uploadToken, allFiles);
+            } else {
+                error = parsePostRequest(request, response, tokenMaxFileSize);
+            }
             String postResponse = "";
-            Map<String, String> stat = new HashMap<>();
             if (error != null && error.length() > 0) {
                 postResponse = String.format("{\"error\":\"%s\"}", error);
             } else {
-                List<String> allFiles = new ArrayList<>();
-                for (org.apache.commons.fileupload.FileItem f : getMyLastReceivedFileItems(request)) {
-                    final Collection<String> expectedMimeTypeList = uploadToken != null && uploadToken.get(UploadClaim.FILE_MIME_TYPE_LIST) != null ? Arrays.asList(((String) uploadToken.get(UploadClaim.FILE_MIME_TYPE_LIST)).split("\\s*,\\s*")) : Collections.emptyList();
-                    if (!expectedMimeTypeList.isEmpty()) {
-                        final String uploadedMimeType = f.getContentType();
-                        if (f.getContentType() == null || expectedMimeTypeList.stream().noneMatch(m -> m.equals(uploadedMimeType) || m.equals("*/*") || m.endsWith("/*") && uploadedMimeType.startsWith(m.substring(0, m.length() - 1)))) {
-                            error = UploadUtils.getMessage(KEY_INVALID_MIME_TYPE, uploadedMimeType, expectedMimeTypeList);
-                            allFiles.add(String.format("{\"field\":\"%s\",\"name\":\"%s\",\"ctype\":\"%s\",\"size\":%d,\"error\":\"%s\"}",
-                                    f.getFieldName(), f.getName(), f.getContentType(), f.getSize(), error));
-                            continue;
-                        }
-                    }
-                    try (InputStream data = f.getInputStream()) {
-                        String id = fileStoreService.put(data, f.getName(), f.getContentType());
-                        URL url = fileStoreService.getAccessUrl(id);
-                        if (tokenIssuer != null) {
-                            String tokenString = tokenIssuer.createDownloadToken(Token.<DownloadClaim>builder()
-                                    .jwtClaim(DownloadClaim.FILE_ID, id)
-                                    .jwtClaim(DownloadClaim.FILE_NAME, f.getName())
-                                    .jwtClaim(DownloadClaim.FILE_SIZE, f.getSize())
-                                    .jwtClaim(DownloadClaim.FILE_MIME_TYPE, f.getContentType())
-                                    .jwtClaim(DownloadClaim.CONTEXT, uploadToken != null ? uploadToken.get(UploadClaim.CONTEXT) : null)
-                                    .build());
-                            allFiles.add(String.format("{\"field\":\"%s\",\"id\":\"%s\",\"name\":\"%s\",\"url\":\"%s\",\"ctype\":\"%s\",\"size\":%d,\"token\":\"%s\"}",
-                                    f.getFieldName(), id, f.getName(), url.toString(), f.getContentType(), f.getSize(), tokenString));
-                        } else {
-                            allFiles.add(String.format("{\"field\":\"%s\",\"id\":\"%s\",\"name\":\"%s\",\"url\":\"%s\",\"ctype\":\"%s\",\"size\":%d}",
-                                    f.getFieldName(), id, f.getName(), url.toString(), f.getContentType(), f.getSize()));
-                        }
-                    }
+                if (!streamingUpload) {
+                    allFiles.addAll(storeFiles(uploadToken, getMyLastReceivedFileItems(request)));
                 }
                 postResponse = "{\"files\":[" + String.join(",", allFiles) + "],\"finished\":\"ok\"}";
             }
@@ -337,6 +358,98 @@ public class UploadServlet extends HttpServlet implements Servlet {
         }
     }
 
+    /**
+     * Stores an uploaded file (when its MIME type is accepted by the upload token) and returns its JSON descriptor.
+     *
+     * @param size      size of the file, <code>-1</code> if it is not known before the content is read
+     * @param storedIds the id of the stored file is added to it
+     */
+    private String storeFile(Token<UploadClaim> uploadToken, String fieldName, String fileName, String contentType, InputStream data, long size,
+                             List<String> storedIds) throws IOException {
+        String error = checkMimeType(uploadToken, contentType);
+        if (error != null) {
+            return rejectedFile(fieldName, fileName, contentType, size >= 0 ? size : IOUtils.skip(data, Long.MAX_VALUE), error);
+        }
+        CountingInputStream counter = new CountingInputStream(data);
+        String id = fileStoreService.put(counter, fileName, contentType, size);
+        storedIds.add(id);
+        return storedFile(uploadToken, fieldName, fileName, contentType, id, size >= 0 ? size : counter.getByteCount());
+    }
+
+    /**
+     * Stores the accepted ones of the received files with a single {@link FileStoreService#putAll(List)} call and
+     * returns the JSON descriptors of all of them.
+     */
+    private List<String> storeFiles(Token<UploadClaim> uploadToken, List<org.apache.commons.fileupload.FileItem> items) throws IOException {
+        String[] descriptors = new String[items.size()];
+        List<Integer> accepted = new ArrayList<>();
+        List<PutRequest> requests = new ArrayList<>();
+        List<InputStream> streams = new ArrayList<>();
+        try {
+            for (int i = 0; i < items.size(); i++) {
+                org.apache.commons.fileupload.FileItem f = items.get(i);
+                String error = checkMimeType(uploadToken, f.getContentType());
+                if (error != null) {
+                    descriptors[i] = rejectedFile(f.getFieldName(), f.getName(), f.getContentType(), f.getSize(), error);
+                    continue;
+                }
+                InputStream data = f.getInputStream();
+                streams.add(data);
+                accepted.add(i);
+                requests.add(PutRequest.builder()
+                        .data(data)
+                        .fileName(f.getName())
+                        .mimeType(f.getContentType())
+                        .sizeHint(f.getSize())
+                        .build());
+            }
+            List<String> ids = requests.isEmpty() ? Collections.emptyList() : fileStoreService.putAll(requests);
+            for (int j = 0; j < ids.size(); j++) {
+                org.apache.commons.fileupload.FileItem f = items.get(accepted.get(j));
+                descriptors[accepted.get(j)] = storedFile(uploadToken, f.getFieldName(), f.getName(), f.getContentType(), ids.get(j), f.getSize());
+            }
+        } finally {
+            streams.forEach(IOUtils::closeQuietly);
+        }
+        return Arrays.asList(descriptors);
+    }
+
+    /**
+     * Returns the error message if the MIME type is not accepted by the upload token, otherwise null.
+     */
+    private String checkMimeType(Token<UploadClaim> uploadToken, String contentType) {
+        final Collection<String> expectedMimeTypeList = uploadToken != null && uploadToken.get(UploadClaim.FILE_MIME_TYPE_LIST) != null ? Arrays.asList(((String) uploadToken.get(UploadClaim.FILE_MIME_TYPE_LIST)).split("\\s*,\\s*")) : Collections.emptyList();
+        if (!expectedMimeTypeList.isEmpty()) {
+            if (contentType == null || expectedMimeTypeList.stream().noneMatch(m -> m.equals(contentType) || m.equals("*/*") || m.endsWith("/*") && contentType.startsWith(m.substring(0, m.length() - 1)))) {
+                return UploadUtils.getMessage(KEY_INVALID_MIME_TYPE, contentType, expectedMimeTypeList);
+            }
+        }
+        return null;
+    }
+
+    private String rejectedFile(String fieldName, String fileName, String contentType, long size, String error) {
+        return String.format("{\"field\":\"%s\",\"name\":\"%s\",\"ctype\":\"%s\",\"size\":%d,\"error\":\"%s\"}",
+                fieldName, fileName, contentType, size, error);
+    }
+
+    private String storedFile(Token<UploadClaim> uploadToken, String fieldName, String fileName, String contentType, String id, long storedSize) throws IOException {
+        URL url = fileStoreService.getAccessUrl(id);
+        if (tokenIssuer != null) {
+            String tokenString = tokenIssuer.createDownloadToken(Token.<DownloadClaim>builder()
+                    .jwtClaim(DownloadClaim.FILE_ID, id)
+                    .jwtClaim(DownloadClaim.FILE_NAME, fileName)
+                    .jwtClaim(DownloadClaim.FILE_SIZE, storedSize)
+                    .jwtClaim(DownloadClaim.FILE_MIME_TYPE, contentType)
+                    .jwtClaim(DownloadClaim.CONTEXT, uploadToken != null ? uploadToken.get(UploadClaim.CONTEXT) : null)
+                    .build());
+            return String.format("{\"field\":\"%s\",\"id\":\"%s\",\"name\":\"%s\",\"url\":\"%s\",\"ctype\":\"%s\",\"size\":%d,\"token\":\"%s\"}",
+                    fieldName, id, fileName, url.toString(), contentType, storedSize, tokenString);
+        } else {
+            return String.format("{\"field\":\"%s\",\"id\":\"%s\",\"name\":\"%s\",\"url\":\"%s\",\"ctype\":\"%s\",\"size\":%d}",
+                    fieldName, id, fileName, url.toString(), contentType, storedSize);
+        }
+    }
+
     protected Map<String, String> getFileItemsSummary(HttpServletRequest request, Map<String, String> pStat) {
         Map<String, String> stat = pStat;
         if (stat == null) {
@@ -404,13 +517,13 @@ public class UploadServlet extends HttpServlet implements Servlet {
     }
 
     /**
-     * Get the listener active in this session.
+     * Get the listener of the current upload.
      *
      * @param request
      * @return the listener active
      */
     protected AbstractUploadListener getCurrentListener(HttpServletRequest request) {
-        return UploadListener.current(request);
+        return UploadListener.current(progressRegistry, getUploadId(request));
     }
 
     /**
@@ -521,20 +634,14 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
         log.debug(String.format(MSG_S_NEW_UPLOAD_REQUEST_RECEIVED, request.getSession().getId()));
 
-        AbstractUploadListener listener = getCurrentListener(request);
-        if (listener != null) {
-            if (listener.isFrozen() || listener.isCanceled() || listener.getPercent() >= 100) {
-                removeCurrentListener(request);
-            } else {
-                String error = UploadUtils.getMessage(KEY_BUSY);
-                log.error(String.format("(%s) %s", request.getSession().getId(), error));
-                return error;
-            }
+        String busy = checkBusy(request);
+        if (busy != null) {
+            return busy;
         }
 
         // Create a file upload progress listener, and put it in the user session,
         // so the browser can use ajax to query status of the upload process
-        listener = createNewListener(request);
+        AbstractUploadListener listener = createNewListener(request);
 
         List<org.apache.commons.fileupload.FileItem> uploadedItems;
         try {
@@ -544,10 +651,7 @@ public class UploadServlet extends HttpServlet implements Servlet {
 
             // Create the factory used for uploading files,
             org.apache.commons.fileupload.FileItemFactory factory = getFileItemFactory(getContentLength(request));
-            org.apache.commons.fileupload.servlet.ServletFileUpload uploader = new org.apache.commons.fileupload.servlet.ServletFileUpload(factory);
-            uploader.setSizeMax(maxFileSize != null && maxFileSize > maxSize ? maxFileSize : maxSize);
-            uploader.setFileSizeMax(maxFileSize != null ? maxFileSize : this.maxFileSize);
-            uploader.setProgressListener(listener);
+            org.apache.commons.fileupload.servlet.ServletFileUpload uploader = createUploader(factory, maxFileSize, listener);
 
             // Receive the files
             log.info(String.format(MSG_S_PARSING_HTTP_POST_REQUEST, request.getSession().getId()));
@@ -574,25 +678,186 @@ public class UploadServlet extends HttpServlet implements Servlet {
             }
             return error.length() > 0 ? error : null;
 
+        } catch (Throwable e) {
+            throw uploadFailed(request, listener, e);
+        }
+    }
+
+    /**
+     * Streaming variant of {@link #parsePostRequest(HttpServletRequest, HttpServletResponse, Long)}: the parts are
+     * stored with the {@link FileStoreService} while the request is parsed, so nothing is spooled to temporary files or
+     * kept in the session. Small parts are kept in memory and stored in batches with
+     * {@link FileStoreService#putAll(List)}, larger ones are stored while they are read. Form fields are skipped, the
+     * JSON descriptors of the stored files are added to <code>allFiles</code>. When the upload fails (size limit,
+     * cancel, timeout, error) the files which were stored before are deleted.
+     * <p>
+     * returns null in the case of success or a string with the error
+     */
+    protected String parseStreamingPostRequest(HttpServletRequest request, Long maxFileSize, Token<UploadClaim> uploadToken, List<String> allFiles) {
+        log.debug(String.format(MSG_S_NEW_UPLOAD_REQUEST_RECEIVED, request.getSession().getId()));
+
+        String busy = checkBusy(request);
+        if (busy != null) {
+            return busy;
+        }
+
+        AbstractUploadListener listener = createNewListener(request);
+        List<String> storedIds = new ArrayList<>();
+        List<BufferedPart> batch = new ArrayList<>();
+        try {
+            checkRequest(request, maxFileSize != null && maxFileSize > maxSize ? maxFileSize : maxSize);
+
+            org.apache.commons.fileupload.servlet.ServletFileUpload uploader = createUploader(null, maxFileSize, listener);
+
+            log.info(String.format(MSG_S_PARSING_HTTP_POST_REQUEST, request.getSession().getId()));
+            request.getSession().removeAttribute(getSessionLastFilesKey(request));
+            org.apache.commons.fileupload.FileItemIterator items = uploader.getItemIterator(request);
+            int count = 0;
+            while (items.hasNext()) {
+                org.apache.commons.fileupload.FileItemStream item = items.next();
+                count++;
+                if (item.isFormField()) {
+                    continue;
+                }
+                try (InputStream data = item.openStream()) {
+                    storeStreamedFile(uploadToken, item, data, allFiles, batch, storedIds);
+                }
+            }
+            storeBatch(uploadToken, batch, allFiles, storedIds);
+            log.info(String.format(MSG_S_PARSED_REQUEST_D_ITEMS_RECEIVED, request.getSession().getId(), count));
+            return null;
+        } catch (org.apache.commons.fileupload.FileUploadBase.FileUploadIOException e) {
+            deleteFiles(storedIds);
+            throw uploadFailed(request, listener, e.getCause());
+        } catch (Throwable e) {
+            deleteFiles(storedIds);
+            throw uploadFailed(request, listener, e);
+        }
+    }
+
+    /**
+     * Stores a streamed part. A part up to {@link Constants#STREAMING_BATCH_FILE_SIZE} is read to memory and added to
+     * the batch (its descriptor is set when the batch is stored), a larger one is stored while it is read.
+     */
+    private void storeStreamedFile(Token<UploadClaim> uploadToken, org.apache.commons.fileupload.FileItemStream item, InputStream data,
+                                   List<String> allFiles, List<BufferedPart> batch, List<String> storedIds) throws IOException {
+        InputStream content = data;
+        if (checkMimeType(uploadToken, item.getContentType()) == null) {
+            byte[] head = new byte[STREAMING_BATCH_FILE_SIZE + 1];
+            int length = IOUtils.read(data, head);
+            if (length <= STREAMING_BATCH_FILE_SIZE) {
+                batch.add(new BufferedPart(item.getFieldName(), item.getName(), item.getContentType(), Arrays.copyOf(head, length), allFiles.size()));
+                allFiles.add(null);
+                if (batch.stream().mapToLong(part -> part.data.length).sum() >= STREAMING_BATCH_SIZE) {
+                    storeBatch(uploadToken, batch, allFiles, storedIds);
+                }
+                return;
+            }
+            content = new SequenceInputStream(new ByteArrayInputStream(head, 0, length), data);
+        }
+        allFiles.add(storeFile(uploadToken, item.getFieldName(), item.getName(), item.getContentType(), content, -1, storedIds));
+    }
+
+    /**
+     * Stores the buffered parts with a single {@link FileStoreService#putAll(List)} call and sets their descriptors.
+     */
+    private void storeBatch(Token<UploadClaim> uploadToken, List<BufferedPart> batch, List<String> allFiles, List<String> storedIds)
+            throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<String> ids = fileStoreService.putAll(batch.stream()
+                .map(part -> PutRequest.builder()
+                        .data(new ByteArrayInputStream(part.data))
+                        .fileName(part.fileName)
+                        .mimeType(part.contentType)
+                        .sizeHint(part.data.length)
+                        .build())
+                .collect(Collectors.toList()));
+        storedIds.addAll(ids);
+        for (int i = 0; i < ids.size(); i++) {
+            BufferedPart part = batch.get(i);
+            allFiles.set(part.index, storedFile(uploadToken, part.fieldName, part.fileName, part.contentType, ids.get(i), part.data.length));
+        }
+        batch.clear();
+    }
+
+    /**
+     * Small part of a streaming upload waiting to be stored with the batch.
+     */
+    @RequiredArgsConstructor
+    private static final class BufferedPart {
+        private final String fieldName;
+        private final String fileName;
+        private final String contentType;
+        private final byte[] data;
+        private final int index;
+    }
+
+    /**
+     * Deletes the files stored by a failed upload, files which cannot be deleted are logged.
+     */
+    private void deleteFiles(List<String> fileIds) {
+        for (String fileId : fileIds) {
+            try {
+                fileStoreService.delete(fileId);
+            } catch (IOException | RuntimeException e) {
+                log.warn("Could not delete file " + fileId + " of a failed upload", e);
+            }
+        }
+    }
+
+    /**
+     * Removes the listener of a finished, frozen or canceled upload.
+     *
+     * @return error message if an other upload is in progress in this session, otherwise null
+     */
+    private String checkBusy(HttpServletRequest request) {
+        AbstractUploadListener listener = getCurrentListener(request);
+        if (listener != null) {
+            if (listener.isFrozen() || listener.isCanceled() || listener.getPercent() >= 100) {
+                removeCurrentListener(request);
+            } else {
+                String error = UploadUtils.getMessage(KEY_BUSY);
+                log.error(String.format("(%s) %s", request.getSession().getId(), error));
+                return error;
+            }
+        }
+        return null;
+    }
+
+    private org.apache.commons.fileupload.servlet.ServletFileUpload createUploader(org.apache.commons.fileupload.FileItemFactory factory,
+                                                                                    Long maxFileSize, AbstractUploadListener listener) {
+        org.apache.commons.fileupload.servlet.ServletFileUpload uploader = factory != null
+                ? new org.apache.commons.fileupload.servlet.ServletFileUpload(factory)
+                : new org.apache.commons.fileupload.servlet.ServletFileUpload();
+        uploader.setSizeMax(maxFileSize != null && maxFileSize > maxSize ? maxFileSize : maxSize);
+        uploader.setFileSizeMax(maxFileSize != null ? maxFileSize : this.maxFileSize);
+        uploader.setProgressListener(listener);
+        return uploader;
+    }
+
+    /**
+     * Converts the failure of parsing an upload request to the exception thrown to the client and registers it on the
+     * listener.
+     */
+    private RuntimeException uploadFailed(HttpServletRequest request, AbstractUploadListener listener, Throwable e) {
+        RuntimeException ex;
+        if (e instanceof LinkageError) {
             // So much silly questions in the list about this issue.
-        } catch (LinkageError e) {
             log.error(String.format(MSG_S_EXCEPTION_S, request.getSession().getId(), e.getMessage()), e);
-            RuntimeException ex = new UploadActionException(UploadUtils.getMessage(KEY_RESTRICTED, e.getMessage()), e);
-            listener.setException(ex);
-            throw ex;
-        } catch (org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException e) {
-            RuntimeException ex = new UploadSizeLimitException(e.getPermittedSize(), e.getActualSize());
-            listener.setException(ex);
-            throw ex;
-        } catch (UploadSizeLimitException | UploadCanceledException | UploadTimeoutException e) {
-            listener.setException(e);
-            throw e;
-        } catch (Throwable e) {
+            ex = new UploadActionException(UploadUtils.getMessage(KEY_RESTRICTED, e.getMessage()), e);
+        } else if (e instanceof org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException) {
+            org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException sizeLimitExceeded = (org.apache.commons.fileupload.FileUploadBase.SizeLimitExceededException) e;
+            ex = new UploadSizeLimitException(sizeLimitExceeded.getPermittedSize(), sizeLimitExceeded.getActualSize());
+        } else if (e instanceof UploadSizeLimitException || e instanceof UploadCanceledException || e instanceof UploadTimeoutException) {
+            ex = (RuntimeException) e;
+        } else {
             log.error(String.format(MSG_S_EXCEPTION_S, request.getSession().getId(), e.getMessage()), e);
-            RuntimeException ex = new UploadException(e);
-            listener.setException(ex);
-            throw ex;
+            ex = new UploadException(e);
         }
+        listener.setException(ex);
+        return ex;
     }
 
     /**
@@ -0,0 +1,119 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Detects frozen uploads. All the running uploads of a servlet are checked by a single scheduled task instead of a
+ * thread per upload. Uploads are queued by the time they have to be checked (when they time out if no data is
+ * received), so a run of the task only checks the uploads which are due instead of scanning all of them.
+ */
+@Slf4j
+public class UploadWatchDog {
+
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+
+    /**
+     * The current deadline of each watched upload. Deadlines in the queue which are not the current one of their
+     * upload (it was unwatched or checked again) are dropped when they are due.
+     */
+    private final Map<UploadListener, Deadline> watched = new ConcurrentHashMap<>();
+    private final PriorityBlockingQueue<Deadline> deadlines = new PriorityBlockingQueue<>(16, Comparator.comparingLong(Deadline::getTime));
+    private final ScheduledExecutorService scheduler;
+
+    @Getter
+    @RequiredArgsConstructor
+    private static final class Deadline {
+        private final UploadListener listener;
+        private final long time;
+    }
+
+    public UploadWatchDog(long intervalMillis) {
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "UploadWatchDog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::check, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void watch(UploadListener listener) {
+        Deadline deadline = new Deadline(listener, System.currentTimeMillis());
+        watched.put(listener, deadline);
+        deadlines.offer(deadline);
+    }
+
+    public void unwatch(UploadListener listener) {
+        watched.remove(listener);
+    }
+
+    /**
+     * Number of uploads currently watched.
+     */
+    public int size() {
+        return watched.size();
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+        watched.clear();
+        deadlines.clear();
+    }
+
+    void check() {
+        long now = System.currentTimeMillis();
+        Deadline due;
+        while ((due = deadlines.poll()) != null) {
+            if (due.time > now) {
+                deadlines.offer(due);
+                break;
+            }
+            if (watched.get(due.listener) == due) {
+                long next;
+                try {
+                    next = due.listener.checkTimeout(now);
+                } catch (RuntimeException e) {
+                    log.warn("Could not check upload timeout, stop watching it", e);
+                    next = -1;
+                }
+                if (next < 0) {
+                    watched.remove(due.listener, due);
+                } else {
+                    Deadline deadline = new Deadline(due.listener, next);
+                    if (watched.replace(due.listener, due, deadline)) {
+                        deadlines.offer(deadline);
+                    }
+                }
+            }
+        }
+    }
+}
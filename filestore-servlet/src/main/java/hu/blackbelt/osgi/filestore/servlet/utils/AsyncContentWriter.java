@@ -0,0 +1,145 @@
+package hu.blackbelt.osgi.filestore.servlet.utils;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.extern.slf4j.Slf4j;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Non-blocking (Servlet 3.1) writer of a response body. Content is read from the source channel only when the
+ * container reports that the output is ready, so slow clients do not pin a container thread for the whole transfer.
+ * The source is closed and the async context is completed when the content is written or the transfer fails.
+ */
+@Slf4j
+public class AsyncContentWriter implements WriteListener, AsyncListener {
+
+    public static final int BUFFER_SIZE = 64 * 1024;
+
+    private final AsyncContext asyncContext;
+    private final ReadableByteChannel source;
+    private final ServletOutputStream out;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private long remaining;
+
+    /**
+     * @param asyncContext started async context of the request
+     * @param source       content to write, positioned at the first byte
+     * @param length       number of bytes to write, negative to write until the end of the source
+     */
+    public AsyncContentWriter(AsyncContext asyncContext, ReadableByteChannel source, long length) throws IOException {
+        this.asyncContext = asyncContext;
+        this.source = source;
+        this.out = asyncContext.getResponse().getOutputStream();
+        this.remaining = length >= 0 ? length : Long.MAX_VALUE;
+    }
+
+    /**
+     * Registers the writer on the async context and on the output stream, the container starts calling
+     * {@link #onWritePossible()} afterwards.
+     */
+    public void start() {
+        asyncContext.addListener(this);
+        try {
+            out.setWriteListener(this);
+        } catch (RuntimeException e) {
+            complete();
+            throw e;
+        }
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        while (out.isReady()) {
+            if (remaining <= 0) {
+                complete();
+                return;
+            }
+            buffer.clear();
+            if (remaining < buffer.capacity()) {
+                buffer.limit((int) remaining);
+            }
+            int read = source.read(buffer);
+            if (read < 0) {
+                complete();
+                return;
+            }
+            if (read > 0) {
+                out.write(buffer.array(), 0, read);
+                remaining -= read;
+            }
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.debug("Asynchronous download failed", t);
+        complete();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        closeSource();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        log.debug("Asynchronous download timed out");
+        complete();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        log.debug("Asynchronous download failed", event.getThrowable());
+        complete();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+    }
+
+    private void complete() {
+        if (closeSource()) {
+            asyncContext.complete();
+        }
+    }
+
+    private boolean closeSource() {
+        if (closed.compareAndSet(false, true)) {
+            try {
+                source.close();
+            } catch (IOException e) {
+                log.debug("Could not close download source", e);
+            }
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,132 @@
+package hu.blackbelt.osgi.filestore.servlet.utils;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Satisfiable byte range of a <code>Range</code> request header (RFC 7233), both ends inclusive.
+ */
+@Getter
+@EqualsAndHashCode
+@ToString
+public final class ByteRange {
+
+    public static final String BYTES_UNIT = "bytes";
+
+    /**
+     * Range headers with more parts than this are ignored and the whole content is returned.
+     */
+    public static final int MAX_RANGES = 32;
+
+    private final long start;
+    private final long end;
+
+    public ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    public long getLength() {
+        return end - start + 1;
+    }
+
+    /**
+     * Returns the value of the <code>Content-Range</code> header of this range.
+     */
+    public String toContentRange(long size) {
+        return BYTES_UNIT + " " + start + "-" + end + "/" + size;
+    }
+
+    /**
+     * Parses a <code>Range</code> header against a representation of <code>size</code> bytes. Overlapping and
+     * adjacent ranges are merged.
+     *
+     * @param header value of the <code>Range</code> header
+     * @param size   size of the representation
+     * @return <code>null</code> if the header is missing, malformed or has to be ignored (the whole content should be
+     * returned), empty list if none of the ranges is satisfiable, the sorted ranges otherwise
+     */
+    public static List<ByteRange> parse(String header, long size) {
+        if (header == null || !header.startsWith(BYTES_UNIT + "=")) {
+            return null;
+        }
+        String[] specs = header.substring(BYTES_UNIT.length() + 1).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+
+        List<ByteRange> ranges = new ArrayList<>();
+        for (String spec : specs) {
+            String range = spec.trim();
+            int dash = range.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            String first = range.substring(0, dash).trim();
+            String last = range.substring(dash + 1).trim();
+            try {
+                if (first.isEmpty()) {
+                    // suffix range: last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                } else {
+                    long start = Long.parseLong(first);
+                    long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                    if (start < 0 || end < start) {
+                        return null;
+                    }
+                    if (start < size) {
+                        ranges.add(new ByteRange(start, Math.min(end, size - 1)));
+                    }
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return merge(ranges);
+    }
+
+    private static List<ByteRange> merge(List<ByteRange> ranges) {
+        ranges.sort(Comparator.comparingLong(ByteRange::getStart));
+        List<ByteRange> merged = new ArrayList<>();
+        for (ByteRange range : ranges) {
+            ByteRange previous = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+            if (previous != null && range.getStart() <= previous.getEnd() + 1) {
+                merged.set(merged.size() - 1, new ByteRange(previous.getStart(), Math.max(previous.getEnd(), range.getEnd())));
+            } else {
+                merged.add(range);
+            }
+        }
+        return merged;
+    }
+}
@@ -0,0 +1,613 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.ChannelReadableFileStore;
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
+import hu.blackbelt.osgi.filestore.api.FileStoreService;
+import hu.blackbelt.osgi.filestore.servlet.utils.ByteRange;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.quality.Strictness;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceRegistration;
+import org.osgi.service.http.whiteboard.HttpWhiteboardConstants;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
+import javax.servlet.Servlet;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Date;
+import java.util.Dictionary;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static hu.blackbelt.osgi.filestore.servlet.Constants.*;
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.CoreMatchers.startsWith;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.CALLS_REAL_METHODS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@ExtendWith(MockitoExtension.class)
+public class DownloadServletTest {
+
+    private static final String FILE_ID = "0123456789abcdef0123456789abcdef";
+    private static final byte[] CONTENT = "0123456789".getBytes(StandardCharsets.ISO_8859_1);
+    private static final Date CREATE_TIME = new Date(1600000000000L);
+    private static final String ETAG = "\"" + FILE_ID + "\"";
+
+    @Mock
+    BundleContext bundleContext;
+
+    @Mock
+    ServiceRegistration<Servlet> registration;
+
+    @Mock
+    FileStoreService fileStoreService;
+
+    @InjectMocks
+    DownloadServlet target;
+
+    private final Map<String, String> requestHeaders = new HashMap<>();
+    private final Map<String, String> responseHeaders = new HashMap<>();
+    private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+    private int status;
+    private long transferred;
+    private ServletOutputStream outputStream;
+    private AsyncContext asyncContext;
+
+    @BeforeEach
+    public void setup() throws Exception {
+        when(bundleContext.registerService(eq(Servlet.class), any(Servlet.class), any())).thenReturn(registration);
+        DownloadServlet.Config config = mock(DownloadServlet.Config.class);
+        when(config.servletPath()).thenReturn("/download");
+        when(config.cacheControl()).thenReturn(DEFAULT_DOWNLOAD_CACHE_CONTROL);
+        target.activate(bundleContext, config);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testRegisteredAsAsyncWhiteboardServlet() {
+        ArgumentCaptor<Dictionary<String, Object>> properties = ArgumentCaptor.forClass(Dictionary.class);
+        verify(bundleContext).registerService(eq(Servlet.class), eq(target), properties.capture());
+        assertThat(properties.getValue().get(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_ASYNC_SUPPORTED), equalTo(Boolean.TRUE));
+        assertThat(properties.getValue().get(HttpWhiteboardConstants.HTTP_WHITEBOARD_SERVLET_PATTERN), equalTo(new String[] { "/download", "/download/*" }));
+
+        target.deactivate();
+        verify(registration).unregister();
+    }
+
+    @Test
+    public void testWholeContent() throws Exception {
+        mockContent();
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(responseHeaders.get(HEADER_CONTENT_LENGTH), equalTo("10"));
+        assertThat(responseHeaders.get(HEADER_ACCEPT_RANGES), equalTo("bytes"));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+    }
+
+    @Test
+    public void testSingleRange() throws Exception {
+        mockRanges();
+        requestHeaders.put(HEADER_RANGE, "bytes=-3");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+        assertThat(responseHeaders.get(HEADER_CONTENT_RANGE), equalTo("bytes 7-9/10"));
+        assertThat(responseHeaders.get(HEADER_CONTENT_LENGTH), equalTo("3"));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("789"));
+    }
+
+    @Test
+    public void testUnsatisfiableRange() throws Exception {
+        mockMetadata();
+        requestHeaders.put(HEADER_RANGE, "bytes=10-20");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE));
+        assertThat(responseHeaders.get(HEADER_CONTENT_RANGE), equalTo("bytes */10"));
+        assertThat(body.size(), equalTo(0));
+    }
+
+    @Test
+    public void testMalformedRangeReturnsWholeContent() throws Exception {
+        mockContent();
+        requestHeaders.put(HEADER_RANGE, "bytes=5-2");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+    }
+
+    @Test
+    public void testTooManyRangesReturnWholeContent() throws Exception {
+        mockContent();
+        requestHeaders.put(HEADER_RANGE, "bytes=" + IntStream.rangeClosed(0, ByteRange.MAX_RANGES)
+                .mapToObj(i -> "0-0")
+                .collect(Collectors.joining(",")));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+    }
+
+    @Test
+    public void testMultipleRanges() throws Exception {
+        mockRanges();
+        requestHeaders.put(HEADER_RANGE, "bytes=6-7, 0-1, 1-2");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+        String contentType = responseHeaders.get(HEADER_CONTENT_TYPE);
+        assertThat(contentType, startsWith(MIMETYPE_MULTIPART_BYTERANGES + "; boundary="));
+        String boundary = contentType.substring(contentType.indexOf('=') + 1);
+        String expected = "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 0-2/10\r\n\r\n"
+                + "012"
+                + "\r\n--" + boundary + "\r\n"
+                + "Content-Type: text/plain\r\n"
+                + "Content-Range: bytes 6-7/10\r\n\r\n"
+                + "67"
+                + "\r\n--" + boundary + "--\r\n";
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo(expected));
+        assertThat(responseHeaders.get(HEADER_CONTENT_LENGTH), equalTo(String.valueOf(expected.length())));
+    }
+
+    @Test
+    public void testCachingHeadersOfContent() throws Exception {
+        mockContent();
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(responseHeaders.get(HEADER_ETAG), equalTo(ETAG));
+        assertThat(responseHeaders.get(HEADER_LAST_MODIFIED), equalTo(httpDate(CREATE_TIME.getTime())));
+        assertThat(responseHeaders.get(HEADER_CACHE_CONTROL), equalTo(DEFAULT_DOWNLOAD_CACHE_CONTROL));
+    }
+
+    @Test
+    public void testErrorResponseIsNotCached() throws Exception {
+        mockMetadata();
+        when(fileStoreService.get(FILE_ID)).thenThrow(new IOException("Store failure"));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+        assertThat(responseHeaders.get(HEADER_ETAG), nullValue());
+        assertThat(responseHeaders.get(HEADER_LAST_MODIFIED), nullValue());
+        assertThat(responseHeaders.get(HEADER_CACHE_CONTROL), equalTo("no-cache"));
+    }
+
+    @Test
+    public void testMissingFileIsNotCached() throws Exception {
+        when(fileStoreService.getMetadata(FILE_ID)).thenThrow(new IOException("Not found"));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+        assertThat(responseHeaders.get(HEADER_CACHE_CONTROL), equalTo("no-cache"));
+    }
+
+    @Test
+    public void testIfNoneMatch() throws Exception {
+        mockMetadata();
+        requestHeaders.put(HEADER_IF_NONE_MATCH, "\"other\", " + ETAG);
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_NOT_MODIFIED));
+        assertThat(responseHeaders.get(HEADER_ETAG), equalTo(ETAG));
+        assertThat(responseHeaders.get(HEADER_CACHE_CONTROL), equalTo(DEFAULT_DOWNLOAD_CACHE_CONTROL));
+        assertThat(body.size(), equalTo(0));
+
+        requestHeaders.put(HEADER_IF_NONE_MATCH, "W/" + ETAG);
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_NOT_MODIFIED));
+
+        requestHeaders.put(HEADER_IF_NONE_MATCH, "*");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_NOT_MODIFIED));
+    }
+
+    @Test
+    public void testIfNoneMatchTakesPrecedenceOverIfModifiedSince() throws Exception {
+        mockContent();
+        requestHeaders.put(HEADER_IF_NONE_MATCH, "\"other\"");
+        requestHeaders.put(HEADER_IF_MODIFIED_SINCE, httpDate(CREATE_TIME.getTime()));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+    }
+
+    @Test
+    public void testIfModifiedSince() throws Exception {
+        mockContent();
+        requestHeaders.put(HEADER_IF_MODIFIED_SINCE, httpDate(CREATE_TIME.getTime()));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_NOT_MODIFIED));
+
+        requestHeaders.put(HEADER_IF_MODIFIED_SINCE, httpDate(CREATE_TIME.getTime() - 1000));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+
+        requestHeaders.put(HEADER_IF_MODIFIED_SINCE, "not a date");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+    }
+
+    @Test
+    public void testIfRange() throws Exception {
+        mockContent();
+        mockRanges();
+        requestHeaders.put(HEADER_RANGE, "bytes=0-1");
+
+        requestHeaders.put(HEADER_IF_RANGE, ETAG);
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("01"));
+
+        // Weak entity tags never match If-Range
+        requestHeaders.put(HEADER_IF_RANGE, "W/" + ETAG);
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+
+        requestHeaders.put(HEADER_IF_RANGE, "\"other\"");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+
+        requestHeaders.put(HEADER_IF_RANGE, httpDate(CREATE_TIME.getTime()));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+
+        requestHeaders.put(HEADER_IF_RANGE, httpDate(CREATE_TIME.getTime() + 1000));
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+    }
+
+    @Test
+    public void testFileChannelIsCopiedWhenTheContainerCannotSendIt() throws Exception {
+        mockChannelStore();
+        requestHeaders.put(HEADER_RANGE, "bytes=2-4");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("234"));
+    }
+
+    @Test
+    public void testFileChannelIsTransferredToTheOutput() throws Exception {
+        mockChannelStore();
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+        assertThat(transferred, equalTo(10L));
+
+        transferred = 0;
+        requestHeaders.put(HEADER_RANGE, "bytes=0-0,2-3");
+        get();
+        assertThat(status, equalTo(HttpServletResponse.SC_PARTIAL_CONTENT));
+        String multipart = body.toString(StandardCharsets.ISO_8859_1);
+        assertThat(multipart, containsString("Content-Range: bytes 0-0/10\r\n\r\n0\r\n"));
+        assertThat(multipart, containsString("Content-Range: bytes 2-3/10\r\n\r\n23\r\n"));
+        assertThat(transferred, equalTo(3L));
+    }
+
+    @Test
+    public void testAsyncDownload() throws Exception {
+        activateAsync();
+        mockContent();
+        get();
+        verify(asyncContext).setTimeout(30000L);
+        ArgumentCaptor<WriteListener> writeListener = ArgumentCaptor.forClass(WriteListener.class);
+        verify(outputStream).setWriteListener(writeListener.capture());
+        assertThat(body.size(), equalTo(0));
+
+        writeListener.getValue().onWritePossible();
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testAsyncDownloadTimeoutClosesTheContent() throws Exception {
+        activateAsync();
+        mockMetadata();
+        AtomicBoolean closed = new AtomicBoolean();
+        when(fileStoreService.get(FILE_ID)).thenReturn(new ByteArrayInputStream(CONTENT) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        });
+        get();
+        ArgumentCaptor<AsyncListener> asyncListener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(asyncListener.capture());
+        assertThat(closed.get(), equalTo(false));
+
+        asyncListener.getValue().onTimeout(null);
+        assertThat(closed.get(), equalTo(true));
+        verify(asyncContext).complete();
+    }
+
+    @Test
+    public void testFileChannelIsTransferredWithAsyncDownload() throws Exception {
+        // Async download is enabled by default, file channels are transferred without the async writer anyway
+        activateAsync();
+        mockChannelStore();
+        get();
+        verify(asyncContext, never()).setTimeout(anyLong());
+        verify(outputStream, never()).setWriteListener(any());
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        assertThat(body.toString(StandardCharsets.ISO_8859_1), equalTo("0123456789"));
+        assertThat(transferred, equalTo(10L));
+    }
+
+    private void activateAsync() {
+        DownloadServlet.Config config = mock(DownloadServlet.Config.class);
+        when(config.servletPath()).thenReturn("/download");
+        when(config.asyncDownload()).thenReturn(true);
+        when(config.asyncTimeout()).thenReturn(30000L);
+        target.activate(bundleContext, config);
+        outputStream = mock(BodyOutputStream.class, withSettings().useConstructor().outerInstance(this).defaultAnswer(CALLS_REAL_METHODS));
+        asyncContext = mock(AsyncContext.class, withSettings().strictness(Strictness.LENIENT));
+    }
+
+    private void mockMetadata() throws Exception {
+        when(fileStoreService.getMetadata(FILE_ID)).thenReturn(FileMetadata.builder()
+                .fileId(FILE_ID)
+                .fileName("test.txt")
+                .mimeType("text/plain")
+                .size(CONTENT.length)
+                .createTime(CREATE_TIME)
+                .build());
+    }
+
+    private void mockChannelStore() throws Exception {
+        Path file = Files.createTempFile("download", ".txt");
+        file.toFile().deleteOnExit();
+        Files.write(file, CONTENT);
+        FileStoreService channelStore = mock(FileStoreService.class, withSettings().extraInterfaces(ChannelReadableFileStore.class));
+        target.fileStoreService = channelStore;
+        fileStoreService = channelStore;
+        mockMetadata();
+        when(((ChannelReadableFileStore) channelStore).openFileChannel(FILE_ID))
+                .thenAnswer(invocation -> new TransferCountingChannel(FileChannel.open(file, StandardOpenOption.READ)));
+    }
+
+    private void mockContent() throws Exception {
+        mockMetadata();
+        when(fileStoreService.get(FILE_ID)).thenAnswer(invocation -> new ByteArrayInputStream(CONTENT));
+    }
+
+    private void mockRanges() throws Exception {
+        mockMetadata();
+        when(fileStoreService.get(anyString(), anyLong(), anyLong())).thenAnswer(invocation -> new ByteArrayInputStream(CONTENT,
+                (int) (long) invocation.getArgument(1), (int) (long) invocation.getArgument(2)));
+    }
+
+    private void get() throws Exception {
+        status = HttpServletResponse.SC_OK;
+        responseHeaders.clear();
+        body.reset();
+        target.doGet(request(), response());
+    }
+
+    private HttpServletRequest request() {
+        HttpServletRequest request = mock(HttpServletRequest.class, withSettings().strictness(Strictness.LENIENT));
+        when(request.getMethod()).thenReturn(METHOD_GET);
+        if (asyncContext != null) {
+            when(request.isAsyncSupported()).thenReturn(true);
+            when(request.startAsync()).thenReturn(asyncContext);
+        }
+        when(request.getParameter(PARAM_FILE_ID)).thenReturn(FILE_ID);
+        when(request.getSession()).thenReturn(mock(HttpSession.class));
+        when(request.getHeader(anyString())).thenAnswer(invocation -> requestHeaders.get(invocation.<String>getArgument(0)));
+        when(request.getDateHeader(anyString())).thenAnswer(invocation -> {
+            String value = requestHeaders.get(invocation.<String>getArgument(0));
+            if (value == null) {
+                return -1L;
+            }
+            try {
+                return ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException(value);
+            }
+        });
+        return request;
+    }
+
+    private HttpServletResponse response() throws Exception {
+        HttpServletResponse response = mock(HttpServletResponse.class, withSettings().strictness(Strictness.LENIENT));
+        doAnswer(invocation -> responseHeaders.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(response).setHeader(anyString(), anyString());
+        doAnswer(invocation -> responseHeaders.merge(invocation.getArgument(0), invocation.getArgument(1), (a, b) -> a + ", " + b))
+                .when(response).addHeader(anyString(), anyString());
+        doAnswer(invocation -> responseHeaders.put(invocation.getArgument(0), httpDate(invocation.getArgument(1))))
+                .when(response).setDateHeader(anyString(), anyLong());
+        doAnswer(invocation -> responseHeaders.put(HEADER_CONTENT_TYPE, invocation.getArgument(0)))
+                .when(response).setContentType(anyString());
+        doAnswer(invocation -> responseHeaders.put(HEADER_CONTENT_LENGTH, String.valueOf((long) invocation.getArgument(0))))
+                .when(response).setContentLengthLong(anyLong());
+        doAnswer(invocation -> status = invocation.getArgument(0)).when(response).setStatus(anyInt());
+        when(response.getWriter()).thenReturn(new PrintWriter(new OutputStreamWriter(body, StandardCharsets.UTF_8)));
+        when(response.getOutputStream()).thenReturn(outputStream != null ? outputStream : new BodyOutputStream());
+        if (asyncContext != null) {
+            when(asyncContext.getResponse()).thenReturn(response);
+        }
+        return response;
+    }
+
+    class BodyOutputStream extends ServletOutputStream {
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener writeListener) {
+        }
+
+        @Override
+        public void write(int b) {
+            body.write(b);
+        }
+    }
+
+    /**
+     * File channel counting the bytes transferred with {@link FileChannel#transferTo}.
+     */
+    class TransferCountingChannel extends FileChannel {
+
+        private final FileChannel channel;
+
+        TransferCountingChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            long sent = channel.transferTo(position, count, target);
+            transferred += sent;
+            return sent;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return channel.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+
+    static String httpDate(long millis) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+    }
+}
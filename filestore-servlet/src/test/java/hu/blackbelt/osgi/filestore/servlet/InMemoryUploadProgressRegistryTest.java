@@ -0,0 +1,71 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import org.junit.jupiter.api.Test;
+
+import java.util.Date;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.notNullValue;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class InMemoryUploadProgressRegistryTest {
+
+    private static final long TTL = 60000L;
+
+    @Test
+    public void testExpiredProgressIsEvicted() {
+        InMemoryUploadProgressRegistry registry = new InMemoryUploadProgressRegistry(TTL);
+        long now = System.currentTimeMillis();
+        registry.save(progress("stale", now - 2 * TTL));
+        registry.save(progress("running", now));
+
+        assertThat(registry.get("stale"), nullValue());
+        assertThat(registry.get("running"), notNullValue());
+
+        registry.evictExpired(now + TTL / 2);
+        assertThat(registry.size(), equalTo(2));
+
+        registry.evictExpired(now + TTL);
+        assertThat(registry.size(), equalTo(1));
+        assertThat(registry.get("running"), notNullValue());
+    }
+
+    @Test
+    public void testUpdateKeepsProgressAlive() {
+        InMemoryUploadProgressRegistry registry = new InMemoryUploadProgressRegistry(TTL);
+        registry.save(progress("running", System.currentTimeMillis() - 2 * TTL));
+        registry.update("running", 10, 100);
+
+        assertThat(registry.get("running").getBytesRead(), equalTo(10L));
+    }
+
+    private static UploadProgress progress(String uploadId, long updated) {
+        return UploadProgress.builder()
+                .uploadId(uploadId)
+                .status(UploadProgress.Status.RUNNING)
+                .updated(new Date(updated))
+                .build();
+    }
+}
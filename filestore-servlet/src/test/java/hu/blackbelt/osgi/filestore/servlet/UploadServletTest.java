@@ -0,0 +1,221 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.FileStoreService;
+import hu.blackbelt.osgi.filestore.api.PutRequest;
+import org.apache.commons.io.IOUtils;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.mockito.quality.Strictness;
+import org.osgi.service.http.HttpService;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpSession;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.withSettings;
+
+@ExtendWith(MockitoExtension.class)
+public class UploadServletTest {
+
+    private static final String BOUNDARY = "----boundary";
+    private static final int MAX_FILE_SIZE = 2 * Constants.STREAMING_BATCH_FILE_SIZE;
+    private static final String FIRST_ID = "0123456789abcdef0123456789abcde1";
+    private static final String SECOND_ID = "0123456789abcdef0123456789abcde2";
+    private static final String THIRD_ID = "0123456789abcdef0123456789abcde3";
+
+    @Mock
+    HttpService httpService;
+
+    @Mock
+    FileStoreService fileStoreService;
+
+    @InjectMocks
+    UploadServlet target;
+
+    private final StringWriter body = new StringWriter();
+    private int status = HttpServletResponse.SC_OK;
+
+    @BeforeEach
+    public void setup() {
+        UploadServlet.Config config = mock(UploadServlet.Config.class);
+        when(config.servletPath()).thenReturn("/upload");
+        when(config.maxSize()).thenReturn(4L * MAX_FILE_SIZE);
+        when(config.maxFileSize()).thenReturn((long) MAX_FILE_SIZE);
+        when(config.streamingUpload()).thenReturn(true);
+        target.activate(config);
+    }
+
+    @AfterEach
+    public void teardown() {
+        target.deactivate();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testStreamingUploadStoresSmallFilesInBatch() throws Exception {
+        String large = repeat('x', Constants.STREAMING_BATCH_FILE_SIZE + 1);
+        when(fileStoreService.putAll(any())).thenAnswer(invocation -> {
+            List<PutRequest> requests = invocation.getArgument(0);
+            assertThat(requests.stream().map(PutRequest::getFileName).collect(Collectors.toList()), equalTo(Arrays.asList("first.txt", "third.txt")));
+            assertThat(IOUtils.toString(requests.get(0).getData(), "UTF-8"), equalTo("first"));
+            assertThat(requests.get(1).getSizeHint(), equalTo(5L));
+            return Arrays.asList(FIRST_ID, THIRD_ID);
+        });
+        when(fileStoreService.put(any(InputStream.class), eq("second.txt"), eq("text/plain"), anyLong())).thenAnswer(invocation -> {
+            assertThat(IOUtils.toString((InputStream) invocation.getArgument(0), "UTF-8"), equalTo(large));
+            return SECOND_ID;
+        });
+        when(fileStoreService.getAccessUrl(anyString())).thenAnswer(invocation -> new URL("http://localhost/download/" + invocation.getArgument(0)));
+
+        post(part("first.txt", "first") + part("second.txt", large) + part("third.txt", "third"));
+
+        assertThat(status, equalTo(HttpServletResponse.SC_OK));
+        verify(fileStoreService).putAll(any());
+        // Descriptors are in the order of the parts
+        String response = body.toString();
+        assertThat(response.indexOf(FIRST_ID) < response.indexOf(SECOND_ID) && response.indexOf(SECOND_ID) < response.indexOf(THIRD_ID), equalTo(true));
+        assertThat(response, containsString("\"size\":" + large.length()));
+    }
+
+    @Test
+    public void testFailedStreamingUploadDeletesStoredFiles() throws Exception {
+        when(fileStoreService.put(any(InputStream.class), anyString(), anyString(), anyLong())).thenAnswer(invocation -> {
+            // The second part exceeds the max file size while it is read by the store
+            IOUtils.toByteArray((InputStream) invocation.getArgument(0));
+            return FIRST_ID;
+        });
+        when(fileStoreService.getAccessUrl(FIRST_ID)).thenReturn(new URL("http://localhost/download/" + FIRST_ID));
+
+        post(part("first.txt", repeat('x', Constants.STREAMING_BATCH_FILE_SIZE + 1)) + part("second.txt", repeat('x', MAX_FILE_SIZE + 1)));
+
+        assertThat(status, equalTo(HttpServletResponse.SC_INTERNAL_SERVER_ERROR));
+        verify(fileStoreService).delete(FIRST_ID);
+    }
+
+    @Test
+    public void testUploadIdIsScopedToTheSession() {
+        HttpServletRequest request = request("session", "upload");
+        HttpServletRequest otherSession = request("other", "upload");
+
+        assertThat(target.getUploadId(request), equalTo(target.getUploadId(request("session", "upload"))));
+        assertThat(target.getUploadId(request), not(equalTo(target.getUploadId(otherSession))));
+        assertThat(target.getUploadId(request), not(equalTo(target.getUploadId(request("session", null)))));
+        assertThat(target.getUploadId(request), not(containsString("upload")));
+    }
+
+    private static HttpServletRequest request(String sessionId, String uploadId) {
+        HttpSession session = mock(HttpSession.class);
+        when(session.getId()).thenReturn(sessionId);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getSession()).thenReturn(session);
+        when(request.getParameter(Constants.PARAM_UPLOAD_ID)).thenReturn(uploadId);
+        return request;
+    }
+
+    private static String repeat(char c, int count) {
+        char[] chars = new char[count];
+        Arrays.fill(chars, c);
+        return new String(chars);
+    }
+
+    private static String part(String fileName, String content) {
+        return "--" + BOUNDARY + "\r\n"
+                + "Content-Disposition: form-data; name=\"file\"; filename=\"" + fileName + "\"\r\n"
+                + "Content-Type: text/plain\r\n\r\n"
+                + content + "\r\n";
+    }
+
+    private void post(String parts) throws Exception {
+        byte[] content = (parts + "--" + BOUNDARY + "--\r\n").getBytes(StandardCharsets.UTF_8);
+        ByteArrayInputStream in = new ByteArrayInputStream(content);
+
+        HttpSession session = mock(HttpSession.class, withSettings().strictness(Strictness.LENIENT));
+        when(session.getId()).thenReturn("session");
+
+        HttpServletRequest request = mock(HttpServletRequest.class, withSettings().strictness(Strictness.LENIENT));
+        when(request.getMethod()).thenReturn("POST");
+        when(request.getSession()).thenReturn(session);
+        when(request.getContentType()).thenReturn("multipart/form-data; boundary=" + BOUNDARY);
+        when(request.getContentLength()).thenReturn(content.length);
+        when(request.getHeader("Content-Length")).thenReturn(String.valueOf(content.length));
+        when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) {
+                return in.read(b, off, len);
+            }
+        });
+
+        HttpServletResponse response = mock(HttpServletResponse.class, withSettings().strictness(Strictness.LENIENT));
+        when(response.getWriter()).thenReturn(new PrintWriter(body));
+        doAnswer(invocation -> status = invocation.getArgument(0)).when(response).setStatus(any(Integer.class));
+
+        target.doPost(request, response);
+    }
+}
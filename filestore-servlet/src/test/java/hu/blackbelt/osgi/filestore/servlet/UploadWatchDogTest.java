@@ -0,0 +1,79 @@
+package hu.blackbelt.osgi.filestore.servlet;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import hu.blackbelt.osgi.filestore.api.UploadProgress;
+import hu.blackbelt.osgi.filestore.servlet.exceptions.UploadTimeoutException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class UploadWatchDogTest {
+
+    private static final int NO_DATA_TIMEOUT = 1000;
+
+    private final InMemoryUploadProgressRegistry registry = new InMemoryUploadProgressRegistry();
+
+    // Checked by the test only, the scheduled task does not run during it
+    private final UploadWatchDog watchDog = new UploadWatchDog(60000L);
+
+    @AfterEach
+    public void teardown() {
+        watchDog.shutdown();
+    }
+
+    @Test
+    public void testFrozenUploadTimeoutIsSaved() {
+        UploadListener listener = new UploadListener(registry, watchDog, "frozen", 0, 100, NO_DATA_TIMEOUT);
+        long now = System.currentTimeMillis();
+
+        assertThat(listener.checkTimeout(now) > now, equalTo(true));
+        assertThat(registry.get("frozen").getStatus(), equalTo(UploadProgress.Status.RUNNING));
+        assertThat(listener.checkTimeout(now + 2 * NO_DATA_TIMEOUT), equalTo(-1L));
+        assertThat(listener.getException(), instanceOf(UploadTimeoutException.class));
+        assertThat(registry.get("frozen").getStatus(), equalTo(UploadProgress.Status.TIMEOUT));
+    }
+
+    @Test
+    public void testOnlyFrozenUploadsAreTimedOut() throws Exception {
+        UploadListener frozen = new UploadListener(registry, watchDog, "frozen", 0, 100, NO_DATA_TIMEOUT);
+        Thread.sleep(NO_DATA_TIMEOUT + 100);
+        UploadListener running = new UploadListener(registry, watchDog, "running", 0, 100, NO_DATA_TIMEOUT);
+        UploadListener finished = new UploadListener(registry, watchDog, "finished", 0, 100, NO_DATA_TIMEOUT);
+        running.update(10, 100, 1);
+        finished.update(100, 100, 1);
+        assertThat(watchDog.size(), equalTo(2));
+
+        watchDog.check();
+
+        assertThat(registry.get("frozen").getStatus(), equalTo(UploadProgress.Status.TIMEOUT));
+        assertThat(registry.get("running").getStatus(), equalTo(UploadProgress.Status.RUNNING));
+        assertThat(watchDog.size(), equalTo(1));
+
+        // The running one is rescheduled to its deadline, it is not checked again before
+        watchDog.check();
+        assertThat(registry.get("running").getStatus(), equalTo(UploadProgress.Status.RUNNING));
+        assertThat(watchDog.size(), equalTo(1));
+    }
+}
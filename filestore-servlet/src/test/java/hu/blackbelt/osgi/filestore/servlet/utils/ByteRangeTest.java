@@ -0,0 +1,93 @@
+package hu.blackbelt.osgi.filestore.servlet.utils;
+
+/*-
+ * #%L
+ * Filestore servlet (file upload)
+ * %%
+ * Copyright (C) 2018 - 2022 BlackBelt Technology
+ * %%
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * #L%
+ */
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ByteRangeTest {
+
+    @Test
+    public void testMissingOrMalformedHeader() {
+        assertThat(ByteRange.parse(null, 100), nullValue());
+        assertThat(ByteRange.parse("items=0-10", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=10", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=a-b", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=20-10", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=0-10,x", 100), nullValue());
+        assertThat(ByteRange.parse("bytes=--5", 100), nullValue());
+    }
+
+    @Test
+    public void testSingleRanges() {
+        assertThat(ByteRange.parse("bytes=0-9", 100), equalTo(Collections.singletonList(new ByteRange(0, 9))));
+        assertThat(ByteRange.parse("bytes=90-", 100), equalTo(Collections.singletonList(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=90-200", 100), equalTo(Collections.singletonList(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=0-9", 100).get(0).getLength(), equalTo(10L));
+        assertThat(ByteRange.parse("bytes=0-9", 100).get(0).toContentRange(100), equalTo("bytes 0-9/100"));
+    }
+
+    @Test
+    public void testSuffixRanges() {
+        assertThat(ByteRange.parse("bytes=-10", 100), equalTo(Collections.singletonList(new ByteRange(90, 99))));
+        assertThat(ByteRange.parse("bytes=-200", 100), equalTo(Collections.singletonList(new ByteRange(0, 99))));
+        // A zero length suffix is not satisfiable
+        assertThat(ByteRange.parse("bytes=-0", 100), equalTo(Collections.emptyList()));
+        assertThat(ByteRange.parse("bytes=-10", 0), equalTo(Collections.emptyList()));
+    }
+
+    @Test
+    public void testOverlappingAndAdjacentRangesAreMerged() {
+        assertThat(ByteRange.parse("bytes=50-59, 0-9, 5-14", 100),
+                equalTo(Arrays.asList(new ByteRange(0, 14), new ByteRange(50, 59))));
+        assertThat(ByteRange.parse("bytes=0-9,10-19", 100), equalTo(Collections.singletonList(new ByteRange(0, 19))));
+        assertThat(ByteRange.parse("bytes=0-9,-95", 100), equalTo(Collections.singletonList(new ByteRange(0, 99))));
+    }
+
+    @Test
+    public void testOutOfRange() {
+        assertThat(ByteRange.parse("bytes=100-", 100), equalTo(Collections.emptyList()));
+        assertThat(ByteRange.parse("bytes=100-200,300-400", 100), equalTo(Collections.emptyList()));
+        assertThat(ByteRange.parse("bytes=0-", 0), equalTo(Collections.emptyList()));
+        // Unsatisfiable ranges are dropped when others are satisfiable
+        assertThat(ByteRange.parse("bytes=200-300,0-0", 100), equalTo(Collections.singletonList(new ByteRange(0, 0))));
+    }
+
+    @Test
+    public void testTooManyRanges() {
+        String allowed = IntStream.range(0, ByteRange.MAX_RANGES)
+                .mapToObj(i -> (i * 2) + "-" + (i * 2))
+                .collect(Collectors.joining(","));
+        List<ByteRange> ranges = ByteRange.parse("bytes=" + allowed, 1000);
+        assertThat(ranges.size(), equalTo(ByteRange.MAX_RANGES));
+        assertThat(ByteRange.parse("bytes=" + allowed + ",100-100", 1000), nullValue());
+    }
+}
@@ -20,6 +20,7 @@ package hu.blackbelt.osgi.filestore.urlhandler;
  * #L%
  */
 
+import hu.blackbelt.osgi.filestore.api.FileMetadata;
 import hu.blackbelt.osgi.filestore.api.FileStoreService;
 import lombok.SneakyThrows;
 
@@ -32,6 +33,7 @@ public class FileStoreUrlConnection extends URLConnection {
 
     final FileStoreService fileStoreService;
     final String uuid;
+    private FileMetadata metadata;
 
     protected FileStoreUrlConnection(URL url, FileStoreService fileStoreService, String uuid) {
         super(url);
@@ -49,21 +51,33 @@ public class FileStoreUrlConnection extends URLConnection {
     }
 
     @Override
-    @SneakyThrows(IOException.class)
     public int getContentLength() {
-        fileStoreService.getSize(uuid);
-        return super.getContentLength();
+        long size = getContentLengthLong();
+        return size <= Integer.MAX_VALUE ? (int) size : -1;
+    }
+
+    @Override
+    @SneakyThrows(IOException.class)
+    public long getContentLengthLong() {
+        return getMetadata().getSize();
     }
 
     @Override
     @SneakyThrows(IOException.class)
     public String getContentType() {
-        return fileStoreService.getMimeType(uuid);
+        return getMetadata().getMimeType();
     }
 
     @Override
     @SneakyThrows(IOException.class)
     public long getDate() {
-        return fileStoreService.getCreateTime(uuid).getTime();
+        return getMetadata().getCreateTime().getTime();
+    }
+
+    private FileMetadata getMetadata() throws IOException {
+        if (metadata == null) {
+            metadata = fileStoreService.getMetadata(uuid);
+        }
+        return metadata;
     }
 }